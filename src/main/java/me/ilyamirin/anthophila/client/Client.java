@@ -2,6 +2,7 @@ package me.ilyamirin.anthophila.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA. User: ilyamirin Date: 15.10.13 Time: 15:55 To
@@ -23,5 +24,30 @@ public interface Client {
 
     boolean seek(ByteBuffer key) throws IOException;
 
+    /**
+     * Pushes many chunks with as few round trips as possible.
+     *
+     * @return push result for every key in order of keys.
+     */
+    List<Boolean> pushAll(List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException;
+
+    /**
+     * @return chunks in order of keys, null for chunks which were not found.
+     */
+    List<ByteBuffer> pullAll(List<ByteBuffer> keys) throws IOException;
+
+    /**
+     * Pulls an ordered list of chunks, such as chunks of a file, which servers stream back in order while
+     * reading next chunks ahead.
+     *
+     * @return chunks in order of keys, null for chunks which were not found.
+     */
+    List<ByteBuffer> pullManifest(List<ByteBuffer> keys) throws IOException;
+
+    /**
+     * @return seek result for every key in order of keys.
+     */
+    List<Boolean> seekAll(List<ByteBuffer> keys) throws IOException;
+
     void close() throws IOException;
 }
@@ -33,52 +33,110 @@ public class ClusterClient implements Client {
         return new ClusterClient(clients, topology);
     }
 
-    @Override
-    public boolean push(ByteBuffer key, ByteBuffer chunk) throws IOException {
+    private OneNodeClient findClient(ByteBuffer key) throws IOException {
         List<Node> nodes = new ArrayList<>(topology.findNodes(key));
         Collections.shuffle(nodes);
         for (Node node : nodes) {
             if (clients.containsKey(node)) {
-                return clients.get(node).push(key, chunk);
+                return clients.get(node);
             }
         }
         throw new IOException("Can`t find proper node for key.");
     }
 
-    @Override
-    public ByteBuffer pull(ByteBuffer key) throws IOException {
-        List<Node> nodes = new ArrayList<>(topology.findNodes(key));
-        Collections.shuffle(nodes);
-        for (Node node : nodes) {
-            if (clients.containsKey(node)) {
-                return clients.get(node).pull(key);
+    /**
+     * @return positions of keys grouped by clients which serve them.
+     */
+    private Map<OneNodeClient, List<Integer>> groupByClients(List<ByteBuffer> keys) throws IOException {
+        Map<OneNodeClient, List<Integer>> groups = Maps.newHashMap();
+        for (int i = 0; i < keys.size(); i++) {
+            OneNodeClient client = findClient(keys.get(i));
+            if (!groups.containsKey(client)) {
+                groups.put(client, new ArrayList<Integer>());
             }
+            groups.get(client).add(i);
+        }
+        return groups;
+    }
+
+    private static <T> List<T> select(List<T> values, List<Integer> positions) {
+        List<T> selected = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            selected.add(values.get(position));
+        }
+        return selected;
+    }
+
+    private static <T> void scatter(List<T> values, List<Integer> positions, List<T> target) {
+        for (int i = 0; i < positions.size(); i++) {
+            target.set(positions.get(i), values.get(i));
         }
-        throw new IOException("Can`t find proper node for key.");
+    }
+
+    /**
+     * Chunk is sent to the chosen node only if the node has not it yet, see {@link OneNodeClient#push}.
+     */
+    @Override
+    public boolean push(ByteBuffer key, ByteBuffer chunk) throws IOException {
+        return findClient(key).push(key, chunk);
+    }
+
+    @Override
+    public ByteBuffer pull(ByteBuffer key) throws IOException {
+        return findClient(key).pull(key);
     }
 
     @Override
     public boolean seek(ByteBuffer key) throws IOException {
-        List<Node> nodes = new ArrayList<>(topology.findNodes(key));
-        Collections.shuffle(nodes);
-        for (Node node : nodes) {
-            if (clients.containsKey(node)) {
-                return clients.get(node).seek(key);
-            }
-        }
-        throw new IOException("Can`t find proper node for key.");
+        return findClient(key).seek(key);
     }
 
     @Override
     public boolean remove(ByteBuffer key) throws IOException {
-        List<Node> nodes = new ArrayList<>(topology.findNodes(key));
-        Collections.shuffle(nodes);
-        for (Node node : nodes) {
-            if (clients.containsKey(node)) {
-                return clients.get(node).remove(key);
-            }
+        return findClient(key).remove(key);
+    }
+
+    @Override
+    public List<Boolean> pushAll(List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        List<Boolean> result = new ArrayList<>(Collections.<Boolean>nCopies(keys.size(), null));
+        for (Map.Entry<OneNodeClient, List<Integer>> group : groupByClients(keys).entrySet()) {
+            List<Integer> positions = group.getValue();
+            scatter(group.getKey().pushAll(select(keys, positions), select(chunks, positions)), positions, result);
         }
-        throw new IOException("Can`t find proper node for key.");
+        return result;
+    }
+
+    @Override
+    public List<ByteBuffer> pullAll(List<ByteBuffer> keys) throws IOException {
+        List<ByteBuffer> result = new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null));
+        for (Map.Entry<OneNodeClient, List<Integer>> group : groupByClients(keys).entrySet()) {
+            List<Integer> positions = group.getValue();
+            scatter(group.getKey().pullAll(select(keys, positions)), positions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Keys of every node keep their order, so each node streams its part of the manifest.
+     */
+    @Override
+    public List<ByteBuffer> pullManifest(List<ByteBuffer> keys) throws IOException {
+        List<ByteBuffer> result = new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null));
+        for (Map.Entry<OneNodeClient, List<Integer>> group : groupByClients(keys).entrySet()) {
+            List<Integer> positions = group.getValue();
+            scatter(group.getKey().pullManifest(select(keys, positions)), positions, result);
+        }
+        return result;
+    }
+
+    @Override
+    public List<Boolean> seekAll(List<ByteBuffer> keys) throws IOException {
+        List<Boolean> result = new ArrayList<>(Collections.<Boolean>nCopies(keys.size(), null));
+        for (Map.Entry<OneNodeClient, List<Integer>> group : groupByClients(keys).entrySet()) {
+            List<Integer> positions = group.getValue();
+            scatter(group.getKey().seekAll(select(keys, positions)), positions, result);
+        }
+        return result;
     }
 
     @Override
@@ -1,42 +1,157 @@
 package me.ilyamirin.anthophila.client;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import me.ilyamirin.anthophila.server.Server;
+import me.ilyamirin.anthophila.server.ServerOperations;
 import me.ilyamirin.anthophila.server.ServerStorage;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import lombok.AllArgsConstructor;
-import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author ilyamirin
  */
 @Slf4j
-@AllArgsConstructor
 public class OneNodeClient implements Client {
 
-    @NonNull
-    private SocketChannel socketChannel;
-    @NonNull
-    private InetSocketAddress address;
-    private byte defaultConnectionType;
+    @AllArgsConstructor
+    private static class Response {
+
+        private ByteBuffer key;
+        private byte status;
+        private ByteBuffer chunk;
+    }
+
+    @AllArgsConstructor
+    private static class PendingOperation {
+
+        private byte operationType;
+        private List<ByteBuffer> keys;
+        private SettableFuture<List<Response>> responses;
+    }
+
+    private static final Function<Response, Boolean> IS_SUCCESS = new Function<Response, Boolean>() {
+        @Override
+        public Boolean apply(Response response) {
+            if (response.status != Server.OperationResultStatus.SUCCESS) {
+                log.error("Server response status is not SUCCESS: {}", response.status);
+            }
+            return response.status == Server.OperationResultStatus.SUCCESS;
+        }
+    };
+
+    private static final Function<Response, Boolean> IS_STORED = new Function<Response, Boolean>() {
+        @Override
+        public Boolean apply(Response response) {
+            return response.status == Server.OperationResultStatus.CHUNK_WAS_FOUND || IS_SUCCESS.apply(response);
+        }
+    };
+
+    private static final Function<Response, Boolean> IS_FOUND = new Function<Response, Boolean>() {
+        @Override
+        public Boolean apply(Response response) {
+            return response.status == Server.OperationResultStatus.CHUNK_WAS_FOUND;
+        }
+    };
+
+    private static final Function<Response, ByteBuffer> CHUNK = new Function<Response, ByteBuffer>() {
+        @Override
+        public ByteBuffer apply(Response response) {
+            return response.chunk;
+        }
+    };
+
+    private static final Function<List<Response>, Response> FIRST = new Function<List<Response>, Response>() {
+        @Override
+        public Response apply(List<Response> responses) {
+            return responses.get(0);
+        }
+    };
+
+    private final SocketChannel socketChannel;
+    private final InetSocketAddress address;
+    private final byte defaultConnectionType;
+    private volatile byte protocolVersion;
+    private volatile byte features; //Server.Features of the server, old servers have none of them
+
+    private final Object writeLock = new Object();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final Map<Integer, PendingOperation> pendingOperations = new ConcurrentHashMap<>();
+    private volatile IOException readerFailure;
+    private Thread responseReader;
+
+    public OneNodeClient(SocketChannel socketChannel, InetSocketAddress address, byte defaultConnectionType, byte protocolVersion) {
+        this.socketChannel = socketChannel;
+        this.address = address;
+        this.defaultConnectionType = defaultConnectionType;
+        this.protocolVersion = protocolVersion;
+    }
 
     public static OneNodeClient newClient(String host, int port, byte defaultConnectionType) throws IOException {
+        return newClient(host, port, defaultConnectionType, Server.ProtocolVersions.SEQUENTIAL);
+    }
+
+    /**
+     * @param protocolVersion the version client asks for. Server may answer with an older one.
+     */
+    public static OneNodeClient newClient(String host, int port, byte defaultConnectionType, byte protocolVersion) throws IOException {
         SocketChannel socketChannel = SocketChannel.open();
-        return new OneNodeClient(socketChannel, new InetSocketAddress(host, port), defaultConnectionType);
+        return new OneNodeClient(socketChannel, new InetSocketAddress(host, port), defaultConnectionType, protocolVersion);
     }
 
     public boolean isConnected() {
         return socketChannel.isConnected();
     }
 
-    public boolean setConnectionType() throws IOException {
+    public boolean isPipelined() {
+        return protocolVersion == Server.ProtocolVersions.PIPELINED;
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection was closed by server.");
+            }
+        }
+        return buffer;
+    }
+
+    private synchronized void connect() throws IOException {
+        if (!socketChannel.isConnected()) {
+            socketChannel.connect(address);
+            setConnectionType();
+        }
+    }
+
+    /**
+     * Sets connection type and, for a client which asks for more than {@link Server.ProtocolVersions#SEQUENTIAL},
+     * negotiates the protocol version. Once responses are read in background the connection type can`t be changed.
+     */
+    public synchronized boolean setConnectionType() throws IOException {
         if (!socketChannel.isConnected()) {
-            socketChannel.connect(address);            
+            socketChannel.connect(address);
+        }
+        if (responseReader != null) {
+            throw new IllegalStateException("Connection type can`t be changed when responses are pipelined.");
         }
 
         ByteBuffer request = ByteBuffer.allocate(2);
@@ -48,21 +163,131 @@ public class OneNodeClient implements Client {
             socketChannel.write(request);
         }
 
-        ByteBuffer response = ByteBuffer.allocate(1);
-        while (response.hasRemaining()) {
-            socketChannel.read(response);
+        ByteBuffer response = readFully(socketChannel, ByteBuffer.allocate(1));
+
+        if (protocolVersion > Server.ProtocolVersions.SEQUENTIAL) {
+            setProtocolVersion();
+        }
+
+        if (isPipelined()) {
+            responseReader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readResponses();
+                }
+            }, "response-reader-" + address);
+            responseReader.setDaemon(true);
+            responseReader.start();
         }
 
         return response.get(0) == Server.OperationResultStatus.SUCCESS;
     }
 
+    /**
+     * Asks for the protocol version and learns features of the server. The frame carries a pull of the zero
+     * key after the version, so a server which does not know SET_PROTOCOL_VERSION skips two bytes as unknown
+     * operations and answers that pull. The answer of a new server never starts with the zero key.
+     */
+    private void setProtocolVersion() throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(1 + ServerOperations.PROTOCOL_VERSION_REQUEST_LENGTH);
+        request.put(Server.OperationTypes.SET_PROTOCOL_VERSION);
+        request.put(protocolVersion);
+        request.put(Server.OperationTypes.PULLING);
+
+        request.rewind();
+        while (request.hasRemaining()) {
+            socketChannel.write(request);
+        }
+
+        ByteBuffer response = readFully(socketChannel, ByteBuffer.allocate(ServerOperations.PROTOCOL_VERSION_RESPONSE_LENGTH));
+        response.flip().limit(ServerStorage.KEY_LENGTH);
+        boolean isEcho = response.equals(ByteBuffer.allocate(ServerStorage.KEY_LENGTH));
+        response.limit(response.capacity());
+        if (!isEcho) {
+            if (response.get(0) != Server.OperationResultStatus.SUCCESS) {
+                throw new IOException("Server at " + address + " has refused protocol version " + protocolVersion);
+            }
+            if (response.get(1) < protocolVersion) {
+                log.info("Server at {} supports only protocol version {}", address, response.get(1));
+                protocolVersion = response.get(1);
+            }
+            features = response.get(2);
+            return;
+        }
+
+        //it is the answer to the pull, the chunk is skipped if the server keeps one under the zero key
+        if (response.get(ServerStorage.KEY_LENGTH) == Server.OperationResultStatus.SUCCESS) {
+            ByteBuffer chunkLength = readFully(socketChannel, ByteBuffer.allocate(4));
+            readFully(socketChannel, ByteBuffer.allocate(chunkLength.getInt(0)));
+        }
+        log.info("Server at {} does not negotiate protocol version, so {} is used", address, Server.ProtocolVersions.SEQUENTIAL);
+        protocolVersion = Server.ProtocolVersions.SEQUENTIAL;
+        features = 0;
+    }
+
+    /**
+     * Pushes the chunk in one frame which the server appends only if it has not the chunk yet, so a duplicate
+     * costs no disk write. A server which does not serve conditional pushes gets a plain push.
+     */
     @Override
-    public synchronized boolean push(ByteBuffer key, ByteBuffer chunk) throws IOException {
-        if (!socketChannel.isConnected()) {
-            socketChannel.connect(address);
-            setConnectionType();
+    public boolean push(ByteBuffer key, ByteBuffer chunk) throws IOException {
+        connect();
+        if (!isConditionalPushing()) {
+            return isPipelined() ? await(pushAsync(key, chunk)) : pushSequentially(key, chunk);
         }
 
+        List<ByteBuffer> keys = Collections.singletonList(key);
+        List<ByteBuffer> chunks = Collections.singletonList(chunk);
+        if (isPipelined()) {
+            return IS_STORED.apply(await(send(Server.OperationTypes.CONDITIONAL_PUSHING, keys, chunks)).get(0));
+        }
+        return IS_STORED.apply(executeSequentially(Server.OperationTypes.CONDITIONAL_PUSHING, keys, chunks).get(0));
+    }
+
+    /**
+     * @return true if the server has the chunk, always false if the server can`t tell it.
+     */
+    public boolean offer(ByteBuffer key) throws IOException {
+        connect();
+        return isOffering() && offerResponse(key).status == Server.OperationResultStatus.CHUNK_WAS_FOUND;
+    }
+
+    public boolean isOffering() {
+        return (features & Server.Features.OFFERING) != 0;
+    }
+
+    public boolean isConditionalPushing() {
+        return (features & Server.Features.CONDITIONAL_PUSHING) != 0;
+    }
+
+    private Response offerResponse(ByteBuffer key) throws IOException {
+        connect();
+        List<ByteBuffer> keys = Collections.singletonList(key);
+        if (isPipelined()) {
+            return await(send(Server.OperationTypes.OFFERING, keys, null)).get(0);
+        }
+        return executeSequentially(Server.OperationTypes.OFFERING, keys, null).get(0);
+    }
+
+    @Override
+    public ByteBuffer pull(ByteBuffer key) throws IOException {
+        connect();
+        return isPipelined() ? await(pullAsync(key)) : pullSequentially(key);
+    }
+
+    @Override
+    public boolean remove(ByteBuffer key) throws IOException {
+        connect();
+        return isPipelined() ? await(removeAsync(key)) : removeSequentially(key);
+    }
+
+    @Override
+    public boolean seek(ByteBuffer key) throws IOException {
+        connect();
+        return isPipelined() ? await(seekAsync(key)) : seekSequentially(key);
+    }
+
+    private synchronized boolean pushSequentially(ByteBuffer key, ByteBuffer chunk) throws IOException {
         key.rewind();
         chunk.rewind();
 
@@ -101,13 +326,7 @@ public class OneNodeClient implements Client {
         }
     }//push
 
-    @Override
-    public synchronized ByteBuffer pull(ByteBuffer key) throws IOException {
-        if (!socketChannel.isConnected()) {
-            socketChannel.connect(address);
-            setConnectionType();
-        }
-
+    private synchronized ByteBuffer pullSequentially(ByteBuffer key) throws IOException {
         key.rewind();
 
         ByteBuffer request = ByteBuffer.allocate(1 + ServerStorage.KEY_LENGTH);
@@ -136,7 +355,10 @@ public class OneNodeClient implements Client {
             socketChannel.read(resultBuffer);
         }
 
-        if (resultBuffer.get(0) == Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND) {
+        if (resultBuffer.get(0) != Server.OperationResultStatus.SUCCESS) {
+            if (resultBuffer.get(0) != Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND) {
+                log.error("Server response status is not SUCCESS: {}", resultBuffer.get(0));
+            }
             return null;
         }
 
@@ -154,13 +376,7 @@ public class OneNodeClient implements Client {
 
     }//pull
 
-    @Override
-    public synchronized boolean remove(ByteBuffer key) throws IOException {
-        if (!socketChannel.isConnected()) {
-            socketChannel.connect(address);
-            setConnectionType();
-        }
-
+    private synchronized boolean removeSequentially(ByteBuffer key) throws IOException {
         key.rewind();
 
         ByteBuffer request = ByteBuffer.allocate(1 + ServerStorage.KEY_LENGTH);
@@ -193,13 +409,7 @@ public class OneNodeClient implements Client {
 
     }//pull
 
-    @Override
-    public synchronized boolean seek(ByteBuffer key) throws IOException {
-        if (!socketChannel.isConnected()) {
-            socketChannel.connect(address);
-            setConnectionType();
-        }
-
+    private synchronized boolean seekSequentially(ByteBuffer key) throws IOException {
         key.rewind();
 
         ByteBuffer request = ByteBuffer.allocate(1 + ServerStorage.KEY_LENGTH);
@@ -232,9 +442,260 @@ public class OneNodeClient implements Client {
 
     }//pull
 
+    @Override
+    public List<Boolean> pushAll(List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        return new ArrayList<>(Lists.transform(executeAll(Server.OperationTypes.MULTI_PUSHING, keys, chunks), IS_SUCCESS));
+    }
+
+    @Override
+    public List<ByteBuffer> pullAll(List<ByteBuffer> keys) throws IOException {
+        return new ArrayList<>(Lists.transform(executeAll(Server.OperationTypes.MULTI_PULLING, keys, null), CHUNK));
+    }
+
+    @Override
+    public List<ByteBuffer> pullManifest(List<ByteBuffer> keys) throws IOException {
+        return new ArrayList<>(Lists.transform(executeAll(Server.OperationTypes.MANIFEST_PULLING, keys, null), CHUNK));
+    }
+
+    @Override
+    public List<Boolean> seekAll(List<ByteBuffer> keys) throws IOException {
+        return new ArrayList<>(Lists.transform(executeAll(Server.OperationTypes.MULTI_SEEKING, keys, null), IS_FOUND));
+    }
+
+    /**
+     * Splits keys into frames of {@link Server#MAX_BATCH_SIZE}. Pipelined connection sends all frames
+     * before waiting for the first response.
+     */
+    private List<Response> executeAll(byte operationType, List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        connect();
+
+        List<Response> responses = new ArrayList<>(keys.size());
+        if (isPipelined()) {
+            List<ListenableFuture<List<Response>>> batches = new ArrayList<>();
+            for (int from = 0; from < keys.size(); from += Server.MAX_BATCH_SIZE) {
+                int to = Math.min(keys.size(), from + Server.MAX_BATCH_SIZE);
+                batches.add(send(operationType, keys.subList(from, to), chunks == null ? null : chunks.subList(from, to)));
+            }
+            for (ListenableFuture<List<Response>> batch : batches) {
+                responses.addAll(await(batch));
+            }
+        } else {
+            for (int from = 0; from < keys.size(); from += Server.MAX_BATCH_SIZE) {
+                int to = Math.min(keys.size(), from + Server.MAX_BATCH_SIZE);
+                responses.addAll(executeSequentially(operationType, keys.subList(from, to), chunks == null ? null : chunks.subList(from, to)));
+            }
+        }
+        return responses;
+    }
+
+    private synchronized List<Response> executeSequentially(byte operationType, List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        ByteBuffer request = encodeRequest(operationType, false, 0, keys, chunks);
+        while (request.hasRemaining()) {
+            socketChannel.write(request);
+        }
+
+        List<Response> responses = readResponses(operationType, keys.size());
+        checkKeys(keys, responses);
+        return responses;
+    }
+
+    public ListenableFuture<Boolean> pushAsync(ByteBuffer key, ByteBuffer chunk) throws IOException {
+        return Futures.transform(send(Server.OperationTypes.PUSHING, Collections.singletonList(key), Collections.singletonList(chunk)),
+                Functions.compose(IS_SUCCESS, FIRST));
+    }
+
+    public ListenableFuture<ByteBuffer> pullAsync(ByteBuffer key) throws IOException {
+        return Futures.transform(send(Server.OperationTypes.PULLING, Collections.singletonList(key), null), Functions.compose(CHUNK, FIRST));
+    }
+
+    public ListenableFuture<Boolean> removeAsync(ByteBuffer key) throws IOException {
+        return Futures.transform(send(Server.OperationTypes.REMOVING, Collections.singletonList(key), null), Functions.compose(IS_SUCCESS, FIRST));
+    }
+
+    public ListenableFuture<Boolean> seekAsync(ByteBuffer key) throws IOException {
+        return Futures.transform(send(Server.OperationTypes.SEEKING, Collections.singletonList(key), null), Functions.compose(IS_FOUND, FIRST));
+    }
+
+    /**
+     * Frame is the operation type, request id for pipelined connections, number of keys for batch operations
+     * and then every key followed by length and bytes of its chunk for push operations.
+     */
+    private static ByteBuffer encodeRequest(byte operationType, boolean isPipelined, int requestId, List<ByteBuffer> keys, List<ByteBuffer> chunks) {
+        boolean isBatch = ServerOperations.isBatchOperation(operationType);
+
+        int length = 1 + (isPipelined ? 4 : 0) + (isBatch ? 4 : 0) + keys.size() * ServerStorage.KEY_LENGTH;
+        if (chunks != null) {
+            for (ByteBuffer chunk : chunks) {
+                chunk.rewind();
+                length += 4 + chunk.limit();
+            }
+        }
+
+        ByteBuffer request = ByteBuffer.allocate(length);
+        request.put(operationType);
+        if (isPipelined) {
+            request.putInt(requestId);
+        }
+        if (isBatch) {
+            request.putInt(keys.size());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            key.rewind();
+            request.put(key);
+            key.rewind();
+            if (chunks != null) {
+                ByteBuffer chunk = chunks.get(i);
+                request.putInt(chunk.limit());
+                request.put(chunk);
+                chunk.rewind();
+            }
+        }
+
+        request.rewind();
+        return request;
+    }
+
+    private List<Response> readResponses(byte operationType, int keysCount) throws IOException {
+        int responsesCount = 1;
+        if (ServerOperations.isBatchOperation(operationType)) {
+            responsesCount = readFully(socketChannel, ByteBuffer.allocate(4)).getInt(0);
+        }
+        if (responsesCount != keysCount) {
+            throw new IOException("Server answered " + responsesCount + " keys instead of " + keysCount);
+        }
+
+        boolean isPulling = operationType == Server.OperationTypes.PULLING || operationType == Server.OperationTypes.MULTI_PULLING
+                || operationType == Server.OperationTypes.MANIFEST_PULLING;
+
+        List<Response> responses = new ArrayList<>(responsesCount);
+        ByteBuffer status = ByteBuffer.allocate(1);
+        ByteBuffer chunkLength = ByteBuffer.allocate(4);
+        for (int i = 0; i < responsesCount; i++) {
+            ByteBuffer returnedKey = readFully(socketChannel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH));
+            returnedKey.rewind();
+
+            status.clear();
+            readFully(socketChannel, status);
+
+            ByteBuffer chunk = null;
+            if (isPulling && status.get(0) == Server.OperationResultStatus.SUCCESS) {
+                chunkLength.clear();
+                chunk = readFully(socketChannel, ByteBuffer.allocate(readFully(socketChannel, chunkLength).getInt(0)));
+                chunk.rewind();
+            }
+
+            responses.add(new Response(returnedKey, status.get(0), chunk));
+        }
+        return responses;
+    }
+
+    private static void checkKeys(List<ByteBuffer> keys, List<Response> responses) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            key.rewind();
+            if (!key.equals(responses.get(i).key)) {
+                log.error("Server returned another md5 hash: {} {}", key, responses.get(i).key);
+                throw new IOException("Server returned another md5 hash.");
+            }
+        }
+    }
+
+    private ListenableFuture<List<Response>> send(byte operationType, List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        connect();
+        if (!isPipelined()) {
+            throw new IOException("Server at " + address + " does not support pipelined operations.");
+        }
+
+        List<ByteBuffer> keyCopies = new ArrayList<>(keys.size());
+        for (ByteBuffer key : keys) {
+            key.rewind();
+            keyCopies.add((ByteBuffer) ByteBuffer.allocate(ServerStorage.KEY_LENGTH).put(key).rewind());
+            key.rewind();
+        }
+
+        int requestId = requestIds.incrementAndGet();
+        ByteBuffer request = encodeRequest(operationType, true, requestId, keyCopies, chunks);
+
+        SettableFuture<List<Response>> responses = SettableFuture.create();
+        pendingOperations.put(requestId, new PendingOperation(operationType, keyCopies, responses));
+        if (readerFailure != null) {
+            pendingOperations.remove(requestId);
+            throw readerFailure;
+        }
+
+        try {
+            synchronized (writeLock) {
+                while (request.hasRemaining()) {
+                    socketChannel.write(request);
+                }
+            }
+        } catch (IOException ioe) {
+            pendingOperations.remove(requestId);
+            throw ioe;
+        }
+
+        return responses;
+    }
+
+    private void readResponses() {
+        ByteBuffer requestId = ByteBuffer.allocate(4);
+        try {
+            while (socketChannel.isOpen()) {
+                requestId.clear();
+                readFully(socketChannel, requestId);
+
+                PendingOperation operation = pendingOperations.remove(requestId.getInt(0));
+                if (operation == null) {
+                    throw new IOException("Server answered unknown request " + requestId.getInt(0));
+                }
+
+                List<Response> responses = readResponses(operation.operationType, operation.keys.size());
+                try {
+                    checkKeys(operation.keys, responses);
+                    operation.responses.set(responses);
+                } catch (IOException ioe) {
+                    operation.responses.setException(ioe);
+                }
+            }
+        } catch (IOException ioe) {
+            if (socketChannel.isOpen()) {
+                log.error("Can`t read responses from {}", address, ioe);
+            }
+            readerFailure = ioe;
+            failPendingOperations(ioe);
+        }
+    }
+
+    private void failPendingOperations(IOException cause) {
+        Iterator<PendingOperation> iterator = pendingOperations.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().responses.setException(cause);
+            iterator.remove();
+        }
+    }
+
+    private static <T> T await(ListenableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for server response.");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        socketChannel.finishConnect();
+        if (isPipelined()) {
+            socketChannel.close();
+        } else {
+            socketChannel.finishConnect();
+        }
     }
 
 }
@@ -3,6 +3,8 @@ package me.ilyamirin.anthophila.client;
 import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import lombok.AllArgsConstructor;
@@ -76,6 +78,63 @@ public class ReplicationClient implements Client {
         return result;
     }
 
+    @Override
+    public List<Boolean> pushAll(List<ByteBuffer> keys, List<ByteBuffer> chunks) throws IOException {
+        List<Boolean> result = new ArrayList<>(Collections.nCopies(keys.size(), true));
+        for (OneNodeClient client : clients) {
+            List<Boolean> pushed = client.pushAll(keys, chunks);
+            for (int i = 0; i < result.size(); i++) {
+                result.set(i, result.get(i) && pushed.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<ByteBuffer> pullAll(List<ByteBuffer> keys) throws IOException {
+        List<ByteBuffer> result = null;
+        for (OneNodeClient client : clients) {
+            result = agree(result, client.pullAll(keys));
+        }
+        return result == null ? new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null)) : result;
+    }
+
+    @Override
+    public List<ByteBuffer> pullManifest(List<ByteBuffer> keys) throws IOException {
+        List<ByteBuffer> result = null;
+        for (OneNodeClient client : clients) {
+            result = agree(result, client.pullManifest(keys));
+        }
+        return result == null ? new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null)) : result;
+    }
+
+    /**
+     * @return chunks pulled so far, chunks which differ on replicas are nulls.
+     */
+    private static List<ByteBuffer> agree(List<ByteBuffer> result, List<ByteBuffer> pulled) {
+        if (result == null) {
+            return pulled;
+        }
+        for (int i = 0; i < result.size(); i++) {
+            if (result.get(i) != null && !result.get(i).equals(pulled.get(i))) {
+                result.set(i, null);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Boolean> seekAll(List<ByteBuffer> keys) throws IOException {
+        List<Boolean> result = new ArrayList<>(Collections.nCopies(keys.size(), true));
+        for (OneNodeClient client : clients) {
+            List<Boolean> found = client.seekAll(keys);
+            for (int i = 0; i < result.size(); i++) {
+                result.set(i, result.get(i) && found.get(i));
+            }
+        }
+        return result;
+    }
+
     @Override
     public void close() throws IOException {
         for (OneNodeClient client : clients) {
@@ -1,6 +1,6 @@
 package me.ilyamirin.anthophila.server;
 
-import com.google.common.hash.BloomFilter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import lombok.AllArgsConstructor;
 import lombok.NonNull;
@@ -13,6 +13,8 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import me.ilyamirin.anthophila.client.ReplicationClient;
 
 @Slf4j
@@ -26,6 +28,25 @@ public class Server extends Thread {
         public static final byte REMOVING = Byte.MAX_VALUE - 2;
         public static final byte SEEKING = Byte.MAX_VALUE - 3;
         public static final byte SET_CONNECTION_TYPE = Byte.MAX_VALUE - 4;
+        public static final byte MULTI_PUSHING = Byte.MAX_VALUE - 5;
+        public static final byte MULTI_PULLING = Byte.MAX_VALUE - 6;
+        public static final byte MULTI_SEEKING = Byte.MAX_VALUE - 7;
+        public static final byte OFFERING = Byte.MAX_VALUE - 8; //key of a chunk to push, its body is sent only if the server has not it
+        public static final byte MANIFEST_PULLING = Byte.MAX_VALUE - 9; //batch pull answered in order with chunks read ahead
+        public static final byte SET_PROTOCOL_VERSION = Byte.MAX_VALUE - 10; //version then a pull of the zero key old servers answer instead
+        public static final byte CONDITIONAL_PUSHING = Byte.MAX_VALUE - 11; //push whose chunk is stored only if the server has not it
+    }
+
+    public final class ProtocolVersions {
+
+        public static final byte SEQUENTIAL = 1; //one request then one response
+        public static final byte PIPELINED = 2; //every frame carries a request id, responses come as operations complete
+    }
+
+    public final class Features {
+
+        public static final byte OFFERING = 1; //OFFERING operation is served
+        public static final byte CONDITIONAL_PUSHING = 2; //CONDITIONAL_PUSHING operation is served
     }
 
     public final class OperationResultStatus {
@@ -38,14 +59,16 @@ public class Server extends Thread {
         public static final byte FAILURE = Byte.MIN_VALUE;
     }
 
+    public static final int DEFAULT_OPERATION_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int DEFAULT_MAX_OPERATIONS_IN_FLIGHT = 64;
+    public static final int MAX_BATCH_SIZE = 256; //keys in one batch frame, so a multi push is buffered in 16 MB at most
+
     @NonNull
     private ServerParams params;
     @NonNull
-    private ServerStorage storage;
+    private ServerStripedStorage storage;
     private Topology topology;
     @NonNull
-    private BloomFilter<byte[]> bloomFilter;
-    @NonNull
     private ReplicationClient replicationClient;
 
     @Override
@@ -54,24 +77,71 @@ public class Server extends Thread {
 
             InetSocketAddress inetSocketAddress = new InetSocketAddress(params.getHost(), params.getPort());
             serverSocketChannel.bind(inetSocketAddress, params.getMaxConnections());
-            serverSocketChannel.configureBlocking(false);
+
+            ServerOperations operations = new ServerOperations(params, storage, topology, replicationClient);
+
+            int operationThreads = params.getOperationThreads() > 0 ? params.getOperationThreads() : DEFAULT_OPERATION_THREADS;
+            ExecutorService operationsExecutor = Executors.newFixedThreadPool(operationThreads);
+
+            if (params.getSnapshotInterval() > 0) {
+                scheduleSnapshots();
+            }
 
             log.info("Waiting for a client...");
 
-            ExecutorService executor = Executors.newCachedThreadPool();
-            
-            while (serverSocketChannel.isOpen()) {
-                SocketChannel channel = serverSocketChannel.accept();                                
-                if (channel != null) {                    
-                    executor.execute(new ServerWorker(params, storage, topology, channel, bloomFilter, replicationClient));
-                }
-            }//while
+            if (params.getSelectorThreads() > 0) {
+                serveWithEventLoops(serverSocketChannel, operations, operationsExecutor);
+            } else {
+                serveWithWorkers(serverSocketChannel, operations, operationsExecutor);
+            }
 
         } catch (Exception x) {
             log.error("Oops!", x);
 
         }//try ServerSocketChannel
-    }//run    
+    }//run
+
+    private void scheduleSnapshots() {
+        ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("index-snapshot-%d").build());
+        snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.writeSnapshot();
+                } catch (IOException ioe) {
+                    log.error("Can`t write index snapshot:", ioe);
+                }
+            }
+        }, params.getSnapshotInterval(), params.getSnapshotInterval(), TimeUnit.SECONDS);
+    }
+
+    private void serveWithWorkers(ServerSocketChannel serverSocketChannel, ServerOperations operations,
+            ExecutorService operationsExecutor) throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        while (serverSocketChannel.isOpen()) {
+            SocketChannel channel = serverSocketChannel.accept();
+            executor.execute(new ServerWorker(operations, operationsExecutor, channel));
+        }//while
+    }
+
+    private void serveWithEventLoops(ServerSocketChannel serverSocketChannel, ServerOperations operations,
+            ExecutorService operationsExecutor) throws IOException {
+        ServerEventLoop[] eventLoops = new ServerEventLoop[params.getSelectorThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = ServerEventLoop.newServerEventLoop(operations, operationsExecutor, i);
+            eventLoops[i].start();
+        }
+
+        log.info("{} event loops were started.", eventLoops.length);
+
+        long accepted = 0;
+        while (serverSocketChannel.isOpen()) {
+            SocketChannel channel = serverSocketChannel.accept();
+            eventLoops[(int) (accepted++ % eventLoops.length)].register(channel);
+        }//while
+    }
 
     public static void main(String... args) throws IOException {
         String pathToConfig = args.length > 0 ? args[0] : "server.json";
@@ -83,13 +153,25 @@ public class Server extends Thread {
         
         ServerEnigma serverEnigma = ServerEnigma.newServerEnigma(serverParams);
         
-        ServerStorage serverStorage = ServerStorage.newServerStorage(serverParams, serverEnigma);
-
-        BloomFilter<byte[]> bloomFilter = serverStorage.loadExistedStorage();
+        final ServerStripedStorage serverStorage = ServerStripedStorage.newServerStripedStorage(serverParams, serverEnigma);
+
+        serverStorage.loadExistedStorage();
+
+        //snapshot must not be written before the index is loaded
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    serverStorage.writeSnapshot();
+                } catch (IOException ioe) {
+                    log.error("Can`t write index snapshot on shutdown:", ioe);
+                }
+            }
+        });
         
         ReplicationClient replicationClient = ReplicationClient.newReplicationClient(serverParams, topology);
         
-        Server server = new Server(serverParams, serverStorage, topology, bloomFilter, replicationClient);
+        Server server = new Server(serverParams, serverStorage, topology, replicationClient);
         server.start();
     }
 
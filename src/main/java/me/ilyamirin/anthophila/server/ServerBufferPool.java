@@ -0,0 +1,106 @@
+package me.ilyamirin.anthophila.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers for storage I/O. Every buffer fits a whole slot, so a chunk with its meta is
+ * written or read with one call and the JDK does not copy it through a temporary direct buffer.
+ * Pools of heap buffers of another length keep keys, chunks and responses of connections, see
+ * {@link #newServerHeapBufferPool(int, int)}.
+ *
+ * Each thread keeps a couple of released buffers for itself, the rest return to the shared slab. When
+ * both are empty a new buffer is allocated and counted as a miss, it joins the slab on release if
+ * there is room for it.
+ *
+ * @author ilyamirin
+ */
+public class ServerBufferPool {
+
+    public static final int BUFFER_LENGTH = ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH;
+    public static final int THREAD_CACHE_SIZE = 2;
+    public static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final BlockingQueue<ByteBuffer> slab;
+    private final int bufferLength;
+    private final boolean isDirect;
+
+    private final ThreadLocal<Deque<ByteBuffer>> threadCaches = new ThreadLocal<Deque<ByteBuffer>>() {
+        @Override
+        protected Deque<ByteBuffer> initialValue() {
+            return new ArrayDeque<>(THREAD_CACHE_SIZE);
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ServerBufferPool(BlockingQueue<ByteBuffer> slab, int bufferLength, boolean isDirect) {
+        this.slab = slab;
+        this.bufferLength = bufferLength;
+        this.isDirect = isDirect;
+    }
+
+    public static ServerBufferPool newServerBufferPool(int size) {
+        BlockingQueue<ByteBuffer> slab = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            slab.add(ByteBuffer.allocateDirect(BUFFER_LENGTH));
+        }
+        return new ServerBufferPool(slab, BUFFER_LENGTH, true);
+    }
+
+    /**
+     * Pool of heap buffers, its slab is filled by released buffers, so idle connections cost nothing.
+     */
+    public static ServerBufferPool newServerHeapBufferPool(int size, int bufferLength) {
+        return new ServerBufferPool(new ArrayBlockingQueue<ByteBuffer>(size), bufferLength, false);
+    }
+
+    public int getBufferLength() {
+        return bufferLength;
+    }
+
+    /**
+     * @return cleared buffer of {@link #getBufferLength()} bytes, it must be given back by {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = threadCaches.get().pollFirst();
+        if (buffer == null) {
+            buffer = slab.poll();
+        }
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return isDirect ? ByteBuffer.allocateDirect(bufferLength) : ByteBuffer.allocate(bufferLength);
+        }
+
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() != isDirect || buffer.capacity() != bufferLength) {
+            throw new IllegalArgumentException("Buffer was not acquired from the pool.");
+        }
+
+        Deque<ByteBuffer> threadCache = threadCaches.get();
+        if (threadCache.size() < THREAD_CACHE_SIZE) {
+            threadCache.addFirst(buffer);
+        } else {
+            slab.offer(buffer); //buffer is left to GC if the slab is full
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,372 @@
+package me.ilyamirin.anthophila.server;
+
+import lombok.Data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte bounded cache of plain chunks which are pulled often, so they are neither read from the disk nor
+ * decrypted again. Chunks are kept out of the heap in blocks of slabs which are allocated once and reused,
+ * a chunk takes as many blocks as it needs and they need not be adjacent.
+ *
+ * Keys are spread over segments, each of them has its own lock, budget, slabs and sketch, so hits of
+ * different keys copy their chunks in parallel.
+ *
+ * Eviction is a segmented LRU: a new chunk comes to the probation segment and moves to the protected one
+ * on the second hit. Admission is TinyLFU: when the cache is full a new chunk takes the room only if it
+ * was asked more often than the chunk it would evict, so one pass over cold chunks can`t wash hot ones out.
+ * Frequencies are kept by a count-min sketch which is halved from time to time to forget old popularity.
+ *
+ * A cached chunk remembers its position in the storage file and is served only for the same position,
+ * a copy of another position is dropped as soon as it is met. The storage invalidates a key whenever it
+ * is deleted or indexed again.
+ *
+ * @author ilyamirin
+ */
+public class ServerChunkCache {
+
+    public static final double PROTECTED_SHARE = 0.8;
+    public static final int SKETCH_DEPTH = 4;
+    public static final int MAX_FREQUENCY = 15;
+    public static final int SAMPLE_FACTOR = 10; //sketch is halved after width * factor increments
+    public static final int MAX_SEGMENTS = 16;
+    public static final int BLOCK_LENGTH = 1024;
+    public static final int BLOCKS_PER_SLAB = 1024; //slab of 1 MB
+
+    @Data
+    public static class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long rejections; //chunks which were not admitted
+        private final long bytes;
+        private final int chunks;
+
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    private static class Entry {
+
+        private final ByteBuffer key; //own copy of the key, it stays the map key when the entry is promoted
+        private final long chunkPosition;
+        private final int chunkLength;
+        private final int[] blocks;
+
+        private Entry(ByteBuffer key, long chunkPosition, int chunkLength, int[] blocks) {
+            this.key = key;
+            this.chunkPosition = chunkPosition;
+            this.chunkLength = chunkLength;
+            this.blocks = blocks;
+        }
+    }
+
+    private static class Segment {
+
+        private final int maxBlocks;
+        private final int maxProtectedBlocks;
+        private final LinkedHashMap<ByteBuffer, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<ByteBuffer, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private int probationBlocks;
+        private int protectedBlocks;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final int[] freeBlocks;
+        private int freeBlocksCount;
+        private int allocatedBlocks;
+
+        private final int[][] sketch;
+        private final int sketchMask;
+        private long increments;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long rejections;
+
+        private Segment(int maxBlocks, int sketchWidth) {
+            this.maxBlocks = maxBlocks;
+            this.maxProtectedBlocks = (int) (maxBlocks * PROTECTED_SHARE);
+            this.freeBlocks = new int[maxBlocks];
+            this.sketch = new int[SKETCH_DEPTH][sketchWidth];
+            this.sketchMask = sketchWidth - 1;
+        }
+
+        private int sketchIndex(ByteBuffer key, int row) {
+            long hash = key.getLong(0) + row * key.getLong(8); //md5 bits are uniform, so rows need no other hashing
+            return (int) (hash ^ (hash >>> 32)) & sketchMask;
+        }
+
+        private int frequency(ByteBuffer key) {
+            int frequency = MAX_FREQUENCY;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                frequency = Math.min(frequency, sketch[row][sketchIndex(key, row)]);
+            }
+            return frequency;
+        }
+
+        private void increment(ByteBuffer key) {
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int index = sketchIndex(key, row);
+                if (sketch[row][index] < MAX_FREQUENCY) {
+                    sketch[row][index]++;
+                }
+            }
+
+            if (++increments >= (long) sketch[0].length * SAMPLE_FACTOR) {
+                for (int[] row : sketch) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>>= 1;
+                    }
+                }
+                increments /= 2;
+            }
+        }
+
+        /**
+         * @return blocks taken from the free ones or from a new slab, the caller has already made room for them.
+         */
+        private int[] allocate(int count) {
+            int[] blocks = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (freeBlocksCount > 0) {
+                    blocks[i] = freeBlocks[--freeBlocksCount];
+                    continue;
+                }
+                if (allocatedBlocks % BLOCKS_PER_SLAB == 0) {
+                    int slabBlocks = Math.min(BLOCKS_PER_SLAB, maxBlocks - allocatedBlocks);
+                    slabs.add(ByteBuffer.allocateDirect(slabBlocks * BLOCK_LENGTH));
+                }
+                blocks[i] = allocatedBlocks++;
+            }
+            return blocks;
+        }
+
+        private void free(Entry entry) {
+            for (int block : entry.blocks) {
+                freeBlocks[freeBlocksCount++] = block;
+            }
+        }
+
+        private ByteBuffer block(int block, int length) {
+            ByteBuffer slab = slabs.get(block / BLOCKS_PER_SLAB).duplicate();
+            int offset = block % BLOCKS_PER_SLAB * BLOCK_LENGTH;
+            slab.limit(offset + length).position(offset);
+            return slab;
+        }
+
+        private void write(Entry entry, ByteBuffer chunk) {
+            ByteBuffer source = chunk.duplicate();
+            for (int block : entry.blocks) {
+                int length = Math.min(BLOCK_LENGTH, source.remaining());
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + length);
+                block(block, length).put(part);
+                source.position(source.position() + length);
+            }
+        }
+
+        private ByteBuffer read(Entry entry, ServerBufferPool chunkPool) {
+            ByteBuffer chunk = ServerStorage.newChunk(chunkPool, entry.chunkLength);
+            for (int block : entry.blocks) {
+                chunk.put(block(block, Math.min(BLOCK_LENGTH, chunk.remaining())));
+            }
+            chunk.rewind();
+            return chunk;
+        }
+
+        private synchronized ByteBuffer get(ByteBuffer key, long chunkPosition, ServerBufferPool chunkPool) {
+            ByteBuffer cacheKey = ByteBuffer.wrap(key.array());
+            increment(cacheKey);
+
+            Entry entry = protectedSegment.get(cacheKey);
+            if (entry == null) {
+                entry = probation.get(cacheKey);
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            if (entry.chunkPosition != chunkPosition) {
+                remove(cacheKey); //copy of a chunk which was moved or written again
+                misses++;
+                return null;
+            }
+
+            if (probation.remove(cacheKey) != null) {
+                probationBlocks -= entry.blocks.length;
+                promote(entry);
+            }
+            hits++;
+            return read(entry, chunkPool);
+        }
+
+        private void promote(Entry entry) {
+            protectedSegment.put(entry.key, entry);
+            protectedBlocks += entry.blocks.length;
+
+            Iterator<Map.Entry<ByteBuffer, Entry>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedBlocks > maxProtectedBlocks && eldest.hasNext()) {
+                Map.Entry<ByteBuffer, Entry> demoted = eldest.next();
+                eldest.remove();
+                protectedBlocks -= demoted.getValue().blocks.length;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBlocks += demoted.getValue().blocks.length;
+            }
+        }
+
+        private synchronized void put(ByteBuffer key, long chunkPosition, ByteBuffer chunk) {
+            ByteBuffer cacheKey = ByteBuffer.wrap(key.array().clone());
+            int blocks = (chunk.remaining() + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+            if (blocks > maxBlocks - maxProtectedBlocks) {
+                return;
+            }
+
+            Entry cached = protectedSegment.containsKey(cacheKey) ? protectedSegment.get(cacheKey) : probation.get(cacheKey);
+            if (cached != null && cached.chunkPosition == chunkPosition) {
+                return;
+            } else if (cached != null) {
+                remove(cacheKey); //copy of a chunk which was moved or written again
+            }
+
+            if (probationBlocks + protectedBlocks + blocks > maxBlocks) {
+                Map.Entry<ByteBuffer, Entry> victim = eldest();
+                if (victim != null && frequency(cacheKey) <= frequency(victim.getKey())) {
+                    rejections++;
+                    return;
+                }
+                while (probationBlocks + protectedBlocks + blocks > maxBlocks) {
+                    evict();
+                }
+            }
+
+            Entry entry = new Entry(cacheKey, chunkPosition, chunk.remaining(), allocate(blocks));
+            write(entry, chunk);
+            probation.put(cacheKey, entry);
+            probationBlocks += blocks;
+        }
+
+        private Map.Entry<ByteBuffer, Entry> eldest() {
+            LinkedHashMap<ByteBuffer, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            return segment.isEmpty() ? null : segment.entrySet().iterator().next();
+        }
+
+        private void evict() {
+            boolean isProbation = !probation.isEmpty();
+            Iterator<Map.Entry<ByteBuffer, Entry>> eldest = (isProbation ? probation : protectedSegment).entrySet().iterator();
+            Entry entry = eldest.next().getValue();
+            eldest.remove();
+            if (isProbation) {
+                probationBlocks -= entry.blocks.length;
+            } else {
+                protectedBlocks -= entry.blocks.length;
+            }
+            free(entry);
+            evictions++;
+        }
+
+        private void remove(ByteBuffer cacheKey) {
+            Entry entry = probation.remove(cacheKey);
+            if (entry != null) {
+                probationBlocks -= entry.blocks.length;
+                free(entry);
+            }
+            entry = protectedSegment.remove(cacheKey);
+            if (entry != null) {
+                protectedBlocks -= entry.blocks.length;
+                free(entry);
+            }
+        }
+
+        private synchronized void invalidate(ByteBuffer key) {
+            remove(ByteBuffer.wrap(key.array()));
+        }
+    }
+
+    private final Segment[] segments;
+
+    private ServerChunkCache(Segment[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @param maxBytes budget of cached chunks, their keys and headers are not counted. Every segment gets
+     * its share of the budget, so there are as many segments as can take the largest chunk on probation.
+     */
+    public static ServerChunkCache newServerChunkCache(long maxBytes) {
+        int segmentsCount = 1;
+        while (segmentsCount < MAX_SEGMENTS
+                && maxBytes / (segmentsCount * 2) * (1 - PROTECTED_SHARE) >= ServerStorage.CHUNK_LENGTH) {
+            segmentsCount *= 2;
+        }
+
+        long segmentBytes = maxBytes / segmentsCount;
+        long expectedChunks = Math.max(1, segmentBytes / ServerSlotClass.SMALL.getChunkCapacity());
+        int width = 1024;
+        while (width < expectedChunks && width < (1 << 24)) {
+            width <<= 1;
+        }
+
+        Segment[] segments = new Segment[segmentsCount];
+        for (int i = 0; i < segmentsCount; i++) {
+            segments[i] = new Segment((int) Math.min(Integer.MAX_VALUE, segmentBytes / BLOCK_LENGTH), width);
+        }
+        return new ServerChunkCache(segments);
+    }
+
+    /**
+     * Sketch rows use both longs of a key, so the segment is chosen by the last int.
+     */
+    private Segment segmentOf(ByteBuffer key) {
+        return segments[(key.getInt(12) & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * @return copy of the chunk cached for the position or null.
+     */
+    public ByteBuffer get(ByteBuffer key, long chunkPosition) {
+        return get(key, chunkPosition, null);
+    }
+
+    /**
+     * @param chunkPool pool of heap chunks the copy is put into or null for a chunk of its own.
+     */
+    public ByteBuffer get(ByteBuffer key, long chunkPosition, ServerBufferPool chunkPool) {
+        return segmentOf(key).get(key, chunkPosition, chunkPool);
+    }
+
+    /**
+     * Offers a chunk which was read from the position, it is cached if it wins against the chunk which
+     * would be evicted for it. A copy of another position is replaced.
+     */
+    public void put(ByteBuffer key, long chunkPosition, ByteBuffer chunk) {
+        segmentOf(key).put(key, chunkPosition, chunk);
+    }
+
+    public void invalidate(ByteBuffer key) {
+        segmentOf(key).invalidate(key);
+    }
+
+    public Stats getStats() {
+        long hits = 0, misses = 0, evictions = 0, rejections = 0, bytes = 0;
+        int chunks = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                rejections += segment.rejections;
+                bytes += (long) (segment.probationBlocks + segment.protectedBlocks) * BLOCK_LENGTH;
+                chunks += segment.probation.size() + segment.protectedSegment.size();
+            }
+        }
+        return new Stats(hits, misses, evictions, rejections, bytes, chunks);
+    }
+}
@@ -0,0 +1,71 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shrinks the storage file after deletes. Every pass moves live chunks from pages at the end of the file
+ * into free slots below them at a limited rate and truncates the file by pages which became empty, see
+ * {@link ServerStorage#compact(RateLimiter)}.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerCompactor implements Runnable {
+
+    public static final int PASS_INTERVAL = 60; //seconds between passes
+
+    private final ServerStorage storage;
+    private final RateLimiter rateLimiter;
+
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+
+    private ServerCompactor(ServerStorage storage, RateLimiter rateLimiter) {
+        this.storage = storage;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param bytesPerSecond bytes read and written by moves of chunks.
+     */
+    public static ServerCompactor newServerCompactor(ServerStorage storage, long bytesPerSecond) {
+        return new ServerCompactor(storage, RateLimiter.create(bytesPerSecond));
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "storage-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                compact();
+                TimeUnit.SECONDS.sleep(PASS_INTERVAL);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioe) {
+                log.error("Can`t compact storage:", ioe);
+            }
+        }//while
+    }
+
+    /**
+     * @return number of bytes the file has shrunk by.
+     */
+    public long compact() throws IOException {
+        long reclaimed = storage.compact(rateLimiter);
+        bytesReclaimed.addAndGet(reclaimed);
+        return reclaimed;
+    }
+}
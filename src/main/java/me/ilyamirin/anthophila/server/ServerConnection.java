@@ -0,0 +1,393 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.client.Client;
+
+/**
+ * State machine of one non-blocking connection owned by a {@link ServerEventLoop}. Incoming bytes
+ * are framed into operations without blocking, responses are queued and flushed when the socket
+ * is writable. While responses are pending the connection stops reading, so a slow client can`t
+ * make the server buffer unbounded amount of responses.
+ *
+ * Operations of sequential connections are executed right in the event loop. Operations of pipelined
+ * connections go to the operations executor and their responses come back through
+ * {@link ServerEventLoop#schedule(ServerConnection)} in order of completion. Writes of sequential
+ * connections waiting for a group commit go to the executor too, meanwhile the connection is not read.
+ * Pipelined pulls of a storage with I/O threads take no thread of the executor, their responses come back
+ * when chunks are read. Manifest pulls of sequential connections are streamed, every response is queued
+ * as soon as its chunk is read.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerConnection {
+
+    public static final int READ_BUFFER_LENGTH = 16 * 1024;
+
+    private enum State {
+
+        OPERATION, REQUEST_ID, BATCH_SIZE, KEY, CHUNK_LENGTH, CHUNK, CONNECTION_TYPE, PROTOCOL_VERSION
+    }
+
+    private final ServerOperations operations;
+    private final ExecutorService executor;
+    private final ServerEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey selectionKey;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_LENGTH);
+    private final ByteBuffer requestId = ByteBuffer.allocate(4);
+    private final ByteBuffer batchSize = ByteBuffer.allocate(4);
+    private final ByteBuffer chunkLength = ByteBuffer.allocate(4);
+    private final ByteBuffer connectionParams = ByteBuffer.allocate(1);
+    private final ByteBuffer protocolParams = ByteBuffer.allocate(ServerOperations.PROTOCOL_VERSION_REQUEST_LENGTH);
+    private final Queue<ByteBuffer[]> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger operationsInFlight = new AtomicInteger();
+
+    private State state = State.OPERATION;
+    private byte operationType;
+    private int keysLeft;
+    private List<ByteBuffer> keys;
+    private List<ByteBuffer> chunks;
+    private ByteBuffer key;
+    private ByteBuffer chunk;
+    private byte connectionType = Client.ConnectionType.OTHERS;
+    private byte protocolVersion = Server.ProtocolVersions.SEQUENTIAL;
+
+    public ServerConnection(ServerOperations operations, ExecutorService executor, ServerEventLoop eventLoop,
+            SocketChannel channel, SelectionKey selectionKey) {
+        this.operations = operations;
+        this.executor = executor;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.selectionKey = selectionKey;
+    }
+
+    public void onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+
+        decodeBuffered();
+        flush();
+    }
+
+    public void onWritable() throws IOException {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        if (readBuffer.position() > 0) {
+            //frames which came behind a sequential operation are decoded once it is answered
+            decodeBuffered();
+        }
+        flush();
+    }
+
+    private void decodeBuffered() throws IOException {
+        //everything what was read is decoded, so a pipelined client may exceed the in-flight limit by one buffer of frames
+        readBuffer.flip();
+        while (decode()) {
+        }
+        readBuffer.compact();
+    }
+
+    public void close() {
+        selectionKey.cancel();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            log.warn("Can`t close connection: {}", ioe.getMessage());
+        }
+    }
+
+    private void fill(ByteBuffer target) {
+        int length = Math.min(target.remaining(), readBuffer.remaining());
+        ByteBuffer part = readBuffer.duplicate();
+        part.limit(part.position() + length);
+        target.put(part);
+        readBuffer.position(readBuffer.position() + length);
+    }
+
+    private void startKey() {
+        key = operations.newKey();
+        state = State.KEY;
+    }
+
+    private void startKeys() {
+        if (ServerOperations.isBatchOperation(operationType)) {
+            batchSize.clear();
+            state = State.BATCH_SIZE;
+        } else {
+            keysLeft = 1;
+            startKey();
+        }
+    }
+
+    private void finishKey() throws IOException {
+        keys.add(key);
+        if (chunks != null) {
+            chunks.add(chunk);
+        }
+
+        if (--keysLeft > 0) {
+            startKey();
+        } else {
+            execute();
+        }
+    }
+
+    /**
+     * Consumes buffered bytes of the current frame.
+     *
+     * @return true if the state machine moved forward and it makes sense to call it again.
+     */
+    private boolean decode() throws IOException {
+        switch (state) {
+            case OPERATION:
+                if (!readBuffer.hasRemaining()) {
+                    return false;
+                }
+                if (protocolVersion != Server.ProtocolVersions.PIPELINED && operationsInFlight.get() > 0) {
+                    return false;
+                }
+                operationType = readBuffer.get();
+                if (ServerOperations.isKeyOperation(operationType) || ServerOperations.isBatchOperation(operationType)) {
+                    keys = new ArrayList<>();
+                    chunks = ServerOperations.isCarryingChunks(operationType) ? new ArrayList<ByteBuffer>() : null;
+                    if (protocolVersion == Server.ProtocolVersions.PIPELINED) {
+                        requestId.clear();
+                        state = State.REQUEST_ID;
+                    } else {
+                        startKeys();
+                    }
+                } else if (operationType == Server.OperationTypes.SET_CONNECTION_TYPE) {
+                    connectionParams.clear();
+                    state = State.CONNECTION_TYPE;
+                } else if (operationType == Server.OperationTypes.SET_PROTOCOL_VERSION) {
+                    protocolParams.clear();
+                    state = State.PROTOCOL_VERSION;
+                } else {
+                    log.warn("Unknown operation type {}", operationType);
+                }
+                return true;
+
+            case REQUEST_ID:
+                fill(requestId);
+                if (requestId.hasRemaining()) {
+                    return false;
+                }
+                startKeys();
+                return true;
+
+            case BATCH_SIZE:
+                fill(batchSize);
+                if (batchSize.hasRemaining()) {
+                    return false;
+                }
+                keysLeft = ServerOperations.checkBatchSize(batchSize.getInt(0));
+                if (keysLeft > 0) {
+                    startKey();
+                } else {
+                    execute();
+                }
+                return true;
+
+            case KEY:
+                fill(key);
+                if (key.hasRemaining()) {
+                    return false;
+                }
+                if (chunks != null) {
+                    chunkLength.clear();
+                    state = State.CHUNK_LENGTH;
+                } else {
+                    finishKey();
+                }
+                return true;
+
+            case CHUNK_LENGTH:
+                fill(chunkLength);
+                if (chunkLength.hasRemaining()) {
+                    return false;
+                }
+                if (chunkLength.getInt(0) < 0) {
+                    throw new IOException("Wrong chunk length " + chunkLength.getInt(0));
+                }
+                chunk = operations.newChunk(chunkLength.getInt(0));
+                state = State.CHUNK;
+                return true;
+
+            case CHUNK:
+                fill(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+                finishKey();
+                return true;
+
+            case CONNECTION_TYPE:
+                fill(connectionParams);
+                if (connectionParams.hasRemaining()) {
+                    return false;
+                }
+                connectionType = connectionParams.get(0);
+                responses.add(new ByteBuffer[]{operations.setConnectionType()});
+                state = State.OPERATION;
+                return true;
+
+            case PROTOCOL_VERSION:
+                fill(protocolParams);
+                if (protocolParams.hasRemaining()) {
+                    return false;
+                }
+                protocolVersion = ServerOperations.negotiateProtocolVersion(protocolParams);
+                responses.add(new ByteBuffer[]{operations.setProtocolVersion(protocolVersion)});
+                state = State.OPERATION;
+                return true;
+
+            default:
+                throw new IllegalStateException("Unknown connection state " + state);
+        }
+    }
+
+    /**
+     * Hands the operation over, so the event loop only decodes frames and writes responses. Storage reads,
+     * appends and round trips to replicas are done by io threads or by the executor.
+     */
+    private void execute() {
+        ByteBuffer prefix = protocolVersion == Server.ProtocolVersions.PIPELINED
+                ? ByteBuffer.allocate(4).putInt(0, requestId.getInt(0)) : null;
+
+        if (operationType == Server.OperationTypes.PULLING && operations.isPullAsync()) {
+            respondLater(prefix, operations.pullAsync(keys.get(0)), keys);
+        } else if (operationType == Server.OperationTypes.MANIFEST_PULLING && prefix == null) {
+            streamLater(keys);
+        } else if (operationType == Server.OperationTypes.MANIFEST_PULLING && operations.isPullAsync()) {
+            respondLater(prefix, operations.newManifestPull(keys).collect(), keys);
+        } else {
+            executeLater(prefix, operationType, keys, chunks);
+        }
+
+        keys = null;
+        chunks = null;
+        key = null;
+        chunk = null;
+        state = State.OPERATION;
+    }
+
+    /**
+     * @param prefix request id of pipelined connections or null.
+     */
+    private void executeLater(final ByteBuffer prefix, final byte operationType, final List<ByteBuffer> keys, final List<ByteBuffer> chunks) {
+        operationsInFlight.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer response = operations.executeOrFail(operationType, keys, chunks, connectionType);
+                responses.add(prefix == null ? new ByteBuffer[]{response} : new ByteBuffer[]{prefix, response});
+                operationsInFlight.decrementAndGet();
+                eventLoop.schedule(ServerConnection.this);
+            }
+        });
+    }
+
+    /**
+     * @param response future which never fails, see {@link ServerOperations#pullAsync(ByteBuffer)}.
+     * @param keys keys of the pull, they are recycled once it is answered.
+     */
+    private void respondLater(final ByteBuffer prefix, final ListenableFuture<ByteBuffer> response, final List<ByteBuffer> keys) {
+        operationsInFlight.incrementAndGet();
+        response.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer result = Futures.getUnchecked(response);
+                operations.recycle(keys, null);
+                responses.add(prefix == null ? new ByteBuffer[]{result} : new ByteBuffer[]{prefix, result});
+                operationsInFlight.decrementAndGet();
+                eventLoop.schedule(ServerConnection.this);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Streams the manifest pull of a sequential connection, its first reads are started by the executor
+     * unless pulls go through io threads.
+     */
+    private void streamLater(final List<ByteBuffer> keys) {
+        operationsInFlight.incrementAndGet();
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                ServerManifestPull pull = operations.newManifestPull(keys);
+                responses.add(new ByteBuffer[]{ServerManifestPull.header(pull.size())});
+                eventLoop.schedule(ServerConnection.this);
+                streamLater(pull, 0, keys);
+            }
+        };
+        if (operations.isPullAsync()) {
+            start.run();
+        } else {
+            executor.execute(start);
+        }
+    }
+
+    /**
+     * Queues responses of the manifest pull one by one in order of keys, the connection is not read meanwhile.
+     */
+    private void streamLater(final ServerManifestPull pull, final int index, final List<ByteBuffer> keys) {
+        if (index == pull.size()) {
+            operations.recycle(keys, null);
+            operationsInFlight.decrementAndGet();
+            eventLoop.schedule(this);
+            return;
+        }
+
+        final ListenableFuture<ByteBuffer> response = pull.take(index);
+        response.addListener(new Runnable() {
+            @Override
+            public void run() {
+                responses.add(new ByteBuffer[]{Futures.getUnchecked(response)});
+                eventLoop.schedule(ServerConnection.this);
+                streamLater(pull, index + 1, keys);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void flush() throws IOException {
+        while (!responses.isEmpty()) {
+            ByteBuffer[] response = responses.peek();
+            channel.write(response);
+            if (response[response.length - 1].hasRemaining()) {
+                break;
+            }
+            responses.poll();
+            operations.recycle(response[response.length - 1]);
+        }
+
+        if (selectionKey.isValid()) {
+            int interestOps = 0;
+            int maxOperationsInFlight = protocolVersion == Server.ProtocolVersions.PIPELINED ? operations.maxOperationsInFlight() : 1;
+            if (responses.isEmpty() && operationsInFlight.get() < maxOperationsInFlight) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            if (!responses.isEmpty()) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+            selectionKey.interestOps(interestOps);
+        }
+    }
+}
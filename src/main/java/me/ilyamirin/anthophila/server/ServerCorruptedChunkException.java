@@ -0,0 +1,15 @@
+package me.ilyamirin.anthophila.server;
+
+import java.io.IOException;
+
+/**
+ * Chunk read from the storage does not match the checksum of its slot.
+ *
+ * @author ilyamirin
+ */
+public class ServerCorruptedChunkException extends IOException {
+
+    public ServerCorruptedChunkException(long chunkPosition) {
+        super("Chunk at " + chunkPosition + " is corrupted.");
+    }
+}
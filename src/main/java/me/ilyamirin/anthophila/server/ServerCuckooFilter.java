@@ -0,0 +1,223 @@
+package me.ilyamirin.anthophila.server;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cuckoo filter of stored keys which, unlike a Bloom filter, forgets deleted keys. Every key has a 16 bit
+ * fingerprint in one of two buckets of {@link #BUCKET_SIZE} entries. Keys are md5 hashes, so the bucket
+ * and the fingerprint are taken right from key bits.
+ *
+ * A key which can`t be placed even after {@link #MAX_KICKS} relocations goes to a small overflow set, so
+ * the filter never loses a key. It can`t grow by itself, fingerprints do not keep enough bits of keys,
+ * so the owner builds a bigger one from its index when {@link #isOverloaded()}. Every key must be put once
+ * and removed only if it was put.
+ *
+ * Writes are serialized, {@link #mightContain(ByteBuffer)} takes no lock. A bucket is one long, so it is read
+ * at once, and relocations make the stamp odd while they move entries: a read which missed during one
+ * is repeated under the lock.
+ *
+ * @author ilyamirin
+ */
+public class ServerCuckooFilter {
+
+    public static final int BUCKET_SIZE = 4;
+    public static final int FINGERPRINT_BITS = 16; //BUCKET_SIZE fingerprints fill a long
+    public static final int MAX_KICKS = 500;
+    public static final double MAX_LOAD_FACTOR = 0.9;
+    public static final int MIN_BUCKETS = 1024;
+
+    private static final long FINGERPRINT_MASK = (1L << FINGERPRINT_BITS) - 1;
+
+    private final AtomicLongArray buckets; //fingerprints of a bucket, 0 is an empty entry
+    private final int bucketMask;
+    private final Set<ByteBuffer> overflow = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    private volatile long stamp; //odd while a relocation moves entries
+    private long size;
+
+    private ServerCuckooFilter(int buckets) {
+        this.buckets = new AtomicLongArray(buckets);
+        this.bucketMask = buckets - 1;
+    }
+
+    /**
+     * @return filter which holds the expected number of keys under {@link #MAX_LOAD_FACTOR}.
+     */
+    public static ServerCuckooFilter newServerCuckooFilter(long expectedKeys) {
+        long buckets = (long) Math.ceil(expectedKeys / (BUCKET_SIZE * MAX_LOAD_FACTOR));
+        int powerOfTwo = MIN_BUCKETS;
+        while (powerOfTwo < buckets && powerOfTwo < (1 << 28)) {
+            powerOfTwo <<= 1;
+        }
+        return new ServerCuckooFilter(powerOfTwo);
+    }
+
+    private static short fingerprint(ByteBuffer key) {
+        short fingerprint = (short) (key.getLong(8) >>> (64 - FINGERPRINT_BITS));
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int bucket(ByteBuffer key) {
+        return (int) key.getLong(8) & bucketMask;
+    }
+
+    private int alternate(int bucket, short fingerprint) {
+        return (bucket ^ (fingerprint * 0x5bd1e995)) & bucketMask; //xor keeps it symmetric
+    }
+
+    private static short fingerprint(long entries, int i) {
+        return (short) (entries >>> (i * FINGERPRINT_BITS));
+    }
+
+    /**
+     * @param entry number of the bucket times {@link #BUCKET_SIZE} plus number of the entry in the bucket.
+     */
+    private short get(int entry) {
+        return fingerprint(buckets.get(entry / BUCKET_SIZE), entry % BUCKET_SIZE);
+    }
+
+    private void set(int entry, short fingerprint) {
+        int bucket = entry / BUCKET_SIZE;
+        int shift = entry % BUCKET_SIZE * FINGERPRINT_BITS;
+        buckets.set(bucket, buckets.get(bucket) & ~(FINGERPRINT_MASK << shift) | (fingerprint & FINGERPRINT_MASK) << shift);
+    }
+
+    private int find(int bucket, short fingerprint) {
+        long entries = buckets.get(bucket);
+        for (int i = 0; i < BUCKET_SIZE; i++) {
+            if (fingerprint(entries, i) == fingerprint) {
+                return bucket * BUCKET_SIZE + i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean contains(int bucket, short fingerprint) {
+        return find(bucket, fingerprint) >= 0;
+    }
+
+    private boolean add(int bucket, short fingerprint) {
+        int entry = find(bucket, (short) 0);
+        if (entry >= 0) {
+            set(entry, fingerprint);
+        }
+        return entry >= 0;
+    }
+
+    private boolean delete(int bucket, short fingerprint) {
+        int entry = find(bucket, fingerprint);
+        if (entry >= 0) {
+            set(entry, (short) 0);
+        }
+        return entry >= 0;
+    }
+
+    private boolean mightContain(ByteBuffer key, short fingerprint, int bucket) {
+        return contains(bucket, fingerprint) || contains(alternate(bucket, fingerprint), fingerprint)
+                || (!overflow.isEmpty() && overflow.contains(ByteBuffer.wrap(key.array())));
+    }
+
+    public boolean mightContain(ByteBuffer key) {
+        short fingerprint = fingerprint(key);
+        int bucket = bucket(key);
+        long before = stamp;
+        if (mightContain(key, fingerprint, bucket)) {
+            return true;
+        }
+        if ((before & 1) == 0 && stamp == before) {
+            return false;
+        }
+        synchronized (this) {
+            return mightContain(key, fingerprint, bucket);
+        }
+    }
+
+    public synchronized void put(ByteBuffer key) {
+        size++;
+        short fingerprint = fingerprint(key);
+        int bucket = bucket(key);
+        if (add(bucket, fingerprint) || add(alternate(bucket, fingerprint), fingerprint) || relocate(bucket, fingerprint)) {
+            return;
+        }
+        overflow.add(ByteBuffer.wrap(key.array().clone())); //the key buffer may be reused by its caller
+    }
+
+    /**
+     * Kicks entries to their alternate buckets to free a room, every kick is undone if there is no room.
+     */
+    private boolean relocate(int bucket, short fingerprint) {
+        stamp++;
+        try {
+            int[] kicked = new int[MAX_KICKS];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int kick = 0; kick < MAX_KICKS; kick++) {
+                int entry = bucket * BUCKET_SIZE + random.nextInt(BUCKET_SIZE);
+                short victim = get(entry);
+                set(entry, fingerprint);
+                kicked[kick] = entry;
+
+                fingerprint = victim;
+                bucket = alternate(bucket, fingerprint);
+                if (add(bucket, fingerprint)) {
+                    return true;
+                }
+            }//for
+
+            for (int kick = MAX_KICKS - 1; kick >= 0; kick--) {
+                short placed = get(kicked[kick]);
+                set(kicked[kick], fingerprint);
+                fingerprint = placed;
+            }//for
+            return false;
+        } finally {
+            stamp++;
+        }
+    }
+
+    /**
+     * @return false if the key was not found, it means it was never put.
+     */
+    public synchronized boolean remove(ByteBuffer key) {
+        if (!overflow.isEmpty() && overflow.remove(ByteBuffer.wrap(key.array()))) {
+            size--;
+            return true;
+        }
+
+        short fingerprint = fingerprint(key);
+        int bucket = bucket(key);
+        if (delete(bucket, fingerprint) || delete(alternate(bucket, fingerprint), fingerprint)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long capacity() {
+        return (long) buckets.length() * BUCKET_SIZE;
+    }
+
+    public synchronized double getLoadFactor() {
+        return (double) size / capacity();
+    }
+
+    public synchronized boolean isOverloaded() {
+        return !overflow.isEmpty() || getLoadFactor() > MAX_LOAD_FACTOR;
+    }
+
+    /**
+     * @return estimated probability that an absent key is reported as present: a lookup compares the
+     * fingerprint with both buckets.
+     */
+    public synchronized double getFalsePositiveRate() {
+        double entries = 2.0 * BUCKET_SIZE * getLoadFactor();
+        return 1 - Math.pow(1 - 1.0 / ((1 << FINGERPRINT_BITS) - 1), entries);
+    }
+}
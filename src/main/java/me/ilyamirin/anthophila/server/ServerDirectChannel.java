@@ -0,0 +1,320 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.Striped;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Storage file opened for direct I/O, so chunks bypass the page cache and a scan or a bulk read does not
+ * evict hot pages of other files. Direct I/O takes only whole blocks at aligned offsets from aligned
+ * buffers, so every read and write goes through a per thread aligned buffer covering whole blocks. Blocks
+ * at the edges of a write are read first and written back with the new bytes, writers of one block are
+ * serialized by striped locks. The file has the length of its last written byte, blocks written beyond
+ * it are cut off on close.
+ *
+ * Direct I/O option and aligned buffers come with Java 10, on older ones the file is opened as usual.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerDirectChannel extends FileChannel {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int BLOCK_LOCK_STRIPES = 1024;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final Method alignedSlice; //null if buffers can`t be aligned, it is fine for ordinary files only
+    private final Striped<Lock> blockLocks = Striped.lock(BLOCK_LOCK_STRIPES);
+    private final AtomicLong length;
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+    private volatile long position;
+
+    private ServerDirectChannel(FileChannel channel, int blockSize, Method alignedSlice) throws IOException {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.alignedSlice = alignedSlice;
+        this.length = new AtomicLong(channel.size());
+    }
+
+    /**
+     * @return channel for direct I/O or an ordinary one if the JVM can`t do direct I/O.
+     */
+    public static FileChannel open(Path path) throws IOException {
+        OpenOption direct;
+        Method alignedSlice;
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            direct = (OpenOption) options.getField("DIRECT").get(null);
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (ReflectiveOperationException roe) {
+            log.warn("Direct I/O needs Java 10 or later, {} is opened as usual.", path);
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, direct);
+        int blockSize = blockSize(Files.getFileStore(path));
+        log.info("{} is opened for direct I/O with {} bytes blocks.", path, blockSize);
+        return new ServerDirectChannel(channel, blockSize, alignedSlice);
+    }
+
+    /**
+     * Wraps an ordinary channel, so aligned reads and writes can be checked without direct I/O.
+     */
+    public static ServerDirectChannel newServerDirectChannel(FileChannel channel, int blockSize) throws IOException {
+        return new ServerDirectChannel(channel, blockSize, null);
+    }
+
+    private static int blockSize(FileStore store) {
+        try {
+            return (int) (long) (Long) FileStore.class.getMethod("getBlockSize").invoke(store);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    private long alignDown(long position) {
+        return position / blockSize * blockSize;
+    }
+
+    private long alignUp(long position) {
+        return (position + blockSize - 1) / blockSize * blockSize;
+    }
+
+    /**
+     * @return cleared aligned buffer of the thread with the length.
+     */
+    private ByteBuffer buffer(int length) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() < length) {
+            int capacity = (int) alignUp(Math.max(length, ServerSlotClass.PAGE_LENGTH + 2 * blockSize));
+            buffer = ByteBuffer.allocateDirect(capacity + blockSize);
+            if (alignedSlice != null) {
+                try {
+                    buffer = (ByteBuffer) alignedSlice.invoke(buffer, blockSize);
+                } catch (ReflectiveOperationException roe) {
+                    throw new IOException("Can`t align buffer: " + roe.getMessage(), roe);
+                }
+            }
+            buffers.set(buffer);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Reads whole blocks into the buffer by one read, a short read means the end of the file and the rest
+     * is zeroed. Another read from the unaligned position of a short one would fail anyway.
+     */
+    private void readBlocks(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        channel.read(buffer, position);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        buffer.position(start);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        long end = Math.min(length.get(), position + dst.remaining());
+        if (position >= end) {
+            return dst.hasRemaining() ? -1 : 0;
+        }
+
+        long start = alignDown(position);
+        ByteBuffer buffer = buffer((int) (alignUp(end) - start));
+        readBlocks(buffer, start);
+        buffer.position((int) (position - start)).limit((int) (end - start));
+        int read = buffer.remaining();
+        dst.put(buffer);
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1, position);
+    }
+
+    /**
+     * Writes sources one after another from the position with one aligned write.
+     */
+    private long write(ByteBuffer[] srcs, int offset, int count, long position) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + count; i++) {
+            written += srcs[i].remaining();
+        }
+        if (written == 0) {
+            return 0;
+        }
+
+        long start = alignDown(position);
+        long end = alignUp(position + written);
+        int first = (int) (start / blockSize % BLOCK_LOCK_STRIPES);
+        int last = (int) ((end - 1) / blockSize % BLOCK_LOCK_STRIPES);
+        Lock firstLock = blockLocks.getAt(Math.min(first, last));
+        Lock lastLock = blockLocks.getAt(Math.max(first, last));
+        firstLock.lock();
+        if (lastLock != firstLock) {
+            lastLock.lock();
+        }
+        try {
+            ByteBuffer buffer = buffer((int) (end - start));
+            if (start < position) {
+                ByteBuffer head = buffer.duplicate();
+                head.limit(blockSize);
+                readBlocks(head, start);
+            }
+            if (position + written < end && end - blockSize >= start + (start < position ? blockSize : 0)) {
+                ByteBuffer tail = buffer.duplicate();
+                tail.position((int) (end - start - blockSize));
+                readBlocks(tail, end - blockSize);
+            }
+
+            buffer.position((int) (position - start));
+            for (int i = offset; i < offset + count; i++) {
+                buffer.put(srcs[i]);
+            }
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + buffer.position());
+            }
+        } finally {
+            if (lastLock != firstLock) {
+                lastLock.unlock();
+            }
+            firstLock.unlock();
+        }
+
+        long newLength = position + written;
+        long current;
+        while ((current = length.get()) < newLength && !length.compareAndSet(current, newLength)) {
+        }
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long read = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int n = read(dsts[i]);
+            if (n < 0) {
+                return read == 0 ? -1 : read;
+            }
+            read += n;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = write(srcs, offset, length, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return length.get();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        length.set(Math.min(length.get(), size));
+        if (position > size) {
+            position = size;
+        }
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        throw new UnsupportedOperationException("Chunks of direct storage are not transferred.");
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        throw new UnsupportedOperationException("Chunks of direct storage are not transferred.");
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("Direct storage is not mapped.");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            if (channel.size() > length.get()) {
+                channel.truncate(length.get()); //padding of the last block
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package me.ilyamirin.anthophila.server;
+
+/**
+ * When acknowledged writes reach the disk.
+ *
+ * @author ilyamirin
+ */
+public enum ServerDurability {
+
+    NONE, //the page cache is flushed by OS, an acknowledged write may be lost on power failure
+    GROUP, //a write is acknowledged after a force shared by all writes of the same interval
+    WRITE //every write is forced before it is acknowledged, concurrent writes may share a force
+}
@@ -93,38 +93,115 @@ public class ServerEnigma {
         return keys;
     }
 
+    public static final int CIPHER_BLOCK_LENGTH = 4096; //staged block stays in L1 cache, so it costs no memory bandwidth
+
+    //cipher works with arrays, so bytes of direct buffers are staged here block by block
+    private static final ThreadLocal<byte[]> stagingArrays = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CIPHER_BLOCK_LENGTH];
+        }
+    };
+
+    private StreamCipher newCipher(Integer keyHash, byte[] IV) {
+        String key = keys.containsKey(keyHash) ? keys.get(keyHash) : oldKeys.get(keyHash);
+
+        CipherParameters cipherParameters = new ParametersWithIV(new KeyParameter(key.getBytes()), IV);
+
+        StreamCipher cipher = new Salsa20Engine();
+        cipher.init(true, cipherParameters);
+        return cipher;
+    }
+
     public EncryptedChunk encrypt(ByteBuffer chunk) {
         //select random key
         Integer keyHash = newKeysHashes.get(r.nextInt(newKeysHashes.size()));
-        String key = keys.get(keyHash);
 
         //generate random IV
         byte[] IV = new byte[ServerStorage.IV_LENGTH];
         r.nextBytes(IV);
 
-        CipherParameters cipherParameters = new ParametersWithIV(new KeyParameter(key.getBytes()), IV);
+        StreamCipher cipher = newCipher(keyHash, IV);
 
-        StreamCipher cipher = new Salsa20Engine();
-        cipher.init(true, cipherParameters);
-
-        byte[] result = new byte[chunk.capacity()];
-        cipher.processBytes(chunk.array(), 0, chunk.capacity(), result, 0);
+        byte[] result = new byte[chunk.limit()];
+        cipher.processBytes(chunk.array(), chunk.arrayOffset(), chunk.limit(), result, 0);
 
         return new EncryptedChunk(keyHash, IV, ByteBuffer.wrap(result));
     }
 
-    public ByteBuffer decrypt(EncryptedChunk encryptedChunk) {
-        Integer keyHash = encryptedChunk.getKeyHash();
-        String key = keys.containsKey(keyHash) ? keys.get(keyHash) : oldKeys.get(keyHash);
+    /**
+     * Puts key hash, IV and encrypted chunk right into the target buffer. The cipher writes a heap target
+     * itself and a direct one through a staged block, so the chunk is read once and the target is written
+     * once, like a plain chunk.
+     */
+    public void encrypt(ByteBuffer chunk, ByteBuffer target) {
+        Integer keyHash = newKeysHashes.get(r.nextInt(newKeysHashes.size()));
 
-        CipherParameters cipherParameters = new ParametersWithIV(new KeyParameter(key.getBytes()), encryptedChunk.getIV());
+        byte[] IV = new byte[ServerStorage.IV_LENGTH];
+        r.nextBytes(IV);
 
-        StreamCipher cipher = new Salsa20Engine();
-        cipher.init(true, cipherParameters);
+        StreamCipher cipher = newCipher(keyHash, IV);
+
+        target.putInt(keyHash);
+        target.put(IV);
+
+        byte[] source = chunk.array();
+        int sourceOffset = chunk.arrayOffset();
+        int length = chunk.limit();
+        if (target.hasArray()) {
+            cipher.processBytes(source, sourceOffset, length, target.array(), target.arrayOffset() + target.position());
+            target.position(target.position() + length);
+            return;
+        }
+
+        byte[] block = stagingArrays.get();
+        for (int offset = 0; offset < length; offset += block.length) {
+            int blockLength = Math.min(block.length, length - offset);
+            cipher.processBytes(source, sourceOffset + offset, blockLength, block, 0);
+            target.put(block, 0, blockLength);
+        }//for
+    }
+
+    public ByteBuffer decrypt(EncryptedChunk encryptedChunk) {
+        StreamCipher cipher = newCipher(encryptedChunk.getKeyHash(), encryptedChunk.getIV());
 
         byte[] result = new byte[encryptedChunk.getChunk().capacity()];
         cipher.processBytes(encryptedChunk.getChunk().array(), 0, encryptedChunk.getChunk().capacity(), result, 0);
 
         return ByteBuffer.wrap(result);
     }
+
+    /**
+     * Decrypts remaining bytes of the buffer into a chunk of its own.
+     */
+    public ByteBuffer decrypt(Integer keyHash, byte[] IV, ByteBuffer encrypted) {
+        ByteBuffer chunk = ByteBuffer.allocate(encrypted.remaining());
+        decrypt(keyHash, IV, encrypted, chunk);
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * Decrypts remaining bytes of the buffer, which may be a direct one, right into the heap target, such as
+     * a pooled chunk. Bytes of a direct buffer are copied to the target block by block and every block is
+     * decrypted in place while it is in L1 cache.
+     */
+    public void decrypt(Integer keyHash, byte[] IV, ByteBuffer encrypted, ByteBuffer target) {
+        StreamCipher cipher = newCipher(keyHash, IV);
+
+        int length = encrypted.remaining();
+        byte[] result = target.array();
+        int resultOffset = target.arrayOffset() + target.position();
+        if (encrypted.hasArray()) {
+            cipher.processBytes(encrypted.array(), encrypted.arrayOffset() + encrypted.position(), length, result, resultOffset);
+            encrypted.position(encrypted.limit());
+        } else {
+            for (int offset = resultOffset; offset < resultOffset + length; offset += CIPHER_BLOCK_LENGTH) {
+                int blockLength = Math.min(CIPHER_BLOCK_LENGTH, resultOffset + length - offset);
+                encrypted.get(result, offset, blockLength);
+                cipher.processBytes(result, offset, blockLength, result, offset);
+            }//for
+        }
+        target.position(target.position() + length);
+    }
 }
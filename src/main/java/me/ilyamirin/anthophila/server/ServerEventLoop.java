@@ -0,0 +1,112 @@
+package me.ilyamirin.anthophila.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One thread with one {@link Selector} serving many non-blocking connections. {@link Server} accepts
+ * connections and spreads them over a small fixed set of loops.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerEventLoop extends Thread {
+
+    private final ServerOperations operations;
+    private final ExecutorService executor;
+    private final Selector selector;
+    private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<ServerConnection> scheduledConnections = new ConcurrentLinkedQueue<>();
+
+    private ServerEventLoop(ServerOperations operations, ExecutorService executor, Selector selector, String name) {
+        super(name);
+        this.operations = operations;
+        this.executor = executor;
+        this.selector = selector;
+    }
+
+    public static ServerEventLoop newServerEventLoop(ServerOperations operations, ExecutorService executor, int number) throws IOException {
+        ServerEventLoop eventLoop = new ServerEventLoop(operations, executor, Selector.open(), "server-event-loop-" + number);
+        eventLoop.setDaemon(true);
+        return eventLoop;
+    }
+
+    public void register(SocketChannel channel) {
+        acceptedChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush responses of a connection. May be called from any thread.
+     */
+    public void schedule(ServerConnection connection) {
+        scheduledConnections.add(connection);
+        selector.wakeup();
+    }
+
+    private void flushScheduled() {
+        ServerConnection connection;
+        while ((connection = scheduledConnections.poll()) != null) {
+            try {
+                connection.onWritable();
+            } catch (IOException | RuntimeException e) {
+                log.error("Connection exception:", e);
+                connection.close();
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = acceptedChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey selectionKey = channel.register(selector, SelectionKey.OP_READ);
+                selectionKey.attach(new ServerConnection(operations, executor, this, channel, selectionKey));
+            } catch (IOException ioe) {
+                log.error("Can`t register connection:", ioe);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+
+                registerAccepted();
+                flushScheduled();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    iterator.remove();
+
+                    ServerConnection connection = (ServerConnection) selectionKey.attachment();
+                    try {
+                        if (selectionKey.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Connection exception:", e);
+                        connection.close();
+                    }
+                }
+            }//while
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Event loop exception:", e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Free slots of every size class, kept as chunk positions in a concurrent skip list ordered by position, so
+ * a slot is taken, freed or found by its position in O(log n). Busy slots are skipped in place, they never
+ * leave the list, so concurrent writers still see them as free.
+ *
+ * A dense storage takes free slots with the lowest offsets first, which keeps the file packed towards its
+ * head. Otherwise a cursor sweeps through the file and slots are reused in the order of positions.
+ *
+ * @author ilyamirin
+ */
+public class ServerFreeSlots {
+
+    private final Map<ServerSlotClass, ConcurrentSkipListSet<Long>> slots = new EnumMap<>(ServerSlotClass.class);
+    private final Map<ServerSlotClass, AtomicLong> cursors = new EnumMap<>(ServerSlotClass.class); //the sweep of a sparse storage goes on from here
+    private final boolean isDense;
+
+    private ServerFreeSlots(boolean isDense) {
+        this.isDense = isDense;
+        for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+            slots.put(slotClass, new ConcurrentSkipListSet<Long>());
+            cursors.put(slotClass, new AtomicLong());
+        }
+    }
+
+    public static ServerFreeSlots newServerFreeSlots(boolean isDense) {
+        return new ServerFreeSlots(isDense);
+    }
+
+    public void free(ServerSlotClass slotClass, long chunkPosition) {
+        slots.get(slotClass).add(chunkPosition);
+    }
+
+    /**
+     * @param isBusy tells slots which must be skipped, they stay free.
+     * @return chunk position of the taken slot or -1 if the class has no free slot.
+     */
+    public long take(ServerSlotClass slotClass, Predicate<Long> isBusy) {
+        ConcurrentSkipListSet<Long> free = slots.get(slotClass);
+        if (isDense) {
+            return takeFirst(free, isBusy);
+        }
+
+        AtomicLong cursor = cursors.get(slotClass);
+        long from = cursor.get();
+        long position = takeFirst(free.tailSet(from, true), isBusy);
+        if (position < 0) {
+            position = takeFirst(free.headSet(from, false), isBusy);
+        }
+        if (position >= 0) {
+            cursor.set(position + 1);
+        }
+        return position;
+    }
+
+    /**
+     * Takes the lowest free slot below the boundary, whatever the storage is.
+     *
+     * @return chunk position of the taken slot or -1 if the class has no free slot below the boundary.
+     */
+    public long takeBelow(ServerSlotClass slotClass, long boundary, Predicate<Long> isBusy) {
+        return takeFirst(slots.get(slotClass).headSet(boundary, false), isBusy);
+    }
+
+    private static long takeFirst(NavigableSet<Long> free, Predicate<Long> isBusy) {
+        for (Long position : free) {
+            if (!isBusy.apply(position) && free.remove(position)) {
+                return position;
+            }
+        }//for
+        return -1;
+    }
+
+    /**
+     * Takes the exact slot, it is meant for replaying changes on start.
+     */
+    public boolean take(ServerSlotClass slotClass, long chunkPosition) {
+        return slots.get(slotClass).remove(chunkPosition);
+    }
+
+    /**
+     * Removes slots at and beyond the position, it is meant for truncation of the file.
+     *
+     * @return number of removed slots.
+     */
+    public int removeFrom(ServerSlotClass slotClass, long chunkPosition) {
+        int removed = 0;
+        Iterator<Long> iterator = slots.get(slotClass).tailSet(chunkPosition, true).iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            removed++;
+        }//while
+        return removed;
+    }
+
+    /**
+     * @return copy of free chunk positions of the class in order of positions.
+     */
+    public List<Long> list(ServerSlotClass slotClass) {
+        return new ArrayList<>(slots.get(slotClass));
+    }
+
+    /**
+     * It walks through all free slots of the class.
+     */
+    public int size(ServerSlotClass slotClass) {
+        return slots.get(slotClass).size();
+    }
+
+    public void clear() {
+        for (ConcurrentSkipListSet<Long> free : slots.values()) {
+            free.clear();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package me.ilyamirin.anthophila.server;
+
+import lombok.Data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact copy of the main index and the free slots, so called hint file. It covers the storage file
+ * up to the length it was taken at, after a restart only slots appended later have to be scanned.
+ *
+ * Later changes of covered slots go to the {@link ServerSlotJournal} of the snapshot.
+ *
+ * Layout: magic, version, id, covered length, id of the storage file from its header as a fingerprint, index entries each marked by a leading 1 and ended by 0, free slots
+ * count and free chunk positions for every size class, CRC32 of everything before it.
+ *
+ * @author ilyamirin
+ */
+@Data
+public class ServerIndexSnapshot {
+
+    public static final int MAGIC = 0x414e5448; //ANTH
+    public static final int VERSION = 6; //bound to the file id of the storage header, see ServerStorage.FILE_ID_OFFSET
+
+    private final long id;
+    private final long coveredLength;
+    public static final int STREAM_BUFFER_LENGTH = 1 << 16;
+
+    /**
+     * @return id of the storage file, which tells whether the snapshot belongs to the file. Slots never change it,
+     * so changes of covered slots, which go to the journal, keep the snapshot valid.
+     */
+    public static byte[] fingerprint(FileChannel storage) throws IOException {
+        ByteBuffer fingerprint = ByteBuffer.allocate(ServerStorage.FILE_ID_LENGTH);
+        long position = ServerStorage.FILE_ID_OFFSET;
+        while (fingerprint.hasRemaining()) {
+            if (storage.read(fingerprint, position + fingerprint.position()) < 0) {
+                break;
+            }
+        }
+        return fingerprint.array();
+    }
+
+    public static void write(File file, long id, long coveredLength, byte[] fingerprint, ServerKeyIndex index,
+            Map<ServerSlotClass, List<Long>> freeSlots) throws IOException {
+        final CRC32 crc = new CRC32();
+        try (final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), STREAM_BUFFER_LENGTH), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(id);
+            out.writeLong(coveredLength);
+            out.write(fingerprint);
+
+            final long end = coveredLength;
+            index.forEach(new ServerKeyIndex.EntryVisitor() {
+                @Override
+                public void visit(long high, long low, long position, int length) throws IOException {
+                    if (position < end) { //later slots will be scanned anyway
+                        out.writeByte(1);
+                        out.writeLong(high);
+                        out.writeLong(low);
+                        out.writeLong(position);
+                        out.writeInt(length);
+                    }
+                }
+            });
+            out.writeByte(0);
+
+            for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                List<Long> chunkPositions = freeSlots.get(slotClass);
+                out.writeInt(chunkPositions.size());
+                for (long chunkPosition : chunkPositions) {
+                    out.writeLong(chunkPosition);
+                }
+            }
+
+            out.writeLong(crc.getValue());
+        }
+    }
+
+    /**
+     * Fills index and free slots from the snapshot. They are left half filled if the snapshot turns out
+     * to be broken, so caller has to reset them.
+     *
+     * @return id and length of the storage file covered by the snapshot.
+     * @throws IOException if the snapshot is broken or does not belong to the storage file.
+     */
+    public static ServerIndexSnapshot read(File file, FileChannel storage, ServerKeyIndex index, ServerFreeSlots freeSlots) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_LENGTH), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown snapshot format.");
+            }
+
+            long id = in.readLong();
+            long coveredLength = in.readLong();
+            if (coveredLength <= 0 || coveredLength > storage.size()) {
+                throw new IOException("Snapshot covers " + coveredLength + " bytes, but storage has " + storage.size());
+            }
+
+            byte[] fingerprint = new byte[ServerStorage.FILE_ID_LENGTH];
+            in.readFully(fingerprint);
+            if (!Arrays.equals(fingerprint, fingerprint(storage))) {
+                throw new IOException("Snapshot was taken from another storage file.");
+            }
+
+            while (in.readByte() != 0) {
+                index.put(in.readLong(), in.readLong(), in.readLong(), in.readInt());
+            }
+
+            for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                int freeSlotsCount = in.readInt();
+                for (int i = 0; i < freeSlotsCount; i++) {
+                    freeSlots.free(slotClass, in.readLong());
+                }
+            }
+
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc) {
+                throw new IOException("Snapshot checksum does not match.");
+            }
+
+            return new ServerIndexSnapshot(id, coveredLength);
+        }
+    }
+}
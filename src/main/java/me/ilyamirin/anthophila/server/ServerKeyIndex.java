@@ -0,0 +1,347 @@
+package me.ilyamirin.anthophila.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open addressing hash table from 16 byte md5 keys to chunk positions and lengths. Every entry lives in
+ * primitive arrays as two longs of the key, a long position, an int length and an int state, so the
+ * index does not create objects per chunk.
+ *
+ * Writes are serialized by a write lock and make the stamp odd while they change tables. Lookups take no
+ * lock: they read entries optimistically and retry if the stamp has changed, only a lookup which keeps
+ * overlapping writes {@link #OPTIMISTIC_READS} times waits for the read lock. A resize does not copy the
+ * whole table at once: the new table is allocated and every following write moves {@link #MIGRATION_STEP}
+ * buckets of the old one, while lookups check both tables until the migration is over.
+ *
+ * @author ilyamirin
+ */
+public class ServerKeyIndex {
+
+    public static final int MIN_CAPACITY = 16;
+    public static final int MIGRATION_STEP = 64;
+    public static final float LOAD_FACTOR = 0.75f;
+    public static final int OPTIMISTIC_READS = 16;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    public interface EntryVisitor {
+
+        void visit(long high, long low, long position, int length) throws IOException;
+    }
+
+    private static class Table {
+
+        //elements are read by lookups which take no lock, so they are atomic
+        private final int mask;
+        private final AtomicLongArray highs;
+        private final AtomicLongArray lows;
+        private final AtomicLongArray positions;
+        private final AtomicIntegerArray lengths;
+        private final AtomicIntegerArray states;
+        private int size;
+        private int deleted;
+
+        private Table(int capacity) {
+            mask = capacity - 1;
+            highs = new AtomicLongArray(capacity);
+            lows = new AtomicLongArray(capacity);
+            positions = new AtomicLongArray(capacity);
+            lengths = new AtomicIntegerArray(capacity);
+            states = new AtomicIntegerArray(capacity);
+        }
+
+        private int capacity() {
+            return states.length();
+        }
+
+        private long memoryUsage() {
+            return (long) capacity() * (8 + 8 + 8 + 4 + 4);
+        }
+
+        private boolean isOverloaded() {
+            return size + deleted >= capacity() * LOAD_FACTOR;
+        }
+
+        private static int hash(long high, long low) {
+            long h = high ^ low;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+
+        /**
+         * @return bucket of the key or -1.
+         */
+        private int find(long high, long low) {
+            for (int i = hash(high, low) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                int state = states.get(i);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == FULL && highs.get(i) == high && lows.get(i) == low) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Caller must make sure the table has room.
+         */
+        private void put(long high, long low, long position, int length) {
+            int existed = find(high, low);
+            if (existed >= 0) {
+                positions.set(existed, position);
+                lengths.set(existed, length);
+                return;
+            }
+
+            int i = hash(high, low) & mask;
+            while (states.get(i) == FULL) {
+                i = (i + 1) & mask;
+            }
+            if (states.get(i) == DELETED) {
+                deleted--;
+            }
+            highs.set(i, high);
+            lows.set(i, low);
+            positions.set(i, position);
+            lengths.set(i, length);
+            states.set(i, FULL);
+            size++;
+        }
+
+        private ServerIndexEntry entry(int i) {
+            return new ServerIndexEntry(positions.get(i), lengths.get(i));
+        }
+
+        private void removeAt(int i) {
+            states.set(i, DELETED);
+            size--;
+            deleted++;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile Table table;
+    private volatile Table migratingTable; //old table which is being moved to the new one
+    private int migratedBuckets;
+    private volatile long stamp; //odd while a write changes tables
+
+    private ServerKeyIndex(Table table) {
+        this.table = table;
+    }
+
+    public static ServerKeyIndex newServerKeyIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR <= expectedSize) {
+            capacity <<= 1;
+        }
+        return new ServerKeyIndex(new Table(capacity));
+    }
+
+    private static long high(ByteBuffer key) {
+        return key.getLong(0);
+    }
+
+    private static long low(ByteBuffer key) {
+        return key.getLong(8);
+    }
+
+    public boolean contains(ByteBuffer key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return copy of the entry or null if key was not found.
+     */
+    public ServerIndexEntry get(ByteBuffer key) {
+        long high = high(key);
+        long low = low(key);
+
+        for (int read = 0; read < OPTIMISTIC_READS; read++) {
+            long before = stamp;
+            if ((before & 1) == 0) {
+                ServerIndexEntry entry = find(high, low);
+                if (stamp == before) {
+                    return entry;
+                }
+            }
+            Thread.yield();
+        }//for
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return find(high, low);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private ServerIndexEntry find(long high, long low) {
+        Table found = table;
+        int i = found.find(high, low);
+        if (i < 0) {
+            found = migratingTable;
+            i = found == null ? -1 : found.find(high, low);
+        }
+        return i >= 0 ? found.entry(i) : null;
+    }
+
+    public void put(ByteBuffer key, ServerIndexEntry entry) {
+        put(high(key), low(key), entry.getChunkPosition(), entry.getChunkLength());
+    }
+
+    /**
+     * @param high first 8 bytes of the key.
+     * @param low last 8 bytes of the key.
+     */
+    public void put(long high, long low, long position, int length) {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        stamp++;
+        try {
+            migrate();
+
+            if (table.isOverloaded()) {
+                resize();
+            }
+
+            if (migratingTable != null) {
+                int i = migratingTable.find(high, low);
+                if (i >= 0) {
+                    migratingTable.removeAt(i);
+                }
+            }
+
+            table.put(high, low, position, length);
+        } finally {
+            stamp++;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return removed entry or null if key was not found.
+     */
+    public ServerIndexEntry remove(ByteBuffer key) {
+        long high = high(key);
+        long low = low(key);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        stamp++;
+        try {
+            migrate();
+
+            ServerIndexEntry removed = null;
+            for (Table candidate : new Table[]{table, migratingTable}) {
+                int i = candidate == null ? -1 : candidate.find(high, low);
+                if (i >= 0) {
+                    removed = candidate.entry(i);
+                    candidate.removeAt(i);
+                }
+            }
+            return removed;
+        } finally {
+            stamp++;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Visits every entry under the read lock, so writers wait until the visit is over.
+     */
+    public void forEach(EntryVisitor visitor) throws IOException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            for (Table visited : new Table[]{table, migratingTable}) {
+                if (visited == null) {
+                    continue;
+                }
+                for (int i = 0; i < visited.capacity(); i++) {
+                    if (visited.states.get(i) == FULL) {
+                        visitor.visit(visited.highs.get(i), visited.lows.get(i), visited.positions.get(i), visited.lengths.get(i));
+                    }
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int size() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return table.size + (migratingTable == null ? 0 : migratingTable.size);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes taken by all tables of the index.
+     */
+    public long getMemoryUsage() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return table.memoryUsage() + (migratingTable == null ? 0 : migratingTable.memoryUsage());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public double getMemoryPerEntry() {
+        int size = size();
+        return size == 0 ? 0 : (double) getMemoryUsage() / size;
+    }
+
+    private void resize() {
+        //the new table must not be overloaded before the old one is moved, so the migration is finished first
+        while (migratingTable != null) {
+            migrate();
+        }
+
+        int capacity = table.capacity();
+        if (table.size >= capacity * LOAD_FACTOR / 2) {
+            capacity <<= 1; //otherwise deleted buckets are just cleaned out
+        }
+
+        migratingTable = table;
+        migratedBuckets = 0;
+        table = new Table(capacity);
+    }
+
+    private void migrate() {
+        if (migratingTable == null) {
+            return;
+        }
+
+        int end = Math.min(migratingTable.capacity(), migratedBuckets + MIGRATION_STEP);
+        for (int i = migratedBuckets; i < end; i++) {
+            if (migratingTable.states.get(i) == FULL) {
+                table.put(migratingTable.highs.get(i), migratingTable.lows.get(i), migratingTable.positions.get(i), migratingTable.lengths.get(i));
+                migratingTable.removeAt(i);
+            }
+        }
+        migratedBuckets = end;
+
+        if (migratedBuckets == migratingTable.capacity()) {
+            migratingTable = null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+/**
+ * Pull of an ordered list of keys, such as chunks of a file being restored. Responses are taken in order
+ * of keys, while the next ones are read and decrypted ahead by {@link ServerStorage#readAsync(ByteBuffer)},
+ * so the disk is busy while earlier chunks are written to the socket. A storage without I/O threads, see
+ * {@link ServerParams#getIoThreads()}, reads right in the caller, so its pulls run on a small executor of
+ * their own and the first response is not held up by reads of the next ones.
+ *
+ * @author ilyamirin
+ */
+public class ServerManifestPull {
+
+    public static final int DEFAULT_READ_AHEAD = 8;
+    public static final int READ_AHEAD_THREADS = 4;
+
+    private static final ListeningExecutorService READ_AHEAD_EXECUTOR = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(READ_AHEAD_THREADS,
+                    new ThreadFactoryBuilder().setNameFormat("manifest-read-ahead-%d").setDaemon(true).build()));
+
+    private final ServerOperations operations;
+    private final List<ByteBuffer> keys;
+    private final int readAhead;
+    private final List<ListenableFuture<ByteBuffer>> responses;
+
+    private ServerManifestPull(ServerOperations operations, List<ByteBuffer> keys, int readAhead) {
+        this.operations = operations;
+        this.keys = keys;
+        this.readAhead = readAhead;
+        this.responses = new ArrayList<>(keys.size());
+    }
+
+    /**
+     * Starts reads of the first keys right away.
+     *
+     * @param readAhead pulls in flight beyond the one which is taken, 0 means the default.
+     */
+    public static ServerManifestPull newServerManifestPull(ServerOperations operations, List<ByteBuffer> keys, int readAhead) {
+        ServerManifestPull pull = new ServerManifestPull(operations, keys, readAhead > 0 ? readAhead : DEFAULT_READ_AHEAD);
+        pull.startUpTo(Math.min(keys.size(), pull.readAhead));
+        return pull;
+    }
+
+    /**
+     * @return the count which precedes responses, the same as of a batch response.
+     */
+    public static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(4).putInt(0, size);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    private synchronized void startUpTo(int end) {
+        while (responses.size() < end) {
+            responses.add(pull(keys.get(responses.size())));
+        }
+    }
+
+    private ListenableFuture<ByteBuffer> pull(final ByteBuffer key) {
+        if (operations.isPullAsync()) {
+            return operations.pullAsync(key);
+        }
+
+        return READ_AHEAD_EXECUTOR.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() {
+                return Futures.getUnchecked(operations.pullAsync(key));
+            }
+        });
+    }
+
+    /**
+     * Takes the pull response of a key and starts reads ahead of it.
+     *
+     * @return future of the response, it never fails.
+     */
+    public synchronized ListenableFuture<ByteBuffer> take(int index) {
+        startUpTo(Math.min(keys.size(), index + 1 + readAhead));
+        return responses.get(index);
+    }
+
+    /**
+     * @return future of the batch response with responses of all keys.
+     */
+    public ListenableFuture<ByteBuffer> collect() {
+        SettableFuture<ByteBuffer> batch = SettableFuture.create();
+        collect(0, new ArrayList<ByteBuffer>(keys.size()), batch);
+        return batch;
+    }
+
+    private void collect(final int index, final List<ByteBuffer> collected, final SettableFuture<ByteBuffer> batch) {
+        if (index == keys.size()) {
+            batch.set(operations.batchResponse(collected));
+            return;
+        }
+
+        final ListenableFuture<ByteBuffer> response = take(index);
+        response.addListener(new Runnable() {
+            @Override
+            public void run() {
+                collected.add(Futures.getUnchecked(response));
+                collect(index + 1, collected, batch);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+}
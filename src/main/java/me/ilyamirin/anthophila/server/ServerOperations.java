@@ -0,0 +1,586 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.client.Client;
+import me.ilyamirin.anthophila.client.ReplicationClient;
+import me.ilyamirin.anthophila.common.Topology;
+
+/**
+ * Executes already decoded operations and builds their responses. It knows nothing about sockets, so
+ * the same logic serves both blocking {@link ServerWorker}s and {@link ServerConnection}s of event loops.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class ServerOperations {
+
+    /**
+     * Length of SET_PROTOCOL_VERSION frame without operation type: version, PULLING and zero key.
+     */
+    public static final int PROTOCOL_VERSION_REQUEST_LENGTH = 2 + ServerStorage.KEY_LENGTH;
+
+    /**
+     * Length of SET_PROTOCOL_VERSION response, the same as of the answer old servers give to the pull of the zero key.
+     */
+    public static final int PROTOCOL_VERSION_RESPONSE_LENGTH = ServerStorage.KEY_LENGTH + 1;
+
+    public static final int STATUS_RESPONSE_LENGTH = ServerStorage.KEY_LENGTH + 1; //key and status
+    public static final int PULL_RESPONSE_LENGTH = STATUS_RESPONSE_LENGTH + 4 + ServerStorage.CHUNK_LENGTH; //key, status, length and the longest chunk
+
+    @NonNull
+    private ServerParams params;
+    @NonNull
+    private ServerStripedStorage storage;
+    @NonNull
+    private Topology topology;
+    @NonNull
+    private ReplicationClient replicationClient;
+
+    //keys, chunks and responses of requests go round through these pools, so steady operations allocate no buffers
+    private final ServerBufferPool keyPool = ServerBufferPool.newServerHeapBufferPool(ServerBufferPool.DEFAULT_SIZE, ServerStorage.KEY_LENGTH);
+    private final ServerBufferPool chunkPool = ServerBufferPool.newServerHeapBufferPool(ServerBufferPool.DEFAULT_SIZE, ServerStorage.CHUNK_LENGTH);
+    private final ServerBufferPool statusResponsePool = ServerBufferPool.newServerHeapBufferPool(ServerBufferPool.DEFAULT_SIZE, STATUS_RESPONSE_LENGTH);
+    private final ServerBufferPool pullResponsePool = ServerBufferPool.newServerHeapBufferPool(ServerBufferPool.DEFAULT_SIZE, PULL_RESPONSE_LENGTH);
+
+    protected boolean mightContain(ByteBuffer key) {
+        return storage.mightContain(key);
+    }
+
+    protected boolean isKeyServable(ByteBuffer key) {
+        return params.isServeAll() || topology.isKeyServableForServer(key, params);
+    }
+
+    /**
+     * Waits for an asynchronous storage operation, its failure is thrown as is if it is an IOException.
+     */
+    protected static <T> T await(ListenableFuture<T> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfInstanceOf(ee.getCause(), IOException.class);
+            throw Throwables.propagate(ee.getCause());
+        }
+    }
+
+    /**
+     * @return buffer for the key of a request, it goes back by {@link #recycle(List, List)}.
+     */
+    public ByteBuffer newKey() {
+        return keyPool.acquire();
+    }
+
+    /**
+     * @return buffer for the chunk of a request limited to its length, it goes back by {@link #recycle(List, List)}.
+     * Chunks longer than any slot are not pooled, the storage refuses them anyway.
+     */
+    public ByteBuffer newChunk(int length) {
+        return ServerStorage.newChunk(chunkPool, length);
+    }
+
+    /**
+     * Gives keys and chunks of an answered request back to pools. The storage, the cache and replicas copy
+     * what they keep, so nothing refers to them anymore.
+     *
+     * @param chunks null for requests without chunks.
+     */
+    public void recycle(List<ByteBuffer> keys, List<ByteBuffer> chunks) {
+        for (ByteBuffer key : keys) {
+            keyPool.release(key);
+        }
+        if (chunks != null) {
+            for (ByteBuffer chunk : chunks) {
+                recycleChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * @param chunk chunk of a request or a read one, chunks which are not pooled are left to GC.
+     */
+    private void recycleChunk(ByteBuffer chunk) {
+        if (chunk != null && !chunk.isDirect() && chunk.capacity() == chunkPool.getBufferLength()) {
+            chunkPool.release(chunk);
+        }
+    }
+
+    /**
+     * Gives a written response back to its pool, responses of other lengths are left to GC.
+     */
+    public void recycle(ByteBuffer response) {
+        if (response.isDirect()) {
+            return;
+        }
+        if (response.capacity() == STATUS_RESPONSE_LENGTH) {
+            statusResponsePool.release(response);
+        } else if (response.capacity() == PULL_RESPONSE_LENGTH) {
+            pullResponsePool.release(response);
+        }
+    }
+
+    protected ByteBuffer statusResponse(ByteBuffer key, byte status) {
+        ByteBuffer response = statusResponsePool.acquire();
+        response.put(key.array());
+        response.put(status);
+        response.flip();
+        return response;
+    }
+
+    /**
+     * @param chunk heap buffer whose chunk takes its array up to the limit.
+     */
+    protected ByteBuffer pullResponse(ByteBuffer key, ByteBuffer chunk) {
+        if (chunk == null) {
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+        }
+
+        int length = STATUS_RESPONSE_LENGTH + 4 + chunk.limit();
+        ByteBuffer response = length <= PULL_RESPONSE_LENGTH ? pullResponsePool.acquire() : ByteBuffer.allocate(length);
+        response.put(key.array());
+        response.put(Server.OperationResultStatus.SUCCESS);
+        response.putInt(chunk.limit());
+        response.put(chunk.array(), chunk.arrayOffset(), chunk.limit());
+        response.flip();
+        return response;
+    }
+
+    /**
+     * Puts the header of a successful pull response whose chunk is sent right after it by
+     * {@link #transferChunk(ByteBuffer, ServerIndexEntry, WritableByteChannel)}.
+     *
+     * @param header buffer of {@link #STATUS_RESPONSE_LENGTH} + 4 bytes at least, it is cleared and flipped.
+     */
+    public static ByteBuffer pullHeader(ByteBuffer header, ByteBuffer key, int chunkLength) {
+        header.clear();
+        header.put(key.array());
+        header.put(Server.OperationResultStatus.SUCCESS);
+        header.putInt(chunkLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Batch response is the number of keys followed by responses for every key in order of the request.
+     * Responses of keys are recycled once they are copied.
+     */
+    protected ByteBuffer batchResponse(List<ByteBuffer> responses) {
+        int length = 4;
+        for (ByteBuffer response : responses) {
+            length += response.remaining();
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        batch.putInt(responses.size());
+        for (ByteBuffer response : responses) {
+            batch.put(response);
+            recycle(response);
+        }
+        batch.flip();
+        return batch;
+    }
+
+    public static boolean isKeyOperation(byte operationType) {
+        return operationType == Server.OperationTypes.PUSHING
+                || operationType == Server.OperationTypes.PULLING
+                || operationType == Server.OperationTypes.REMOVING
+                || operationType == Server.OperationTypes.SEEKING
+                || operationType == Server.OperationTypes.OFFERING
+                || operationType == Server.OperationTypes.CONDITIONAL_PUSHING;
+    }
+
+    public static boolean isBatchOperation(byte operationType) {
+        return operationType == Server.OperationTypes.MULTI_PUSHING
+                || operationType == Server.OperationTypes.MULTI_PULLING
+                || operationType == Server.OperationTypes.MULTI_SEEKING
+                || operationType == Server.OperationTypes.MANIFEST_PULLING;
+    }
+
+    public static boolean isCarryingChunks(byte operationType) {
+        return operationType == Server.OperationTypes.PUSHING || operationType == Server.OperationTypes.MULTI_PUSHING
+                || operationType == Server.OperationTypes.CONDITIONAL_PUSHING;
+    }
+
+    public static int checkBatchSize(int batchSize) throws IOException {
+        if (batchSize < 0 || batchSize > Server.MAX_BATCH_SIZE) {
+            throw new IOException("Wrong batch size " + batchSize);
+        }
+        return batchSize;
+    }
+
+    public static byte negotiateProtocolVersion(byte requestedVersion) {
+        return requestedVersion >= Server.ProtocolVersions.PIPELINED
+                ? Server.ProtocolVersions.PIPELINED : Server.ProtocolVersions.SEQUENTIAL;
+    }
+
+    /**
+     * @return true if pulls may go through {@link #pullAsync(ByteBuffer)}, otherwise it reads right away.
+     */
+    public boolean isPullAsync() {
+        return params.getIoThreads() > 0;
+    }
+
+    public int maxOperationsInFlight() {
+        return params.getMaxOperationsInFlight() > 0 ? params.getMaxOperationsInFlight() : Server.DEFAULT_MAX_OPERATIONS_IN_FLIGHT;
+    }
+
+    public ByteBuffer setConnectionType() {
+        ByteBuffer response = ByteBuffer.allocate(1);
+        response.put(Server.OperationResultStatus.SUCCESS);
+        response.flip();
+        return response;
+    }
+
+    /**
+     * @param request version asked by client, then the pull frame an old server would answer instead.
+     * @return protocol version accepted for the connection.
+     */
+    public static byte negotiateProtocolVersion(ByteBuffer request) throws IOException {
+        if (request.get(1) != Server.OperationTypes.PULLING) {
+            throw new IOException("Wrong protocol version request");
+        }
+        return negotiateProtocolVersion(request.get(0));
+    }
+
+    /**
+     * @return status, accepted protocol version and {@link Server.Features} the server has, padded with zeros
+     * to {@link #PROTOCOL_VERSION_RESPONSE_LENGTH}.
+     */
+    public ByteBuffer setProtocolVersion(byte protocolVersion) {
+        ByteBuffer response = ByteBuffer.allocate(PROTOCOL_VERSION_RESPONSE_LENGTH);
+        response.put(Server.OperationResultStatus.SUCCESS);
+        response.put(protocolVersion);
+        response.put((byte) (Server.Features.OFFERING | Server.Features.CONDITIONAL_PUSHING));
+        response.rewind();
+        return response;
+    }
+
+    /**
+     * @param keys one key for single key operations, all keys of the frame for batch ones.
+     * @param chunks chunks of the keys for push operations, null for others.
+     */
+    public ByteBuffer execute(byte operationType, List<ByteBuffer> keys, List<ByteBuffer> chunks, byte connectionType) throws IOException {
+        if (operationType == Server.OperationTypes.PUSHING) {
+            return push(keys.get(0), chunks.get(0), connectionType);
+        } else if (operationType == Server.OperationTypes.PULLING) {
+            return pull(keys.get(0));
+        } else if (operationType == Server.OperationTypes.REMOVING) {
+            return remove(keys.get(0), connectionType);
+        } else if (operationType == Server.OperationTypes.SEEKING) {
+            return seek(keys.get(0), connectionType);
+        } else if (operationType == Server.OperationTypes.MULTI_PUSHING) {
+            return multiPush(keys, chunks, connectionType);
+        } else if (operationType == Server.OperationTypes.MULTI_PULLING) {
+            return multiPull(keys);
+        } else if (operationType == Server.OperationTypes.MULTI_SEEKING) {
+            return multiSeek(keys, connectionType);
+        } else if (operationType == Server.OperationTypes.OFFERING) {
+            return offer(keys.get(0));
+        } else if (operationType == Server.OperationTypes.MANIFEST_PULLING) {
+            return manifestPull(keys);
+        } else if (operationType == Server.OperationTypes.CONDITIONAL_PUSHING) {
+            return conditionalPush(keys.get(0), chunks.get(0), connectionType);
+        }
+        throw new IllegalArgumentException("Unknown operation type " + operationType);
+    }
+
+    /**
+     * Pipelined connections keep serving after a broken operation, so its failure becomes a response.
+     * Keys and chunks are recycled if the operation succeeds. A failed one may leave them in the write
+     * pipeline, so they are left to GC.
+     */
+    public ByteBuffer executeOrFail(byte operationType, List<ByteBuffer> keys, List<ByteBuffer> chunks, byte connectionType) {
+        try {
+            ByteBuffer response = execute(operationType, keys, chunks, connectionType);
+            recycle(keys, chunks);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            log.error("Operation failed:", e);
+            if (!isBatchOperation(operationType)) {
+                return statusResponse(keys.get(0), Server.OperationResultStatus.FAILURE);
+            }
+            List<ByteBuffer> responses = new ArrayList<>(keys.size());
+            for (ByteBuffer key : keys) {
+                responses.add(statusResponse(key, Server.OperationResultStatus.FAILURE));
+            }
+            return batchResponse(responses);
+        }
+    }
+
+    public ByteBuffer push(ByteBuffer key, ByteBuffer chunk, byte connectionType) throws IOException {
+        if (!isKeyServable(key)) {
+            return statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+        }
+
+        await(storage.appendAsync(key, chunk));
+
+        if (connectionType != Client.ConnectionType.REPLICA) {
+            replicationClient.push(key, chunk);
+        }
+
+        storage.awaitDurable(Collections.singletonList(key));
+
+        return statusResponse(key, Server.OperationResultStatus.SUCCESS);
+    }
+
+    /**
+     * Push which skips the append of a chunk found here. The found chunk still goes to replicas, so a replica
+     * which has lost it gets it back as with a plain push.
+     */
+    public ByteBuffer conditionalPush(ByteBuffer key, ByteBuffer chunk, byte connectionType) throws IOException {
+        if (!isKeyServable(key)) {
+            return statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+        }
+
+        if (!mightContain(key) || !storage.contains(key)) {
+            return push(key, chunk, connectionType);
+        }
+
+        if (connectionType != Client.ConnectionType.REPLICA) {
+            replicationClient.push(key, chunk);
+        }
+
+        storage.awaitDurable(Collections.singletonList(key));
+
+        return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_FOUND);
+    }
+
+    /**
+     * Tells whether the chunk is found here. Only the local storage is checked, it takes no disk reads,
+     * so offers are cheap enough for event loops.
+     */
+    public ByteBuffer offer(ByteBuffer key) {
+        if (!isKeyServable(key)) {
+            return statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+        }
+
+        if (mightContain(key) && storage.contains(key)) {
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_FOUND);
+        } else {
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+        }
+    }
+
+    public ByteBuffer pull(ByteBuffer key) throws IOException {
+        if (!isKeyServable(key)) {
+            return statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+        }
+
+        ByteBuffer chunk;
+        try {
+            chunk = mightContain(key) ? storage.read(key, chunkPool) : null;
+        } catch (ServerCorruptedChunkException scce) {
+            log.error("Can`t pull chunk: {}", scce.getMessage());
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_KEY_IS_INCONSISTENT);
+        }
+
+        ByteBuffer response = pullResponse(key, chunk);
+        recycleChunk(chunk);
+        return response;
+    }
+
+    /**
+     * Pull which holds no thread while the chunk is read. The future never fails, a failure becomes a response.
+     */
+    public ListenableFuture<ByteBuffer> pullAsync(final ByteBuffer key) {
+        if (!isKeyServable(key)) {
+            return Futures.immediateFuture(statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE));
+        }
+        if (!mightContain(key)) {
+            return Futures.immediateFuture(pullResponse(key, null));
+        }
+
+        final SettableFuture<ByteBuffer> response = SettableFuture.create();
+        Futures.addCallback(storage.readAsync(key, chunkPool), new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess(ByteBuffer chunk) {
+                ByteBuffer pulled = pullResponse(key, chunk);
+                recycleChunk(chunk);
+                response.set(pulled);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                if (failure instanceof ServerCorruptedChunkException) {
+                    log.error("Can`t pull chunk: {}", failure.getMessage());
+                    response.set(statusResponse(key, Server.OperationResultStatus.CHUNK_KEY_IS_INCONSISTENT));
+                } else {
+                    log.error("Operation failed:", failure);
+                    response.set(statusResponse(key, Server.OperationResultStatus.FAILURE));
+                }
+            }
+        });
+        return response;
+    }
+
+    /**
+     * @return pinned index entry of a chunk which may be sent without copying it to the heap, or null if
+     * the pull has to go through {@link #pull(ByteBuffer)}.
+     */
+    public ServerIndexEntry pinTransferableChunk(ByteBuffer key) throws IOException {
+        return isKeyServable(key) && mightContain(key) ? storage.pinPlainChunk(key) : null;
+    }
+
+    public void transferChunk(ByteBuffer key, ServerIndexEntry indexEntry, WritableByteChannel channel) throws IOException {
+        storage.transferTo(key, indexEntry, channel);
+    }
+
+    public void unpin(ByteBuffer key, ServerIndexEntry indexEntry) {
+        storage.unpin(key, indexEntry);
+    }
+
+    public ByteBuffer remove(ByteBuffer key, byte connectionType) throws IOException {
+        if (mightContain(key)) {
+            storage.delete(key);
+            if (connectionType != Client.ConnectionType.REPLICA) {
+                replicationClient.remove(key);
+            }
+            storage.awaitDurable(Collections.singletonList(key));
+        }
+
+        return statusResponse(key, Server.OperationResultStatus.SUCCESS);
+    }
+
+    public ByteBuffer seek(ByteBuffer key, byte connectionType) throws IOException {
+        if (!isKeyServable(key)) {
+            return statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+        }
+
+        boolean isFound = mightContain(key) && storage.contains(key);
+        if (connectionType != Client.ConnectionType.REPLICA) {
+            isFound &= replicationClient.seek(key);
+        }
+
+        if (isFound) {
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_FOUND);
+        } else {
+            return statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+        }
+    }
+
+    public ByteBuffer multiPush(List<ByteBuffer> keys, List<ByteBuffer> chunks, byte connectionType) throws IOException {
+        List<ByteBuffer> responses = new ArrayList<>(keys.size());
+        List<ByteBuffer> pushedKeys = new ArrayList<>(keys.size());
+        List<ByteBuffer> pushedChunks = new ArrayList<>(keys.size());
+        List<ListenableFuture<Void>> appends = new ArrayList<>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            if (isKeyServable(keys.get(i))) {
+                appends.add(storage.appendAsync(keys.get(i), chunks.get(i))); //the whole batch goes down the pipeline at once
+            }
+        }
+        await(Futures.allAsList(appends));
+
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            if (!isKeyServable(key)) {
+                responses.add(statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE));
+                continue;
+            }
+
+            pushedKeys.add(key);
+            pushedChunks.add(chunks.get(i));
+            responses.add(statusResponse(key, Server.OperationResultStatus.SUCCESS));
+        }
+
+        if (connectionType != Client.ConnectionType.REPLICA && !pushedKeys.isEmpty()) {
+            replicationClient.pushAll(pushedKeys, pushedChunks);
+        }
+
+        if (!pushedKeys.isEmpty()) {
+            storage.awaitDurable(pushedKeys); //one force per file for the whole batch
+        }
+
+        return batchResponse(responses);
+    }
+
+    public ByteBuffer multiPull(List<ByteBuffer> keys) throws IOException {
+        List<ByteBuffer> storedKeys = new ArrayList<>(keys.size());
+        for (ByteBuffer key : keys) {
+            if (isKeyServable(key) && mightContain(key)) {
+                storedKeys.add(key);
+            }
+        }
+
+        List<ByteBuffer> storedChunks;
+        try {
+            storedChunks = storage.readAll(storedKeys);
+        } catch (ServerCorruptedChunkException scce) {
+            List<ByteBuffer> responses = new ArrayList<>(keys.size());
+            for (ByteBuffer key : keys) {
+                responses.add(pull(key)); //one by one, so only the corrupted chunk fails
+            }
+            return batchResponse(responses);
+        }
+
+        List<ByteBuffer> responses = new ArrayList<>(keys.size());
+        int stored = 0;
+        for (ByteBuffer key : keys) {
+            if (!isKeyServable(key)) {
+                responses.add(statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE));
+            } else if (stored < storedKeys.size() && storedKeys.get(stored) == key) {
+                responses.add(pullResponse(key, storedChunks.get(stored++)));
+            } else {
+                responses.add(statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND));
+            }
+        }
+
+        return batchResponse(responses);
+    }
+
+    public ServerManifestPull newManifestPull(List<ByteBuffer> keys) {
+        return ServerManifestPull.newServerManifestPull(this, keys, params.getManifestReadAhead());
+    }
+
+    /**
+     * Manifest pull answered by one batch response, connections which can`t stream it use this one.
+     */
+    public ByteBuffer manifestPull(List<ByteBuffer> keys) throws IOException {
+        return await(newManifestPull(keys).collect());
+    }
+
+    public ByteBuffer multiSeek(List<ByteBuffer> keys, byte connectionType) throws IOException {
+        List<ByteBuffer> foundKeys = new ArrayList<>(keys.size());
+        for (ByteBuffer key : keys) {
+            if (isKeyServable(key) && mightContain(key) && storage.contains(key)) {
+                foundKeys.add(key);
+            }
+        }
+
+        List<Boolean> foundOnReplicas = null;
+        if (connectionType != Client.ConnectionType.REPLICA && !foundKeys.isEmpty()) {
+            foundOnReplicas = replicationClient.seekAll(foundKeys);
+        }
+
+        List<ByteBuffer> responses = new ArrayList<>(keys.size());
+        int found = 0;
+        for (ByteBuffer key : keys) {
+            if (!isKeyServable(key)) {
+                responses.add(statusResponse(key, Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE));
+            } else if (found < foundKeys.size() && foundKeys.get(found) == key) {
+                boolean isFound = foundOnReplicas == null || foundOnReplicas.get(found);
+                found++;
+                responses.add(statusResponse(key, isFound
+                        ? Server.OperationResultStatus.CHUNK_WAS_FOUND : Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND));
+            } else {
+                responses.add(statusResponse(key, Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND));
+            }
+        }
+
+        return batchResponse(responses);
+    }
+}
@@ -2,6 +2,8 @@ package me.ilyamirin.anthophila.server;
 
 import lombok.Data;
 
+import java.util.List;
+
 /**
  * @author ilyamirin
  */
@@ -9,13 +11,35 @@ import lombok.Data;
 public class ServerParams {
 
     private String storageFile;
+    private List<String> storageFiles; //chunks are spread over these files by keys, storageFile is used if it is empty
+    private String snapshotFile; //index snapshot, storage file with .hint suffix by default
+    private int snapshotInterval; //seconds between index snapshots, 0 means a snapshot on shutdown only
 
     private int initialIndexSize;
     private int maxExpectedSize;
+    private int bufferPoolSize; //direct buffers kept for storage I/O, 0 means the default
+    private boolean isMapped; //storage file is read through memory mapped segments
+    private boolean isDirect; //storage file bypasses the page cache, so the chunk cache is the only one, needs Java 10
+    private boolean isDenseAllocation; //free slots with lower offsets are taken first
+    private int scanThreads; //threads scanning the storage on start, 0 means a thread per cpu
+    private ServerDurability durability; //null means NONE
+    private int syncInterval; //ms between group commits, 0 means the default
+    private long syncBytes; //written bytes which start a group commit before the interval, 0 means the default
+    private int writeThreads; //threads encoding chunks for the write pipeline, 0 means chunks are written without it
+    private int writeQueueSize; //chunks queued in the write pipeline, 0 means the default
+    private long cacheSize; //bytes of plain chunks cached per storage file, 0 means no cache
+    private long scrubRate; //bytes per second read by the scrubber of every storage file, 0 means no scrubbing
+    private boolean isQuarantine; //corrupted slots found by the scrubber are quarantined, otherwise only reported
+    private long compactRate; //bytes per second moved by the compactor of every storage file, 0 means no compaction
+    private int ioThreads; //threads of asynchronous reads, appends and deletes of every storage file, 0 means they run right away
+    private int manifestReadAhead; //chunks read ahead by a manifest pull, 0 means the default
 
     private String host;
     private int port;
     private int maxConnections;
+    private int selectorThreads; //0 means a blocking worker thread per connection
+    private int operationThreads; //threads executing pipelined operations
+    private int maxOperationsInFlight; //per pipelined connection
 
     private boolean isEncrypt;
     private String newKeysFile;
@@ -0,0 +1,47 @@
+package me.ilyamirin.anthophila.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps freed slots from being reused under readers which go without locks. Readers enter one of two
+ * epochs and before a reuse the writer switches the epoch and waits until the readers of the previous
+ * one are gone. Such readers could have found the deleted chunk in the index, readers of the new epoch
+ * can`t.
+ *
+ * @author ilyamirin
+ */
+public class ServerReadGuard {
+
+    private final AtomicInteger[] readers = {new AtomicInteger(), new AtomicInteger()};
+
+    private volatile int epoch;
+
+    /**
+     * @return epoch which must be passed to {@link #exitRead(int)} when the read is over.
+     */
+    public int enterRead() {
+        while (true) {
+            int current = epoch;
+            readers[current].incrementAndGet();
+            if (current == epoch) {
+                return current;
+            }
+            readers[current].decrementAndGet();
+        }//while
+    }
+
+    public void exitRead(int epoch) {
+        readers[epoch].decrementAndGet();
+    }
+
+    /**
+     * Waits for reads which have started before the call.
+     */
+    public synchronized void awaitReaders() {
+        int previous = epoch;
+        epoch = previous ^ 1;
+        while (readers[previous].get() > 0) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks the storage file page by page and checks every live chunk against the checksum of its slot, so
+ * bit rot of chunks which are rarely read is found before they are needed. Pages are read sequentially at
+ * a limited rate, so the scrubber does not take the disk from clients. A suspected chunk is checked once
+ * more by the storage under the key lock and then reported or quarantined.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerScrubber implements Runnable {
+
+    public static final int PASS_INTERVAL = 60; //seconds between passes
+
+    private final ServerStorage storage;
+    private final RateLimiter rateLimiter;
+    private final boolean isQuarantine;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong chunksChecked = new AtomicLong();
+    private final AtomicLong chunksCorrupted = new AtomicLong();
+
+    private ServerScrubber(ServerStorage storage, RateLimiter rateLimiter, boolean isQuarantine) {
+        this.storage = storage;
+        this.rateLimiter = rateLimiter;
+        this.isQuarantine = isQuarantine;
+    }
+
+    /**
+     * @param bytesPerSecond read rate of the scrubber.
+     * @param isQuarantine corrupted slots are quarantined, otherwise they are only reported.
+     */
+    public static ServerScrubber newServerScrubber(ServerStorage storage, long bytesPerSecond, boolean isQuarantine) {
+        return new ServerScrubber(storage, RateLimiter.create(bytesPerSecond), isQuarantine);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "storage-scrubber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getPasses() {
+        return passes.get();
+    }
+
+    public long getChunksChecked() {
+        return chunksChecked.get();
+    }
+
+    public long getChunksCorrupted() {
+        return chunksCorrupted.get();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                scrub();
+                TimeUnit.SECONDS.sleep(PASS_INTERVAL);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioe) {
+                log.error("Can`t scrub storage:", ioe);
+            }
+        }//while
+    }
+
+    /**
+     * Makes one pass over pages which were in the file when it started.
+     *
+     * @return number of corrupted chunks found by the pass.
+     */
+    public long scrub() throws IOException {
+        long start = System.currentTimeMillis();
+        long corrupted = 0;
+        long checked = 0;
+        long length = storage.length();
+        ByteBuffer page = ByteBuffer.allocateDirect(ServerSlotClass.PAGE_LENGTH);
+
+        for (long pagePosition = ServerStorage.HEADER_LENGTH; pagePosition < length; pagePosition += ServerSlotClass.PAGE_LENGTH) {
+            rateLimiter.acquire(ServerSlotClass.PAGE_LENGTH);
+            storage.readPage(pagePosition, page);
+
+            ServerSlotClass slotClass = ServerSlotClass.ofMark(page.get(0)); //first slot of a page is written first
+            for (int slot = 0; slot < slotClass.getSlotsPerPage(); slot++) {
+                int offset = slot * slotClass.getSlotLength();
+                if (!ServerSlotClass.isLive(page.get(offset))) {
+                    continue;
+                }
+
+                ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+                for (int i = 0; i < ServerStorage.KEY_LENGTH; i++) {
+                    key.put(i, page.get(offset + 1 + i));
+                }
+                long chunkPosition = pagePosition + offset + ServerStorage.AUX_CHUNK_INFO_LENGTH;
+
+                checked++;
+                if (!isIntact(page, offset, slotClass) && storage.checkCorrupted(key, chunkPosition, isQuarantine)) {
+                    corrupted++;
+                    log.error("Chunk at {} is corrupted{}.", chunkPosition, isQuarantine ? ", its slot is quarantined" : "");
+                }
+            }//for
+        }//for
+
+        passes.incrementAndGet();
+        chunksChecked.addAndGet(checked);
+        chunksCorrupted.addAndGet(corrupted);
+        log.info("{} bytes of storage were scrubbed in {} ms, {} of {} chunks are corrupted.", length,
+                System.currentTimeMillis() - start, corrupted, checked);
+        return corrupted;
+    }
+
+    /**
+     * @return true if the chunk of the slot matches its checksum.
+     */
+    private boolean isIntact(ByteBuffer page, int offset, ServerSlotClass slotClass) {
+        int chunkLength = page.getInt(offset + 1 + ServerStorage.KEY_LENGTH);
+        if (chunkLength < 0 || chunkLength > slotClass.getChunkCapacity()) {
+            return false;
+        }
+
+        ByteBuffer slot = page.duplicate();
+        slot.limit(offset + ServerStorage.AUX_CHUNK_INFO_LENGTH + ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH + chunkLength);
+        slot.position(offset + ServerStorage.AUX_CHUNK_INFO_LENGTH - ServerStorage.CHECKSUM_LENGTH);
+        int checksum = slot.getInt();
+        try {
+            return ServerStorage.checksum(storage.open(slot)) == checksum;
+        } catch (RuntimeException re) {
+            return false; //key hash of the slot is broken
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.ilyamirin.anthophila.server;
+
+/**
+ * Size classes of storage slots. The storage file is a sequence of pages of {@link #PAGE_LENGTH} bytes and
+ * every page is cut into equal slots of one class, so a page boundary is always a slot boundary.
+ *
+ * The class is kept in the tombstone byte of every slot: a live slot is marked by {@link Byte#MAX_VALUE}
+ * minus the class ordinal, a deleted one by {@link Byte#MIN_VALUE} plus the ordinal and a quarantined one,
+ * whose chunk is corrupted, by the deleted mark plus the number of classes. Files of the first layout, written
+ * before size classes, are upgraded when they are opened and their slots become {@link #LARGE} ones.
+ *
+ * @author ilyamirin
+ */
+public enum ServerSlotClass {
+
+    LARGE(1), MEDIUM(4), SMALL(16);
+
+    public static final int PAGE_LENGTH = ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH;
+    public static final int META_LENGTH = ServerStorage.AUX_CHUNK_INFO_LENGTH + ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH;
+
+    private final int slotsPerPage;
+    private final int slotLength;
+
+    private ServerSlotClass(int slotsPerPage) {
+        this.slotsPerPage = slotsPerPage;
+        this.slotLength = PAGE_LENGTH / slotsPerPage;
+    }
+
+    public int getSlotsPerPage() {
+        return slotsPerPage;
+    }
+
+    public int getSlotLength() {
+        return slotLength;
+    }
+
+    public int getChunkCapacity() {
+        return slotLength - META_LENGTH;
+    }
+
+    public byte liveMark() {
+        return (byte) (Byte.MAX_VALUE - ordinal());
+    }
+
+    public byte deletedMark() {
+        return (byte) (Byte.MIN_VALUE + ordinal());
+    }
+
+    public byte quarantinedMark() {
+        return (byte) (Byte.MIN_VALUE + values().length + ordinal());
+    }
+
+    /**
+     * @return the smallest class which fits the chunk.
+     */
+    public static ServerSlotClass forChunk(int chunkLength) {
+        ServerSlotClass[] classes = values();
+        for (int i = classes.length - 1; i > 0; i--) {
+            if (classes[i].getChunkCapacity() >= chunkLength) {
+                return classes[i];
+            }
+        }
+        return LARGE;
+    }
+
+    public static boolean isLive(byte mark) {
+        return mark > Byte.MAX_VALUE - values().length;
+    }
+
+    /**
+     * Quarantined slot is neither indexed nor reused.
+     */
+    public static boolean isQuarantined(byte mark) {
+        return mark >= Byte.MIN_VALUE + values().length && mark < Byte.MIN_VALUE + 2 * values().length;
+    }
+
+    /**
+     * @return class of the slot by its tombstone byte, a never written slot is {@link #LARGE}.
+     */
+    public static ServerSlotClass ofMark(byte mark) {
+        if (isLive(mark)) {
+            return values()[Byte.MAX_VALUE - mark];
+        }
+        if (mark < Byte.MIN_VALUE + values().length) {
+            return values()[mark - Byte.MIN_VALUE];
+        }
+        if (isQuarantined(mark)) {
+            return values()[mark - Byte.MIN_VALUE - values().length];
+        }
+        return LARGE;
+    }
+}
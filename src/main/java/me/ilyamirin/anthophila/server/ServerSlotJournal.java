@@ -0,0 +1,144 @@
+package me.ilyamirin.anthophila.server;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Changes of slots covered by the index snapshot which were made after the snapshot had been written, so
+ * deletes and reused slots do not make the snapshot outdated. It is replayed over the snapshot on start
+ * and started anew with every snapshot.
+ *
+ * Layout: magic, id of the snapshot, records of the slot mark after the change, chunk position, key and
+ * chunk length. A record is written after the slot has changed, so a record torn by a crash belongs to a
+ * change which was never acknowledged and is dropped.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerSlotJournal {
+
+    public static final int MAGIC = 0x414e544a; //ANTJ
+    public static final int HEADER_LENGTH = 4 + 8;
+    public static final int RECORD_LENGTH = 1 + 8 + ServerStorage.KEY_LENGTH + 4;
+
+    private final FileChannel channel;
+    private long length;
+
+    private ServerSlotJournal(FileChannel channel, long length) {
+        this.channel = channel;
+        this.length = length;
+    }
+
+    public static void create(File file, long snapshotId) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeLong(snapshotId);
+        }
+    }
+
+    /**
+     * @throws IOException if the journal is broken or belongs to another snapshot.
+     */
+    public static ServerSlotJournal open(File file, long snapshotId) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Journal header is truncated.");
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getLong(4) != snapshotId) {
+                throw new IOException("Journal belongs to another snapshot.");
+            }
+            return new ServerSlotJournal(channel, HEADER_LENGTH);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Applies recorded changes to the index and free slots loaded from the snapshot.
+     *
+     * @return number of replayed records.
+     */
+    public long replay(ServerKeyIndex index, ServerFreeSlots freeSlots) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        long records = 0;
+        long position = HEADER_LENGTH;
+        while (position + RECORD_LENGTH <= channel.size()) {
+            record.clear();
+            while (record.hasRemaining()) {
+                channel.read(record, position + record.position());
+            }
+            record.flip();
+
+            byte mark = record.get();
+            long chunkPosition = record.getLong();
+            ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            record.get(key.array());
+            int chunkLength = record.getInt();
+
+            ServerSlotClass slotClass = ServerSlotClass.ofMark(mark);
+            if (ServerSlotClass.isLive(mark)) {
+                index.put(key, new ServerIndexEntry(chunkPosition, chunkLength));
+                freeSlots.take(slotClass, chunkPosition);
+            } else if (mark == slotClass.deletedMark()) {
+                ServerIndexEntry entry = index.get(key);
+                if (entry != null && entry.getChunkPosition() == chunkPosition) {
+                    index.remove(key);
+                }
+                freeSlots.free(slotClass, chunkPosition);
+            } else if (ServerSlotClass.isQuarantined(mark)) {
+                ServerIndexEntry entry = index.get(key);
+                if (entry != null && entry.getChunkPosition() == chunkPosition) {
+                    index.remove(key);
+                }
+            } else {
+                throw new IOException("Journal record at " + position + " is broken.");
+            }
+
+            position += RECORD_LENGTH;
+            records++;
+        }//while
+
+        if (position < channel.size()) {
+            log.warn("Torn journal record at {} is dropped.", position);
+            channel.truncate(position);
+        }
+        length = position;
+        return records;
+    }
+
+    public void append(byte mark, long chunkPosition, ByteBuffer key, int chunkLength) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.put(mark).putLong(chunkPosition).put(key.array()).putInt(chunkLength).flip();
+        while (record.hasRemaining()) {
+            channel.write(record, length + record.position());
+        }
+        length += RECORD_LENGTH;
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public boolean isEmpty() {
+        return length == HEADER_LENGTH;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            log.warn("Can`t close journal: {}", ioe.getMessage());
+        }
+    }
+}
@@ -1,19 +1,67 @@
 package me.ilyamirin.anthophila.server;
 
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
-import org.apache.commons.collections.map.LinkedMap;
-import org.apache.commons.collections.map.MultiKeyMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 /**
+ * Reads take no locks: the index is read optimistically, see {@link ServerKeyIndex}, and slots being read
+ * are kept from reuse by {@link ServerReadGuard}. Only a pin of a chunk for a transfer locks its key and the
+ * chunk cache locks one of its segments. Appends and deletes of the same key are serialized by
+ * a striped lock, new pages are reserved at the tail atomically and free slots are taken from concurrent
+ * skip lists, so writes of different keys run in parallel.
+ *
+ * A chunk goes to a slot of the smallest {@link ServerSlotClass} which fits it. When a class has no free
+ * slots a new page is cut into slots of that class, the first one takes the chunk and the rest are freed.
+ *
+ * Slot header ends with CRC32 of the plain chunk, it is checked on every read except transfers of plain
+ * chunks, which never copy them to the heap. The {@link ServerScrubber} checks the rest.
+ *
  * @author ilyamirin
  */
 @Slf4j
@@ -21,165 +69,1476 @@ public class ServerStorage {
 
     public static final int CHUNK_LENGTH = 65536;
     public static final int KEY_LENGTH = 16; //md5 hash length (16 bytes)
-    public static final int AUX_CHUNK_INFO_LENGTH = 1 + KEY_LENGTH + 4; //tombstone + hash + chunk length (int)
+    public static final int CHECKSUM_LENGTH = 4; //crc32 of the plain chunk, the last field of the slot header
+    public static final int AUX_CHUNK_INFO_LENGTH = 1 + KEY_LENGTH + 4 + CHECKSUM_LENGTH; //tombstone + hash + chunk length (int) + checksum
     public static final int IV_LENGTH = 8; //IV for Salsa cipher
     public static final int ENCRYPTION_CHUNK_INFO_LENGTH = 4 + IV_LENGTH; //cipher key has in int + IV
     public static final int WHOLE_CHUNK_WITH_META_LENGTH = AUX_CHUNK_INFO_LENGTH + ENCRYPTION_CHUNK_INFO_LENGTH + CHUNK_LENGTH; //total chunk with meta space
 
+    public static final int MAGIC = 0x414e5453; //ANTS
+    public static final int FORMAT_VERSION = 2; //slot headers carry checksums, files of the first layout have no header at all
+    public static final int FIRST_FORMAT_SLOT_LENGTH = WHOLE_CHUNK_WITH_META_LENGTH - CHECKSUM_LENGTH; //slot of the first layout, it has no checksum
+    public static final int HEADER_LENGTH = ServerSlotClass.PAGE_LENGTH; //magic and format version take the whole first page, so slots stay page aligned
+    private static final int STRIPE_LAYOUT_OFFSET = 8; //stripe layout follows the format version
+    private static final int STRIPE_LAYOUT_LENGTH = 8 + 4 + 4; //layout id + number of the file + count of files
+    public static final int FILE_ID_OFFSET = STRIPE_LAYOUT_OFFSET + STRIPE_LAYOUT_LENGTH; //random id of the file, index snapshots are bound to it
+    public static final int FILE_ID_LENGTH = 8;
+
+    public static final int KEY_LOCK_STRIPES = 1024;
+
+    private static final byte[] EMPTY_IV = new byte[IV_LENGTH];
+
+    private static final ByteBuffer ZERO_PAGE = ByteBuffer.allocateDirect(ServerSlotClass.PAGE_LENGTH).asReadOnlyBuffer();
+
     private ServerParams params;
 
     private FileChannel fileChannel;
 
     private ServerEnigma enigma;
 
-    private MultiKeyMap mainIndex;
+    private ServerKeyIndex mainIndex;
+
+    private ServerFreeSlots freeSlots;
+
+    private Multiset<Long> pinnedChunkPositions = ConcurrentHashMultiset.create(); //slots being transferred, they must not be reused
+
+    private ServerBufferPool bufferPool;
+
+    private ServerStorageMap storageMap; //null if reads go through the file channel
+
+    private final ServerReadGuard readGuard = new ServerReadGuard();
+
+    private final AtomicLong tail = new AtomicLong(); //end of the last reserved slot
+
+    private final Striped<Lock> keyLocks = Striped.lock(KEY_LOCK_STRIPES);
+
+    private ServerSyncer syncer;
+
+    private volatile ServerCuckooFilter filter; //keys of the index, replaced by a bigger one when it is overloaded
+
+    private final Object filterLock = new Object();
+
+    private ServerWritePipeline writePipeline; //null if chunks are written by threads which append them
+
+    private ServerChunkCache cache; //plain chunks read often, null if there is no cache
+
+    private ServerScrubber scrubber; //null if the storage is not scrubbed
+
+    private ServerCompactor compactor; //null if the storage is not compacted
+
+    private ListeningExecutorService ioExecutor; //null if asynchronous operations are executed right away
+
+    private AsynchronousFileChannel asyncChannel; //null if asynchronous reads go through the I/O executor
+
+    private final Object gatherLock = new Object(); //gathered writes go through the file channel position
 
-    private List<ServerIndexEntry> condemnedIndex = new ArrayList<>();
+    private final ReadWriteLock mutationLock = new ReentrantReadWriteLock(); //shared by writes, exclusive for a snapshot
 
-    private ServerStorage(FileChannel fileChannel, ServerEnigma enigma, ServerParams params, MultiKeyMap mainIndex) {
+    private File snapshotFile;
+
+    private File journalFile;
+
+    private ServerSlotJournal journal; //changes of slots covered by the snapshot, null if there is no valid snapshot
+
+    private long snapshotCoverage; //storage length covered by the snapshot on disk, 0 if there is no valid one
+
+    private long pendingSnapshotCoverage; //storage length covered by the snapshot being written
+
+    private boolean isPendingSnapshotValid;
+
+    private final Object snapshotLock = new Object();
+
+    private final Predicate<Long> isPinned = new Predicate<Long>() {
+        @Override
+        public boolean apply(Long chunkPosition) {
+            return pinnedChunkPositions.contains(chunkPosition);
+        }
+    };
+
+    private ServerStorage(FileChannel fileChannel, ServerEnigma enigma, ServerParams params, ServerKeyIndex mainIndex,
+            ServerBufferPool bufferPool, File snapshotFile) {
         this.fileChannel = fileChannel;
         this.enigma = enigma;
         this.params = params;
         this.mainIndex = mainIndex;
+        this.bufferPool = bufferPool;
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getPath() + ".journal");
+        this.freeSlots = ServerFreeSlots.newServerFreeSlots(params.isDenseAllocation());
+        this.filter = ServerCuckooFilter.newServerCuckooFilter(params.getMaxExpectedSize());
+    }
+
+    private static long roundUpToPage(long length) {
+        return (length + ServerSlotClass.PAGE_LENGTH - 1) / ServerSlotClass.PAGE_LENGTH * ServerSlotClass.PAGE_LENGTH;
+    }
+
+    /**
+     * Writes the header into an empty file, otherwise checks it, so a file of another layout is never misparsed.
+     * A file without an id gets one.
+     */
+    private static void checkHeader(FileChannel fileChannel, String storageFile) throws IOException {
+        if (fileChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(FILE_ID_OFFSET, newFileId()).clear();
+            while (header.hasRemaining()) {
+                fileChannel.write(header, header.position());
+            }
+            fileChannel.force(false);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_ID_OFFSET + FILE_ID_LENGTH);
+        while (header.hasRemaining() && fileChannel.read(header, header.position()) >= 0) {
+        }
+        if (header.position() < 8 || header.getInt(0) != MAGIC) {
+            throw new IOException("Storage file " + storageFile + " has no header and it is not of the first layout, so it can`t be read.");
+        }
+        if (header.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Storage file " + storageFile + " has format version " + header.getInt(4)
+                    + ", but only " + FORMAT_VERSION + " is supported.");
+        }
+        if (header.hasRemaining() || header.getLong(FILE_ID_OFFSET) == 0) {
+            ByteBuffer fileId = ByteBuffer.allocate(FILE_ID_LENGTH);
+            fileId.putLong(newFileId()).flip();
+            while (fileId.hasRemaining()) {
+                fileChannel.write(fileId, FILE_ID_OFFSET + fileId.position());
+            }
+            fileChannel.force(false);
+        }
+    }
+
+    private static long newFileId() {
+        long id = 0;
+        while (id == 0) {
+            id = new SecureRandom().nextLong();
+        }//while
+        return id;
+    }
+
+    /**
+     * Rewrites a file of the first layout, which has no header and no checksums, into the current one. Its slots
+     * become {@link ServerSlotClass#LARGE} slots of the same tombstones, the checksum of every live chunk is
+     * computed while it is copied. The new file replaces the old one only when it is complete, so an upgrade
+     * broken by a crash starts over on the next open. Files of other layouts are left to {@link #checkHeader}.
+     */
+    static void upgradeFirstFormat(String storageFile, ServerEnigma serverEnigma) throws IOException {
+        File file = new File(storageFile);
+        if (file.length() == 0) {
+            return;
+        }
+
+        File upgradeFile = new File(storageFile + ".upgrade");
+        long slots;
+        try (FileChannel source = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer first = ByteBuffer.allocate(FIRST_FORMAT_SLOT_LENGTH);
+            while (first.hasRemaining() && source.read(first, first.position()) >= 0) {
+            }
+            if (first.position() >= 4 && first.getInt(0) == MAGIC) {
+                return;
+            }
+            if (first.hasRemaining() || (first.get(0) != ServerSlotClass.LARGE.liveMark() && first.get(0) != ServerSlotClass.LARGE.deletedMark())) {
+                return;
+            }
+
+            slots = source.size() / FIRST_FORMAT_SLOT_LENGTH;
+            if (source.size() % FIRST_FORMAT_SLOT_LENGTH != 0) {
+                log.warn("Storage file {} ends with a slot which was not written completely, it is dropped.", storageFile);
+            }
+            log.info("Storage file {} has the first layout, {} slots are upgraded to format version {}.", storageFile, slots, FORMAT_VERSION);
+
+            Files.deleteIfExists(upgradeFile.toPath());
+            try (FileChannel target = new RandomAccessFile(upgradeFile, "rw").getChannel()) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).clear();
+                while (header.hasRemaining()) {
+                    target.write(header);
+                }
+
+                ByteBuffer oldSlot = ByteBuffer.allocate(FIRST_FORMAT_SLOT_LENGTH);
+                ByteBuffer newSlot = ByteBuffer.allocate(WHOLE_CHUNK_WITH_META_LENGTH);
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_LENGTH); //encrypted chunks are decrypted here one by one
+                for (long slot = 0; slot < slots; slot++) {
+                    oldSlot.clear();
+                    while (oldSlot.hasRemaining()) {
+                        source.read(oldSlot, slot * FIRST_FORMAT_SLOT_LENGTH + oldSlot.position());
+                    }
+
+                    int checksum = 0;
+                    if (oldSlot.get(0) == ServerSlotClass.LARGE.liveMark()) {
+                        checksum = firstFormatChecksum(oldSlot, serverEnigma, storageFile, chunk);
+                    }
+
+                    oldSlot.clear().limit(1 + KEY_LENGTH + 4);
+                    newSlot.clear();
+                    newSlot.put(oldSlot).putInt(checksum);
+                    oldSlot.limit(oldSlot.capacity());
+                    newSlot.put(oldSlot).flip();
+                    while (newSlot.hasRemaining()) {
+                        target.write(newSlot);
+                    }
+                }//for
+                target.force(true);
+            }
+        }
+
+        Files.move(upgradeFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Storage file {} was upgraded.", storageFile);
+    }
+
+    /**
+     * @param chunk buffer of {@link #CHUNK_LENGTH} bytes an encrypted chunk is decrypted into.
+     * @return checksum of the plain chunk of the slot.
+     */
+    private static int firstFormatChecksum(ByteBuffer slot, ServerEnigma serverEnigma, String storageFile, ByteBuffer chunk) throws IOException {
+        int chunkLength = slot.getInt(1 + KEY_LENGTH);
+        if (chunkLength < 0 || chunkLength > CHUNK_LENGTH) {
+            throw new IOException("Storage file " + storageFile + " has a slot of wrong chunk length " + chunkLength + ".");
+        }
+
+        int chunkPosition = 1 + KEY_LENGTH + 4 + ENCRYPTION_CHUNK_INFO_LENGTH;
+        int keyHash = slot.getInt(1 + KEY_LENGTH + 4);
+        if (keyHash == 0) {
+            return checksum(slot.array(), chunkPosition, chunkLength);
+        }
+        if (serverEnigma == null) {
+            throw new IOException("Storage file " + storageFile + " has encrypted chunks, it can`t be upgraded without keys.");
+        }
+
+        byte[] IV = Arrays.copyOfRange(slot.array(), 1 + KEY_LENGTH + 4 + 4, 1 + KEY_LENGTH + 4 + 4 + IV_LENGTH);
+        chunk.clear();
+        serverEnigma.decrypt(keyHash, IV, ByteBuffer.wrap(slot.array(), chunkPosition, chunkLength), chunk);
+        chunk.flip();
+        return checksum(chunk);
     }
 
     public static ServerStorage newServerStorage(ServerParams params, ServerEnigma serverEnigma) throws IOException {
-        RandomAccessFile randomAccessFile = new RandomAccessFile(params.getStorageFile(), "rw");
-        FileChannel fileChannel = randomAccessFile.getChannel();
-        MultiKeyMap mainIndex = MultiKeyMap.decorate(new LinkedMap(params.getInitialIndexSize()));
-        ServerStorage serverStorage = new ServerStorage(fileChannel, serverEnigma, params, mainIndex);
+        return newServerStorage(params, params.getStorageFile(),
+                params.getSnapshotFile() != null ? params.getSnapshotFile() : params.getStorageFile() + ".hint", serverEnigma);
+    }
+
+    /**
+     * @param storageFile overrides the storage file of params, it is one of files of a striped storage.
+     */
+    public static ServerStorage newServerStorage(ServerParams params, String storageFile, String snapshotFile,
+            ServerEnigma serverEnigma) throws IOException {
+        upgradeFirstFormat(storageFile, serverEnigma);
+
+        FileChannel fileChannel = params.isDirect()
+                ? ServerDirectChannel.open(Paths.get(storageFile))
+                : new RandomAccessFile(storageFile, "rw").getChannel();
+        ServerKeyIndex mainIndex = ServerKeyIndex.newServerKeyIndex(params.getInitialIndexSize());
+        ServerBufferPool bufferPool = ServerBufferPool.newServerBufferPool(
+                params.getBufferPoolSize() > 0 ? params.getBufferPoolSize() : ServerBufferPool.DEFAULT_SIZE);
+        if (fileChannel instanceof ServerDirectChannel) {
+            long padding = fileChannel.size() % ServerSlotClass.PAGE_LENGTH;
+            if (padding < ((ServerDirectChannel) fileChannel).getBlockSize()) {
+                fileChannel.truncate(fileChannel.size() - padding); //rest of the last block, it is not a page
+            }
+        }
+        try {
+            checkHeader(fileChannel, storageFile);
+        } catch (IOException ioe) {
+            fileChannel.close();
+            throw ioe;
+        }
+        ServerStorage serverStorage = new ServerStorage(fileChannel, serverEnigma, params, mainIndex, bufferPool, new File(snapshotFile));
+        serverStorage.tail.set(roundUpToPage(fileChannel.size()));
+        if (params.isMapped() && fileChannel instanceof ServerDirectChannel) {
+            log.warn("Direct storage file {} is not mapped.", storageFile);
+        } else if (params.isMapped()) {
+            serverStorage.storageMap = new ServerStorageMap(fileChannel);
+        }
+        serverStorage.syncer = ServerSyncer.newServerSyncer(serverStorage, params);
+        if (params.getWriteThreads() > 0) {
+            serverStorage.writePipeline = ServerWritePipeline.newServerWritePipeline(serverStorage, params);
+        }
+        if (params.getCacheSize() > 0) {
+            serverStorage.cache = ServerChunkCache.newServerChunkCache(params.getCacheSize());
+        }
+        if (params.getScrubRate() > 0) {
+            serverStorage.scrubber = ServerScrubber.newServerScrubber(serverStorage, params.getScrubRate(), params.isQuarantine());
+        }
+        if (params.getCompactRate() > 0) {
+            serverStorage.compactor = ServerCompactor.newServerCompactor(serverStorage, params.getCompactRate());
+        }
+        if (params.getIoThreads() > 0) {
+            ExecutorService ioExecutor = Executors.newFixedThreadPool(params.getIoThreads(),
+                    new ThreadFactoryBuilder().setNameFormat("storage-io-%d").setDaemon(true).build());
+            serverStorage.ioExecutor = MoreExecutors.listeningDecorator(ioExecutor);
+            //mapped and direct files are read by their own means
+            if (serverStorage.storageMap == null && !(fileChannel instanceof ServerDirectChannel)) {
+                serverStorage.asyncChannel = AsynchronousFileChannel.open(Paths.get(storageFile),
+                        EnumSet.of(StandardOpenOption.READ), ioExecutor);
+            }
+        }
         return serverStorage;
     }
 
+    public synchronized long getSnapshotCoverage() {
+        return snapshotCoverage;
+    }
+
+    public ServerStripeLayout readStripeLayout() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(STRIPE_LAYOUT_LENGTH);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, STRIPE_LAYOUT_OFFSET + buffer.position()) < 0) {
+                throw new EOFException("Header of storage file is truncated.");
+            }
+        }
+        return new ServerStripeLayout(buffer.getLong(0), buffer.getInt(8), buffer.getInt(12));
+    }
+
+    public void writeStripeLayout(ServerStripeLayout layout) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(STRIPE_LAYOUT_LENGTH);
+        buffer.putLong(layout.getId()).putInt(layout.getStripe()).putInt(layout.getStripes()).flip();
+        write(buffer, STRIPE_LAYOUT_OFFSET);
+        fileChannel.force(false);
+    }
+
+    public ServerKeyIndex getMainIndex() {
+        return mainIndex;
+    }
+
+    public ServerBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public ServerSyncer getSyncer() {
+        return syncer;
+    }
+
+    public ServerWritePipeline getWritePipeline() {
+        return writePipeline;
+    }
+
+    /**
+     * @return cache of plain chunks or null.
+     */
+    public ServerChunkCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return scrubber of the storage or null.
+     */
+    public ServerScrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * @return compactor of the storage or null.
+     */
+    public ServerCompactor getCompactor() {
+        return compactor;
+    }
+
     public boolean contains(ByteBuffer key) {
-        return mainIndex.containsKey(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12));
+        return mainIndex.contains(key);
+    }
+
+    /**
+     * @return false if the key is surely not stored, true means it may be.
+     */
+    public boolean mightContain(ByteBuffer key) {
+        return filter.mightContain(key);
     }
 
-    public synchronized void append(ByteBuffer key, ByteBuffer chunk) throws IOException {
-        if (contains(key)) {
+    public ServerCuckooFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Puts a new key to the index and the filter, the key lock must be held.
+     */
+    private void index(ByteBuffer key, ServerIndexEntry indexEntry) throws IOException {
+        mainIndex.put(key, indexEntry);
+        filter.put(key);
+        if (cache != null) {
+            cache.invalidate(key); //a reader of the deleted chunk may have cached it meanwhile
+        }
+    }
+
+    /**
+     * Replaces an overloaded filter with one of double capacity built from the index. Writes wait meanwhile,
+     * lookups go to the old filter till the new one is ready.
+     */
+    private void growFilterIfOverloaded() throws IOException {
+        if (!filter.isOverloaded()) {
             return;
         }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(AUX_CHUNK_INFO_LENGTH + ENCRYPTION_CHUNK_INFO_LENGTH + CHUNK_LENGTH)
-                .put(Byte.MAX_VALUE) //tombstone is off
+        synchronized (filterLock) {
+            if (!filter.isOverloaded()) {
+                return; //grown by another writer
+            }
+
+            Lock mutation = mutationLock.writeLock();
+            mutation.lock();
+            try {
+                ServerCuckooFilter grown = ServerCuckooFilter.newServerCuckooFilter(
+                        (long) Math.max(filter.capacity() * 2 * ServerCuckooFilter.MAX_LOAD_FACTOR, mainIndex.size()));
+                putKeysTo(grown);
+                log.info("Filter of {} keys was grown to {} entries.", mainIndex.size(), grown.capacity());
+                filter = grown;
+            } finally {
+                mutation.unlock();
+            }
+        }
+    }
+
+    private static int keyStripe(ByteBuffer key) {
+        return (key.getInt(0) & Integer.MAX_VALUE) % KEY_LOCK_STRIPES; //md5 bytes are uniform enough
+    }
+
+    private Lock keyLock(ByteBuffer key) {
+        return keyLocks.getAt(keyStripe(key));
+    }
+
+    public void append(ByteBuffer key, ByteBuffer chunk) throws IOException {
+        Lock mutation = mutationLock.readLock();
+        Lock keyLock = keyLock(key);
+        mutation.lock();
+        keyLock.lock();
+        try {
+            if (contains(key)) {
+                return;
+            }
+
+            ServerSlotClass slotClass = ServerSlotClass.forChunk(chunk.limit());
+            ByteBuffer byteBuffer = bufferPool.acquire();
+            try {
+                encode(key, chunk, byteBuffer);
+
+                long reusedPosition = freeSlots.take(slotClass, isPinned);
+                if (reusedPosition < 0) {
+                    long pagePosition = tail.getAndAdd(ServerSlotClass.PAGE_LENGTH);
+                    write(byteBuffer, pagePosition);
+                    //tail of the page is not written, but the file must grow by the whole page
+                    if (byteBuffer.limit() < ServerSlotClass.PAGE_LENGTH) {
+                        write(ByteBuffer.allocate(1), pagePosition + ServerSlotClass.PAGE_LENGTH - 1);
+                    }
+                    index(key, new ServerIndexEntry(pagePosition + AUX_CHUNK_INFO_LENGTH, chunk.limit()));
+
+                    //the rest of the page can be freed only now, when the first slot tells the page class
+                    for (int i = 1; i < slotClass.getSlotsPerPage(); i++) {
+                        long slotPosition = pagePosition + (long) i * slotClass.getSlotLength();
+                        freeSlots.free(slotClass, slotPosition + AUX_CHUNK_INFO_LENGTH);
+                    }
+
+                } else {
+                    writeToFreeSlot(key, byteBuffer, reusedPosition);
+                }
+            } finally {
+                bufferPool.release(byteBuffer);
+            }
+        } finally {
+            keyLock.unlock();
+            mutation.unlock();
+        }
+        growFilterIfOverloaded();
+    }
+
+    /**
+     * Puts slot header and the chunk, encrypted if it is on, into the target buffer and flips it.
+     */
+    void encode(ByteBuffer key, ByteBuffer chunk, ByteBuffer target) {
+        target
+                .put(ServerSlotClass.forChunk(chunk.limit()).liveMark()) //tombstone is off
                 .put(key.array()) //chunk hash
-                .putInt(chunk.array().length); //chunk length
+                .putInt(chunk.limit()) //chunk length
+                .putInt(checksum(chunk)); //checksum of the plain chunk
 
         if (params.isEncrypt()) {
-            ServerEnigma.EncryptedChunk encryptedChunk = enigma.encrypt(chunk);
-            byteBuffer
-                    .putInt(encryptedChunk.getKeyHash()) //key hash
-                    .put(encryptedChunk.getIV()) //IV
-                    .put(encryptedChunk.getChunk().array()); //encrypted chunk
+            enigma.encrypt(chunk, target); //key hash, IV and encrypted chunk
         } else {
-            byteBuffer
+            target
                     .putInt(0) //empty key hash
-                    .put(new byte[IV_LENGTH]) //empty IV
-                    .put(chunk.array()); //chunk itself
+                    .put(EMPTY_IV) //empty IV
+                    .put(chunk.array(), chunk.arrayOffset(), chunk.limit()); //chunk itself
         }
 
-        byteBuffer.rewind();
+        target.flip();
+    }
+
+    static int checksum(ByteBuffer chunk) {
+        return checksum(chunk.array(), chunk.arrayOffset(), chunk.limit());
+    }
 
-        if (condemnedIndex.isEmpty()) {
-            long chunkFirstBytePosition = fileChannel.size() + AUX_CHUNK_INFO_LENGTH;
-            while (byteBuffer.hasRemaining()) {
-                fileChannel.write(byteBuffer, fileChannel.size());
+    static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param chunkPool pool of heap chunks or null for a chunk of its own.
+     * @return heap chunk limited to the length, a pooled one is its array up to the limit.
+     */
+    static ByteBuffer newChunk(ServerBufferPool chunkPool, int length) {
+        if (chunkPool == null || length > chunkPool.getBufferLength()) {
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer chunk = chunkPool.acquire();
+        chunk.limit(length);
+        return chunk;
+    }
+
+    private void writeToFreeSlot(ByteBuffer key, ByteBuffer slot, long chunkPosition) throws IOException {
+        int chunkLength = slot.getInt(1 + KEY_LENGTH);
+        beforeSlotChange(chunkPosition - AUX_CHUNK_INFO_LENGTH);
+        readGuard.awaitReaders(); //somebody may still read the deleted chunk
+        write(slot, chunkPosition - AUX_CHUNK_INFO_LENGTH);
+        index(key, new ServerIndexEntry(chunkPosition, chunkLength));
+        afterSlotChange(slot.get(0), chunkPosition, key, chunkLength);
+    }
+
+    /**
+     * Appends slots encoded by {@link #encode(ByteBuffer, ByteBuffer, ByteBuffer)}. Free slots are reused as
+     * usual, the rest of chunks are packed into new pages at the tail, which are written by one gathered
+     * write. Keys which are already stored are skipped.
+     */
+    void appendEncoded(List<ByteBuffer> keys, List<ByteBuffer> slots) throws IOException {
+        SortedSet<Integer> stripes = new TreeSet<>(); //locked in order, other threads lock one stripe at most
+        for (ByteBuffer key : keys) {
+            stripes.add(keyStripe(key));
+        }
+
+        Lock mutation = mutationLock.readLock();
+        mutation.lock();
+        for (int stripe : stripes) {
+            keyLocks.getAt(stripe).lock();
+        }
+        try {
+            Set<ByteBuffer> appendedKeys = new HashSet<>(keys.size());
+            List<List<Integer>> pages = new ArrayList<>();
+            Map<ServerSlotClass, List<Integer>> openPages = new EnumMap<>(ServerSlotClass.class);
+            for (int i = 0; i < keys.size(); i++) {
+                ByteBuffer key = keys.get(i);
+                if (contains(key) || !appendedKeys.add(ByteBuffer.wrap(key.array()))) { //position of a key is not reliable
+                    continue;
+                }
+
+                ServerSlotClass slotClass = ServerSlotClass.ofMark(slots.get(i).get(0));
+                long reusedPosition = freeSlots.take(slotClass, isPinned);
+                if (reusedPosition >= 0) {
+                    writeToFreeSlot(key, slots.get(i), reusedPosition);
+                    continue;
+                }
+
+                List<Integer> page = openPages.get(slotClass);
+                if (page == null || page.size() == slotClass.getSlotsPerPage()) {
+                    page = new ArrayList<>(slotClass.getSlotsPerPage());
+                    pages.add(page);
+                    openPages.put(slotClass, page);
+                }
+                page.add(i);
+            }//for
+
+            if (!pages.isEmpty()) {
+                appendPages(keys, slots, pages);
+            }
+        } finally {
+            for (int stripe : stripes) {
+                keyLocks.getAt(stripe).unlock();
+            }
+            mutation.unlock();
+        }
+        growFilterIfOverloaded();
+    }
+
+    /**
+     * @param pages indexes of slots of every new page, all slots of a page are of one class.
+     */
+    private void appendPages(List<ByteBuffer> keys, List<ByteBuffer> slots, List<List<Integer>> pages) throws IOException {
+        long start = tail.getAndAdd((long) ServerSlotClass.PAGE_LENGTH * pages.size());
+
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (List<Integer> page : pages) {
+            ServerSlotClass slotClass = ServerSlotClass.ofMark(slots.get(page.get(0)).get(0));
+            for (int i : page) {
+                ByteBuffer slot = slots.get(i);
+                buffers.add(slot);
+                if (slot.remaining() < slotClass.getSlotLength()) {
+                    buffers.add(zeros(slotClass.getSlotLength() - slot.remaining()));
+                }
+            }//for
+            int pageLength = page.size() * slotClass.getSlotLength();
+            if (pageLength < ServerSlotClass.PAGE_LENGTH) {
+                buffers.add(zeros(ServerSlotClass.PAGE_LENGTH - pageLength)); //the file must grow by whole pages
             }
-            ServerIndexEntry entry = new ServerIndexEntry(chunkFirstBytePosition, chunk.array().length);
-            mainIndex.put(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12), entry);
+        }//for
 
-        } else {
-            ServerIndexEntry entry = condemnedIndex.get(0);
-            while (byteBuffer.hasRemaining()) {
-                fileChannel.write(byteBuffer, entry.getChunkPosition() - AUX_CHUNK_INFO_LENGTH);
+        ByteBuffer[] gathered = buffers.toArray(new ByteBuffer[buffers.size()]);
+        synchronized (gatherLock) {
+            fileChannel.position(start);
+            while (gathered[gathered.length - 1].hasRemaining()) {
+                fileChannel.write(gathered);
             }
-            condemnedIndex.remove(0);
-            entry.setChunkLength(chunk.array().length);
-            mainIndex.put(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12), entry);
         }
+        syncer.written(ServerSlotClass.PAGE_LENGTH * pages.size());
+
+        long pagePosition = start;
+        for (List<Integer> page : pages) {
+            ServerSlotClass slotClass = ServerSlotClass.ofMark(slots.get(page.get(0)).get(0));
+            for (int i = 0; i < slotClass.getSlotsPerPage(); i++) {
+                long chunkPosition = pagePosition + (long) i * slotClass.getSlotLength() + AUX_CHUNK_INFO_LENGTH;
+                if (i < page.size()) {
+                    ByteBuffer slot = slots.get(page.get(i));
+                    index(keys.get(page.get(i)), new ServerIndexEntry(chunkPosition, slot.getInt(1 + KEY_LENGTH)));
+                } else {
+                    freeSlots.free(slotClass, chunkPosition);
+                }
+            }//for
+            pagePosition += ServerSlotClass.PAGE_LENGTH;
+        }//for
     }
 
-    public synchronized ByteBuffer read(ByteBuffer key) throws IOException {
-        ServerIndexEntry indexEntry = (ServerIndexEntry) mainIndex.get(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12));
+    private static ByteBuffer zeros(int length) {
+        ByteBuffer zeros = ZERO_PAGE.duplicate();
+        zeros.limit(length);
+        return zeros;
+    }
 
-        if (indexEntry == null) {
-            return null;
+    /**
+     * Appends the chunk through the write pipeline if there is one, otherwise by the I/O executor or right
+     * away.
+     */
+    public ListenableFuture<Void> appendAsync(final ByteBuffer key, final ByteBuffer chunk) {
+        if (writePipeline != null) {
+            return writePipeline.append(key, chunk);
+        }
+        if (ioExecutor != null) {
+            return ioExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    append(key, chunk);
+                    return null;
+                }
+            });
+        }
+        try {
+            append(key, chunk);
+            return Futures.immediateFuture(null);
+        } catch (IOException ioe) {
+            return Futures.immediateFailedFuture(ioe);
         }
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(ENCRYPTION_CHUNK_INFO_LENGTH);
+    private void write(ByteBuffer buffer, long position) throws IOException {
         while (buffer.hasRemaining()) {
-            fileChannel.read(buffer, indexEntry.getChunkPosition());
+            fileChannel.write(buffer, position + buffer.position());
         }
+        syncer.written(buffer.limit());
+    }
 
-        Integer keyHash = buffer.getInt(0);
+    /**
+     * Blocks until writes made before the call are on the disk, see {@link ServerDurability}.
+     */
+    public void awaitDurable() throws IOException {
+        syncer.await();
+    }
 
-        byte[] IV = new byte[IV_LENGTH];
-        buffer.position(4);
-        buffer.get(IV);
+    /**
+     * Forces the storage file and the journal of its snapshot, so a replayed journal never lacks a change
+     * which is already on the disk.
+     */
+    void force() throws IOException {
+        fileChannel.force(false);
+        synchronized (this) {
+            if (journal != null) {
+                journal.force();
+            }
+        }
+    }
+
+    /**
+     * Finds a chunk which is stored without encryption and pins its slot, so it can be sent by
+     * {@link #transferTo(ServerIndexEntry, WritableByteChannel)} without holding any lock.
+     * Every pinned chunk must be released by {@link #unpin(ServerIndexEntry)}.
+     *
+     * @return copy of the chunk index entry or null if chunk was not found, is encrypted or the file is
+     * direct, sendfile would read it through the page cache.
+     */
+    public ServerIndexEntry pinPlainChunk(ByteBuffer key) throws IOException {
+        if (fileChannel instanceof ServerDirectChannel) {
+            return null;
+        }
+
+        Lock keyLock = keyLock(key); //chunk can`t be deleted before it is pinned
+        keyLock.lock();
+        try {
+            ServerIndexEntry indexEntry = mainIndex.get(key);
+
+            if (indexEntry == null) {
+                return null;
+            }
+
+            ByteBuffer keyHash = ByteBuffer.allocate(4);
+            while (keyHash.hasRemaining()) {
+                fileChannel.read(keyHash, indexEntry.getChunkPosition() + keyHash.position());
+            }
+
+            if (keyHash.getInt(0) != 0) {
+                return null;
+            }
+
+            pinnedChunkPositions.add(indexEntry.getChunkPosition());
+            return new ServerIndexEntry(indexEntry.getChunkPosition(), indexEntry.getChunkLength());
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    public void unpin(ServerIndexEntry indexEntry) {
+        pinnedChunkPositions.remove(indexEntry.getChunkPosition());
+    }
+
+    /**
+     * Sends pinned chunk from the storage file straight to the channel. On Linux it is sendfile, so
+     * chunk bytes are never copied to the heap.
+     */
+    public void transferTo(ServerIndexEntry indexEntry, WritableByteChannel target) throws IOException {
+        long position = indexEntry.getChunkPosition() + ENCRYPTION_CHUNK_INFO_LENGTH;
+        long end = position + indexEntry.getChunkLength();
+        while (position < end) {
+            long transferred = fileChannel.transferTo(position, end - position, target);
+            if (transferred == 0 && position >= fileChannel.size()) {
+                throw new EOFException("Chunk is beyond the end of storage file.");
+            }
+            position += transferred;
+        }
+    }
+
+    public ByteBuffer read(ByteBuffer key) throws IOException {
+        return read(key, null);
+    }
+
+    /**
+     * @param chunkPool pool the chunk is taken from, so the caller may give it back once it is answered;
+     * null for a chunk of its own.
+     */
+    public ByteBuffer read(ByteBuffer key, ServerBufferPool chunkPool) throws IOException {
+        int epoch = readGuard.enterRead();
+        try {
+            ServerIndexEntry indexEntry = mainIndex.get(key);
+
+            if (indexEntry == null) {
+                return null;
+            }
 
-        ByteBuffer chunk = ByteBuffer.allocate(indexEntry.getChunkLength());
-        while (chunk.hasRemaining()) {
-            fileChannel.read(chunk, indexEntry.getChunkPosition() + ENCRYPTION_CHUNK_INFO_LENGTH);
+            return read(key, indexEntry, chunkPool);
+        } finally {
+            readGuard.exitRead(epoch);
         }
+    }
+
+    /**
+     * Reads the chunk without blocking the caller. The read epoch is held until the chunk is read, so its
+     * slot can`t be reused meanwhile. Cached chunks are returned right away.
+     *
+     * @return future of the chunk or of null if it was not found, it fails with
+     * {@link ServerCorruptedChunkException} if the chunk does not match the checksum.
+     */
+    public ListenableFuture<ByteBuffer> readAsync(ByteBuffer key) {
+        return readAsync(key, null);
+    }
+
+    /**
+     * @param chunkPool pool the chunk is taken from, see {@link #read(ByteBuffer, ServerBufferPool)}.
+     */
+    public ListenableFuture<ByteBuffer> readAsync(final ByteBuffer key, final ServerBufferPool chunkPool) {
+        if (ioExecutor == null) {
+            try {
+                return Futures.immediateFuture(read(key, chunkPool));
+            } catch (IOException ioe) {
+                return Futures.immediateFailedFuture(ioe);
+            }
+        }
+
+        final int epoch = readGuard.enterRead();
+        ListenableFuture<ByteBuffer> future = null;
+        try {
+            final ServerIndexEntry indexEntry = mainIndex.get(key);
+            if (indexEntry == null) {
+                return Futures.immediateFuture(null);
+            }
+
+            ByteBuffer chunk = cache != null ? cache.get(key, indexEntry.getChunkPosition(), chunkPool) : null;
+            if (chunk != null) {
+                return Futures.immediateFuture(chunk);
+            }
+
+            if (asyncChannel == null) {
+                future = ioExecutor.submit(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws IOException {
+                        try {
+                            return read(key, indexEntry, chunkPool);
+                        } finally {
+                            readGuard.exitRead(epoch);
+                        }
+                    }
+                });
+            } else {
+                future = readAsync(key, indexEntry, epoch, chunkPool);
+            }
+            return future;
+        } finally {
+            if (future == null) {
+                readGuard.exitRead(epoch);
+            }
+        }
+    }
+
+    /**
+     * Reads the chunk with its checksum through the asynchronous channel and leaves the read epoch.
+     */
+    private ListenableFuture<ByteBuffer> readAsync(final ByteBuffer key, final ServerIndexEntry indexEntry, final int epoch,
+            final ServerBufferPool chunkPool) {
+        final SettableFuture<ByteBuffer> future = SettableFuture.create();
+        final ByteBuffer buffer = bufferPool.acquire();
+        final long position = indexEntry.getChunkPosition() - CHECKSUM_LENGTH;
+        buffer.limit(CHECKSUM_LENGTH + ENCRYPTION_CHUNK_INFO_LENGTH + indexEntry.getChunkLength());
+
+        asyncChannel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read >= 0 && buffer.hasRemaining()) {
+                    asyncChannel.read(buffer, position + buffer.position(), null, this);
+                    return;
+                }
+
+                ByteBuffer chunk = null;
+                Throwable failure = null;
+                try {
+                    if (read < 0) {
+                        throw new EOFException("Chunk is beyond the end of storage file.");
+                    }
+                    buffer.flip();
+                    chunk = verify(buffer, indexEntry.getChunkPosition(), chunkPool);
+                    if (cache != null) {
+                        cache.put(key, indexEntry.getChunkPosition(), chunk);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    bufferPool.release(buffer);
+                    readGuard.exitRead(epoch);
+                }
+
+                if (failure == null) {
+                    future.set(chunk);
+                } else {
+                    future.setException(failure);
+                }
+            }
+
+            @Override
+            public void failed(Throwable failure, Void attachment) {
+                bufferPool.release(buffer);
+                readGuard.exitRead(epoch);
+                future.setException(failure);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Reads a batch of chunks in order of their positions in the file, so the disk makes one forward pass
+     * instead of jumping back and forth.
+     *
+     * @return chunks in order of keys, null for keys which were not found.
+     */
+    public List<ByteBuffer> readAll(List<ByteBuffer> keys) throws IOException {
+        int epoch = readGuard.enterRead();
+        try {
+            return readSorted(keys);
+        } finally {
+            readGuard.exitRead(epoch);
+        }
+    }
+
+    private List<ByteBuffer> readSorted(List<ByteBuffer> keys) throws IOException {
+        final ServerIndexEntry[] indexEntries = new ServerIndexEntry[keys.size()];
+        List<Integer> order = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer key = keys.get(i);
+            indexEntries[i] = mainIndex.get(key);
+            if (indexEntries[i] != null) {
+                order.add(i);
+            }
+        }
+
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(indexEntries[first].getChunkPosition(), indexEntries[second].getChunkPosition());
+            }
+        });
+
+        List<ByteBuffer> chunks = new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null));
+        for (int i : order) {
+            chunks.set(i, read(keys.get(i), indexEntries[i], null));
+        }
+        return chunks;
+    }
+
+    /**
+     * Chunk is cached within the read epoch, so a slot can`t be reused before it is cached and the key is
+     * invalidated when it is indexed again.
+     */
+    private ByteBuffer read(ByteBuffer key, ServerIndexEntry indexEntry, ServerBufferPool chunkPool) throws IOException {
+        if (cache == null) {
+            return read(indexEntry, chunkPool);
+        }
+
+        ByteBuffer chunk = cache.get(key, indexEntry.getChunkPosition(), chunkPool);
+        if (chunk == null) {
+            chunk = read(indexEntry, chunkPool);
+            cache.put(key, indexEntry.getChunkPosition(), chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the chunk with the checksum which precedes it.
+     *
+     * @throws ServerCorruptedChunkException if the chunk does not match the checksum.
+     */
+    private ByteBuffer read(ServerIndexEntry indexEntry, ServerBufferPool chunkPool) throws IOException {
+        long position = indexEntry.getChunkPosition() - CHECKSUM_LENGTH;
+        int length = CHECKSUM_LENGTH + ENCRYPTION_CHUNK_INFO_LENGTH + indexEntry.getChunkLength();
+        if (storageMap != null) {
+            //mapped slice is valid only during the read, so the chunk is copied or decrypted out of it
+            return verify(storageMap.slice(position, length), indexEntry.getChunkPosition(), chunkPool);
+        }
+
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Chunk is beyond the end of storage file.");
+                }
+            }
+            buffer.flip();
+
+            return verify(buffer, indexEntry.getChunkPosition(), chunkPool);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Decrypts or copies the chunk out of the slot buffer straight into the heap chunk it is returned in.
+     *
+     * @param buffer checksum, encryption info and chunk.
+     */
+    private ByteBuffer verify(ByteBuffer buffer, long chunkPosition, ServerBufferPool chunkPool) throws ServerCorruptedChunkException {
+        int checksum = buffer.getInt();
+        ByteBuffer chunk = newChunk(chunkPool, buffer.remaining() - ENCRYPTION_CHUNK_INFO_LENGTH);
+        try {
+            open(buffer, chunk);
+        } catch (RuntimeException re) {
+            throw new ServerCorruptedChunkException(chunkPosition); //key hash of the slot is broken
+        }
+        if (checksum(chunk) != checksum) {
+            throw new ServerCorruptedChunkException(chunkPosition);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads a whole page, bytes beyond the end of the file read as zeros.
+     */
+    void readPage(long pagePosition, ByteBuffer page) throws IOException {
+        page.clear().limit(ServerSlotClass.PAGE_LENGTH);
+        while (page.hasRemaining()) {
+            if (fileChannel.read(page, pagePosition + page.position()) < 0) {
+                while (page.hasRemaining()) {
+                    page.put((byte) 0);
+                }
+            }
+        }
+        page.flip();
+    }
+
+    /**
+     * @return length of the storage, all its pages are reserved.
+     */
+    long length() {
+        return tail.get();
+    }
+
+    /**
+     * @param buffer encryption info and chunk.
+     * @return plain chunk on heap.
+     */
+    ByteBuffer open(ByteBuffer buffer) {
+        ByteBuffer chunk = ByteBuffer.allocate(buffer.remaining() - ENCRYPTION_CHUNK_INFO_LENGTH);
+        open(buffer, chunk);
+        return chunk;
+    }
 
+    /**
+     * Puts the plain chunk into the heap target and flips it.
+     *
+     * @param buffer encryption info and chunk.
+     */
+    void open(ByteBuffer buffer, ByteBuffer chunk) {
+        int keyHash = buffer.getInt();
         if (keyHash == 0) {
-            return chunk;
+            buffer.position(buffer.position() + IV_LENGTH);
+            chunk.put(buffer);
         } else {
-            ServerEnigma.EncryptedChunk encryptedChunk = new ServerEnigma.EncryptedChunk(keyHash, IV, chunk);
-            return enigma.decrypt(encryptedChunk);
+            byte[] IV = new byte[IV_LENGTH];
+            buffer.get(IV);
+            enigma.decrypt(keyHash, IV, buffer, chunk);
         }
+        chunk.flip();
     }
 
-    public synchronized void delete(ByteBuffer key) throws IOException {
-        ServerIndexEntry indexEntry = (ServerIndexEntry) mainIndex.remove(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12));
-        if (indexEntry != null) {
-            long tombstonePosition = indexEntry.getChunkPosition() - AUX_CHUNK_INFO_LENGTH;
-            fileChannel.write(ByteBuffer.allocate(1).put(Byte.MIN_VALUE), tombstonePosition);
-            condemnedIndex.add(indexEntry);
+    public void delete(ByteBuffer key) throws IOException {
+        Lock mutation = mutationLock.readLock();
+        Lock keyLock = keyLock(key);
+        mutation.lock();
+        keyLock.lock();
+        try {
+            ServerIndexEntry indexEntry = mainIndex.remove(key);
+            if (indexEntry != null) {
+                ServerSlotClass slotClass = unindex(key, indexEntry, false);
+                //journaled before the slot is free, otherwise its reuse could be journaled first
+                freeSlots.free(slotClass, indexEntry.getChunkPosition());
+            }
+        } finally {
+            keyLock.unlock();
+            mutation.unlock();
         }
     }
 
-    public BloomFilter loadExistedStorage() throws IOException {
-        log.info("Start loading data from existed database file.");
+    /**
+     * Deletes the chunk by the I/O executor if there is one, otherwise right away.
+     */
+    public ListenableFuture<Void> deleteAsync(final ByteBuffer key) {
+        if (ioExecutor != null) {
+            return ioExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    delete(key);
+                    return null;
+                }
+            });
+        }
+        try {
+            delete(key);
+            return Futures.immediateFuture(null);
+        } catch (IOException ioe) {
+            return Futures.immediateFailedFuture(ioe);
+        }
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(AUX_CHUNK_INFO_LENGTH);
-        long chunksSuccessfullyLoaded = 0;
-        long position = 0;
+    /**
+     * Takes a key removed from the index out of the filter and the cache and marks its slot deleted or
+     * quarantined, the key lock must be held.
+     *
+     * @return class of the slot.
+     */
+    private ServerSlotClass unindex(ByteBuffer key, ServerIndexEntry indexEntry, boolean isQuarantined) throws IOException {
+        filter.remove(key);
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+        return markSlot(key, indexEntry, isQuarantined);
+    }
 
-        BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(), params.getMaxExpectedSize(), 0.01);
-        
-        while (fileChannel.read(buffer, position) > 0) {
-            buffer.rewind();
+    /**
+     * Marks the slot of a chunk deleted or quarantined and journals the change.
+     *
+     * @return class of the slot.
+     */
+    private ServerSlotClass markSlot(ByteBuffer key, ServerIndexEntry indexEntry, boolean isQuarantined) throws IOException {
+        long tombstonePosition = indexEntry.getChunkPosition() - AUX_CHUNK_INFO_LENGTH;
+        ByteBuffer tombstone = ByteBuffer.allocate(1);
+        fileChannel.read(tombstone, tombstonePosition);
+        ServerSlotClass slotClass = ServerSlotClass.ofMark(tombstone.get(0));
+        byte mark = isQuarantined ? slotClass.quarantinedMark() : slotClass.deletedMark();
 
-            byte tombstone = buffer.get();
+        beforeSlotChange(tombstonePosition);
+        tombstone.put(0, mark).rewind();
+        write(tombstone, tombstonePosition);
+        afterSlotChange(mark, indexEntry.getChunkPosition(), key, indexEntry.getChunkLength());
+        return slotClass;
+    }
 
-            byte[] keyArray = new byte[KEY_LENGTH];
-            buffer.get(keyArray);
-            ByteBuffer key = ByteBuffer.wrap(keyArray);
+    /**
+     * Checks the chunk once more under the key lock, so a slot rewritten while it was scrubbed is not taken
+     * for a corrupted one. A corrupted chunk may be quarantined: it leaves the index, its slot is never
+     * reused and keeps its bytes for inspection.
+     *
+     * @return true if the key is still stored at the position and its chunk is corrupted.
+     */
+    public boolean checkCorrupted(ByteBuffer key, long chunkPosition, boolean isQuarantine) throws IOException {
+        Lock mutation = mutationLock.readLock();
+        Lock keyLock = keyLock(key);
+        mutation.lock();
+        keyLock.lock();
+        try {
+            ServerIndexEntry indexEntry = mainIndex.get(key);
+            if (indexEntry == null || indexEntry.getChunkPosition() != chunkPosition) {
+                return false;
+            }
 
-            int chunkLength = buffer.getInt();
-            long chunkPosition = position + AUX_CHUNK_INFO_LENGTH;
+            try {
+                read(indexEntry, null);
+                return false;
+            } catch (ServerCorruptedChunkException scce) {
+                //the chunk is corrupted indeed
+            }
 
-            ServerIndexEntry indexEntry = new ServerIndexEntry(chunkPosition, chunkLength);
+            if (isQuarantine) {
+                mainIndex.remove(key);
+                unindex(key, indexEntry, true);
+                log.warn("Slot at {} is quarantined.", chunkPosition - AUX_CHUNK_INFO_LENGTH);
+            }
+            return true;
+        } finally {
+            keyLock.unlock();
+            mutation.unlock();
+        }
+    }
 
-            if (tombstone == Byte.MAX_VALUE) {
-                mainIndex.put(key.getInt(0), key.getInt(4), key.getInt(8), key.getInt(12), indexEntry);
-                filter.put(keyArray);
-            } else {
-                condemnedIndex.add(indexEntry);
+    /**
+     * Snapshot being written covers slots which were already in the file, so a change of such slot makes
+     * it outdated.
+     */
+    private synchronized void beforeSlotChange(long slotPosition) {
+        if (slotPosition < pendingSnapshotCoverage) {
+            isPendingSnapshotValid = false;
+        }
+    }
+
+    /**
+     * Change of a slot covered by the snapshot on disk goes to its journal. If the journal can`t be written
+     * the snapshot is removed, so a restart scans the whole storage instead of loading an outdated index.
+     */
+    private synchronized void afterSlotChange(byte mark, long chunkPosition, ByteBuffer key, int chunkLength) {
+        if (journal == null || chunkPosition - AUX_CHUNK_INFO_LENGTH >= snapshotCoverage) {
+            return;
+        }
+
+        try {
+            journal.append(mark, chunkPosition, key, chunkLength);
+        } catch (IOException ioe) {
+            log.warn("Can`t journal slot change, index snapshot is dropped: {}", ioe.getMessage());
+            dropSnapshot();
+        }
+    }
+
+    private synchronized void dropSnapshot() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        snapshotCoverage = 0;
+        if (!snapshotFile.delete() && snapshotFile.exists()) {
+            log.warn("Can`t delete outdated index snapshot {}", snapshotFile);
+        }
+    }
+
+    /**
+     * Moves live chunks out of pages at the end of the file into free slots below them and truncates the
+     * file by the emptied pages. Slots are copied as they are, so chunks are neither decrypted nor checked.
+     * Readers may find either copy of a moved chunk, the old one is kept till they are gone.
+     *
+     * @param rateLimiter takes bytes read and written by every move.
+     * @return number of bytes the file has shrunk by.
+     */
+    public long compact(RateLimiter rateLimiter) throws IOException {
+        long emptied = tail.get();
+        ByteBuffer page = ByteBuffer.allocateDirect(ServerSlotClass.PAGE_LENGTH);
+        while (emptied > HEADER_LENGTH && evacuate(emptied - ServerSlotClass.PAGE_LENGTH, page, rateLimiter)) {
+            emptied -= ServerSlotClass.PAGE_LENGTH;
+        }
+        return truncate(emptied);
+    }
+
+    /**
+     * @return false if some chunk of the page has no free slot below the page to move to.
+     */
+    private boolean evacuate(long pagePosition, ByteBuffer page, RateLimiter rateLimiter) throws IOException {
+        readPage(pagePosition, page);
+        ServerSlotClass slotClass = ServerSlotClass.ofMark(page.get(0)); //first slot of a page is written first
+        for (int slot = 0; slot < slotClass.getSlotsPerPage(); slot++) {
+            int offset = slot * slotClass.getSlotLength();
+            byte mark = page.get(offset);
+            if (ServerSlotClass.isQuarantined(mark)) {
+                return false; //quarantined slots are kept for inspection
+            }
+            if (!ServerSlotClass.isLive(mark)) {
+                continue;
             }
 
-            position = chunkPosition + ENCRYPTION_CHUNK_INFO_LENGTH + CHUNK_LENGTH;
+            ByteBuffer key = ByteBuffer.allocate(KEY_LENGTH);
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                key.put(i, page.get(offset + 1 + i));
+            }
+            rateLimiter.acquire(2 * slotClass.getSlotLength());
+            if (!move(key, pagePosition + offset + AUX_CHUNK_INFO_LENGTH, slotClass, pagePosition)) {
+                return false;
+            }
+        }//for
+        return true;
+    }
 
-            buffer.clear();
+    /**
+     * Copies the slot of the key into a free slot below the boundary, points the index to the copy and frees
+     * the old slot.
+     *
+     * @return false if there is no free slot below the boundary.
+     */
+    private boolean move(ByteBuffer key, long chunkPosition, ServerSlotClass slotClass, long boundary) throws IOException {
+        Lock mutation = mutationLock.readLock();
+        Lock keyLock = keyLock(key);
+        mutation.lock();
+        keyLock.lock();
+        try {
+            ServerIndexEntry indexEntry = mainIndex.get(key);
+            if (indexEntry == null || indexEntry.getChunkPosition() != chunkPosition) {
+                return true; //deleted or written meanwhile
+            }
 
-            if (++chunksSuccessfullyLoaded % 1000 == 0) {
-                log.info("{} chunks were successfully loaded", chunksSuccessfullyLoaded);
+            long target = freeSlots.takeBelow(slotClass, boundary, isPinned);
+            if (target < 0) {
+                return false;
             }
-        }//while
 
-        log.info("{} chunks were successfully loaded", chunksSuccessfullyLoaded);
+            ByteBuffer slot = bufferPool.acquire();
+            try {
+                slot.limit(AUX_CHUNK_INFO_LENGTH + ENCRYPTION_CHUNK_INFO_LENGTH + indexEntry.getChunkLength());
+                while (slot.hasRemaining()) {
+                    if (fileChannel.read(slot, chunkPosition - AUX_CHUNK_INFO_LENGTH + slot.position()) < 0) {
+                        throw new EOFException("Chunk is beyond the end of storage file.");
+                    }
+                }
+                slot.flip();
 
-        return filter;
+                beforeSlotChange(target - AUX_CHUNK_INFO_LENGTH);
+                readGuard.awaitReaders(); //somebody may still read the deleted chunk
+                write(slot, target - AUX_CHUNK_INFO_LENGTH);
+                mainIndex.put(key, new ServerIndexEntry(target, indexEntry.getChunkLength()));
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+                afterSlotChange(slot.get(0), target, key, indexEntry.getChunkLength());
+            } finally {
+                bufferPool.release(slot);
+            }
+
+            freeSlots.free(markSlot(key, indexEntry, false), chunkPosition);
+            return true;
+        } finally {
+            keyLock.unlock();
+            mutation.unlock();
+        }
+    }
+
+    /**
+     * Cuts off pages beyond the length which have neither live, pinned nor quarantined slots. Writes wait
+     * meanwhile, so none of them can take a slot of a page being cut off.
+     *
+     * @return number of bytes the file has shrunk by.
+     */
+    private long truncate(long length) throws IOException {
+        Lock mutation = mutationLock.writeLock();
+        mutation.lock();
+        try {
+            long end = tail.get();
+            long newLength = end;
+            ByteBuffer mark = ByteBuffer.allocate(1);
+            while (newLength > length && isEmptyPage(newLength - ServerSlotClass.PAGE_LENGTH, mark)) {
+                newLength -= ServerSlotClass.PAGE_LENGTH;
+            }
+            if (newLength == end) {
+                return 0;
+            }
+
+            for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                freeSlots.removeFrom(slotClass, newLength);
+            }
+            tail.set(newLength);
+            readGuard.awaitReaders(); //somebody may still read a moved chunk at its old slot
+            fileChannel.truncate(newLength);
+            if (storageMap != null) {
+                storageMap.truncate(newLength);
+            }
+
+            synchronized (this) {
+                beforeSlotChange(newLength);
+                if (newLength < snapshotCoverage) {
+                    log.info("Index snapshot covers truncated pages and is dropped.");
+                    dropSnapshot();
+                }
+            }
+            log.info("Storage was truncated from {} to {} bytes.", end, newLength);
+            return end - newLength;
+        } finally {
+            mutation.unlock();
+        }
+    }
+
+    private boolean isEmptyPage(long pagePosition, ByteBuffer mark) throws IOException {
+        ServerSlotClass slotClass = null;
+        for (int slot = 0; slotClass == null || slot < slotClass.getSlotsPerPage(); slot++) {
+            long position = pagePosition + (slotClass == null ? 0 : (long) slot * slotClass.getSlotLength());
+            mark.clear();
+            if (fileChannel.read(mark, position) < 0) {
+                return true; //reserved page beyond the end of the file
+            }
+            if (slotClass == null) {
+                slotClass = ServerSlotClass.ofMark(mark.get(0));
+            }
+            if (ServerSlotClass.isLive(mark.get(0)) || ServerSlotClass.isQuarantined(mark.get(0))
+                    || isPinned.apply(position + AUX_CHUNK_INFO_LENGTH)) {
+                return false;
+            }
+        }//for
+        return true;
+    }
+
+    /**
+     * Writes snapshot of the index and free slots covering the current length of the storage file and starts
+     * its empty journal. Storage keeps serving meanwhile, appended chunks are left for the scan of the tail
+     * and a snapshot outdated by a delete or a reused slot is thrown away, the previous one stays in use.
+     *
+     * @return true if a new snapshot was written.
+     */
+    public boolean writeSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long coveredLength;
+            byte[] fingerprint;
+            Map<ServerSlotClass, List<Long>> free = new EnumMap<>(ServerSlotClass.class);
+            Lock mutation = mutationLock.writeLock(); //every reserved slot is written and indexed meanwhile
+            mutation.lock();
+            try {
+                synchronized (this) {
+                    coveredLength = tail.get();
+                    if (coveredLength == 0 || (coveredLength == snapshotCoverage && (journal == null || journal.isEmpty()))) {
+                        return false;
+                    }
+                    fingerprint = ServerIndexSnapshot.fingerprint(fileChannel);
+                    for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                        free.put(slotClass, freeSlots.list(slotClass));
+                    }
+                    pendingSnapshotCoverage = coveredLength;
+                    isPendingSnapshotValid = true;
+                }
+            } finally {
+                mutation.unlock();
+            }
+
+            long id = ThreadLocalRandom.current().nextLong();
+            File pendingFile = new File(snapshotFile.getPath() + ".tmp");
+            File pendingJournalFile = new File(journalFile.getPath() + ".tmp");
+            boolean isWritten = false;
+            try {
+                ServerIndexSnapshot.write(pendingFile, id, coveredLength, fingerprint, mainIndex, free);
+                ServerSlotJournal.create(pendingJournalFile, id);
+                synchronized (this) {
+                    if (isPendingSnapshotValid) {
+                        //a crash between the moves leaves a journal of another snapshot, then the storage is scanned
+                        Files.move(pendingFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        Files.move(pendingJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        if (journal != null) {
+                            journal.close();
+                        }
+                        journal = ServerSlotJournal.open(journalFile, id);
+                        snapshotCoverage = coveredLength;
+                        isWritten = true;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    pendingSnapshotCoverage = 0;
+                }
+                if (!isWritten) {
+                    pendingFile.delete();
+                    pendingJournalFile.delete();
+                }
+            }
+
+            if (isWritten) {
+                log.info("Index snapshot covering {} bytes of storage was written.", coveredLength);
+            } else {
+                log.info("Index snapshot became outdated while being written.");
+            }
+            return isWritten;
+        }
+    }
+
+    /**
+     * Loads the index snapshot if there is a valid one.
+     *
+     * @return position of the first slot which is not covered by the snapshot.
+     */
+    private long loadSnapshot() {
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+
+        try {
+            ServerIndexSnapshot snapshot = ServerIndexSnapshot.read(snapshotFile, fileChannel, mainIndex, freeSlots);
+            journal = ServerSlotJournal.open(journalFile, snapshot.getId());
+            long changes = journal.replay(mainIndex, freeSlots);
+            snapshotCoverage = snapshot.getCoveredLength();
+            log.info("{} chunks were loaded from index snapshot covering {} bytes and {} journaled changes.", mainIndex.size(), snapshotCoverage, changes);
+            return snapshotCoverage;
+        } catch (IOException ioe) {
+            log.warn("Can`t use index snapshot, the whole storage will be scanned: {}", ioe.getMessage());
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            mainIndex = ServerKeyIndex.newServerKeyIndex(params.getInitialIndexSize());
+            freeSlots.clear();
+            snapshotCoverage = 0;
+            return 0;
+        }
+    }
+
+    /**
+     * Loads the index snapshot, scans the rest of the storage file and fills the filter with found keys.
+     */
+    public synchronized void loadExistedStorage() throws IOException {
+        log.info("Start loading data from existed database file.");
+
+        long position = Math.max(loadSnapshot(), HEADER_LENGTH);
+        long chunksScanned = new ServerStorageScanner(fileChannel, params.getScanThreads()).scan(position, mainIndex, freeSlots);
+        for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+            log.info("{} free {} slots were loaded", freeSlots.size(slotClass), slotClass);
+        }
+        log.info("{} chunks were successfully loaded, {} slots were scanned", mainIndex.size(), chunksScanned);
+        log.info("Index takes {} bytes, {} bytes per chunk", mainIndex.getMemoryUsage(), String.format("%.1f", mainIndex.getMemoryPerEntry()));
+
+        //filter is rebuilt from keys, a serialized one could miss keys appended while the snapshot was written
+        filter = ServerCuckooFilter.newServerCuckooFilter(Math.max(mainIndex.size(), params.getMaxExpectedSize()));
+        putKeysTo(filter);
+        log.info("Filter is loaded by {}, false positive rate is {}", String.format("%.2f", filter.getLoadFactor()),
+                String.format("%.6f", filter.getFalsePositiveRate()));
+
+        if (scrubber != null) {
+            scrubber.start(); //slots are checked against the loaded index
+        }
+        if (compactor != null) {
+            compactor.start();
+        }
     }//loadExistedStorage
+
+    private void putKeysTo(final ServerCuckooFilter filter) throws IOException {
+        mainIndex.forEach(new ServerKeyIndex.EntryVisitor() {
+            @Override
+            public void visit(long high, long low, long position, int length) {
+                filter.put(ByteBuffer.allocate(KEY_LENGTH).putLong(high).putLong(low));
+            }
+        });
+    }
 }
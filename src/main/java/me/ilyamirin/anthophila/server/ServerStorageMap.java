@@ -0,0 +1,79 @@
+package me.ilyamirin.anthophila.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read only view of the storage file mapped by segments of {@link #SEGMENT_PAGES} whole pages, so a chunk
+ * never crosses a segment. Segments are mapped on the first read, the last one is mapped again when the
+ * file has grown past it.
+ *
+ * Reads through the map take no locks, freed slots are kept from reuse by {@link ServerReadGuard}.
+ *
+ * @author ilyamirin
+ */
+public class ServerStorageMap {
+
+    public static final int SEGMENT_PAGES = 1024;
+    public static final long SEGMENT_LENGTH = (long) SEGMENT_PAGES * ServerSlotClass.PAGE_LENGTH;
+
+    private final FileChannel fileChannel;
+
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    public ServerStorageMap(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    /**
+     * @return read only slice of the file, valid until the slot is reused.
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        int index = (int) (position / SEGMENT_LENGTH);
+        int offset = (int) (position % SEGMENT_LENGTH);
+
+        MappedByteBuffer[] current = segments;
+        if (index >= current.length || current[index] == null || current[index].capacity() < offset + length) {
+            current = map(index, offset + length);
+        }
+
+        ByteBuffer slice = current[index].duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice();
+    }
+
+    /**
+     * Forgets segments reaching beyond the new end of the file, they are mapped again if the file grows.
+     */
+    public synchronized void truncate(long length) {
+        MappedByteBuffer[] remapped = segments.clone();
+        for (int index = 0; index < remapped.length; index++) {
+            if (remapped[index] != null && index * SEGMENT_LENGTH + remapped[index].capacity() > length) {
+                remapped[index] = null;
+            }
+        }
+        segments = remapped;
+    }
+
+    private synchronized MappedByteBuffer[] map(int index, int length) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null && current[index].capacity() >= length) {
+            return current; //mapped by another reader
+        }
+
+        long start = index * SEGMENT_LENGTH;
+        long fileLength = fileChannel.size();
+        if (start + length > fileLength) {
+            throw new EOFException("Chunk is beyond the end of storage file.");
+        }
+
+        MappedByteBuffer[] remapped = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        remapped[index] = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_LENGTH, fileLength - start));
+        segments = remapped;
+        return remapped;
+    }
+}
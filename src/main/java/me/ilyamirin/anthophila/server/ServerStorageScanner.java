@@ -0,0 +1,203 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the index from slot headers of the storage file. Pages have fixed size, so the file is split
+ * into ranges of whole pages and every range is scanned by its own thread into a partial index. The first
+ * slot of a page tells the size class of the rest. A range is read by windows of {@link #WINDOW_PAGES} pages
+ * and slot headers are parsed from memory, so a page of small slots costs no read per slot. Partial indexes are merged in order of ranges, so the
+ * result is the same as of one sequential pass.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerStorageScanner {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int MIN_PAGES_PER_THREAD = 64; //smaller ranges are not worth a thread
+    public static final int PROGRESS_LOG_INTERVAL = 5; //seconds
+    public static final int WINDOW_PAGES = 32; //about 2 MB are read at once by every thread
+
+    /**
+     * Keys and slots found in one range, kept in primitive arrays like the main index itself.
+     */
+    private static class PartialIndex {
+
+        private long[] highs = new long[MIN_PAGES_PER_THREAD];
+        private long[] lows = new long[MIN_PAGES_PER_THREAD];
+        private long[] positions = new long[MIN_PAGES_PER_THREAD];
+        private int[] lengths = new int[MIN_PAGES_PER_THREAD];
+        private int size;
+        private final Map<ServerSlotClass, List<Long>> free = new EnumMap<>(ServerSlotClass.class);
+
+        private PartialIndex() {
+            for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                free.put(slotClass, new ArrayList<Long>());
+            }
+        }
+
+        private void add(long high, long low, long position, int length) {
+            if (size == highs.length) {
+                int capacity = size << 1;
+                highs = Arrays.copyOf(highs, capacity);
+                lows = Arrays.copyOf(lows, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            highs[size] = high;
+            lows[size] = low;
+            positions[size] = position;
+            lengths[size] = length;
+            size++;
+        }
+    }
+
+    private final FileChannel fileChannel;
+    private final int threads;
+    private final AtomicLong pagesScanned = new AtomicLong();
+    private final AtomicLong slotsScanned = new AtomicLong();
+
+    public ServerStorageScanner(FileChannel fileChannel, int threads) {
+        this.fileChannel = fileChannel;
+        this.threads = threads > 0 ? threads : DEFAULT_THREADS;
+    }
+
+    /**
+     * Scans pages from the position to the end of the file and puts their slots to the index and free slots.
+     *
+     * @param position first page to scan, it must be at a page boundary.
+     * @return number of scanned slots.
+     */
+    public long scan(long position, ServerKeyIndex index, ServerFreeSlots freeSlots) throws IOException {
+        long pages = (fileChannel.size() - position + ServerSlotClass.PAGE_LENGTH - 1) / ServerSlotClass.PAGE_LENGTH;
+        if (pages <= 0) {
+            return 0;
+        }
+
+        int rangesCount = (int) Math.max(1, Math.min(threads, pages / MIN_PAGES_PER_THREAD));
+        long pagesPerRange = (pages + rangesCount - 1) / rangesCount;
+        log.info("Scan {} pages of storage with {} threads.", pages, rangesCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(rangesCount,
+                new ThreadFactoryBuilder().setNameFormat("storage-scan-%d").setDaemon(true).build());
+        List<Future<PartialIndex>> ranges = new ArrayList<>(rangesCount);
+        long start = System.currentTimeMillis();
+        try {
+            for (long first = 0; first < pages; first += pagesPerRange) {
+                final long from = position + first * ServerSlotClass.PAGE_LENGTH;
+                final long to = position + Math.min(pages, first + pagesPerRange) * ServerSlotClass.PAGE_LENGTH;
+                ranges.add(executor.submit(new Callable<PartialIndex>() {
+                    @Override
+                    public PartialIndex call() throws IOException {
+                        return scanRange(from, to);
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            while (!executor.awaitTermination(PROGRESS_LOG_INTERVAL, TimeUnit.SECONDS)) {
+                logProgress(pages, start);
+            }
+
+            for (Future<PartialIndex> range : ranges) {
+                PartialIndex partialIndex = range.get();
+                for (int i = 0; i < partialIndex.size; i++) {
+                    index.put(partialIndex.highs[i], partialIndex.lows[i], partialIndex.positions[i], partialIndex.lengths[i]);
+                }
+                for (ServerSlotClass slotClass : ServerSlotClass.values()) {
+                    for (long chunkPosition : partialIndex.free.get(slotClass)) {
+                        freeSlots.free(slotClass, chunkPosition);
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Storage scan was interrupted.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Can`t scan storage: " + ee.getCause().getMessage(), ee.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logProgress(pages, start);
+        return slotsScanned.get();
+    }
+
+    private void logProgress(long pages, long start) {
+        long scanned = pagesScanned.get();
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.info("{} of {} pages were scanned, {} slots/s, {} MB/s", scanned, pages, slotsScanned.get() * 1000 / millis,
+                String.format("%.1f", (double) scanned * ServerSlotClass.PAGE_LENGTH / 1024 / 1024 * 1000 / millis));
+    }
+
+    private PartialIndex scanRange(long from, long to) throws IOException {
+        PartialIndex partialIndex = new PartialIndex();
+        ByteBuffer window = ByteBuffer.allocateDirect(WINDOW_PAGES * ServerSlotClass.PAGE_LENGTH);
+
+        for (long windowPosition = from; windowPosition < to; windowPosition += window.capacity()) {
+            int windowLength = (int) Math.min(window.capacity(), to - windowPosition);
+            readWindow(window, windowPosition, windowLength);
+
+            for (int page = 0; page < windowLength; page += ServerSlotClass.PAGE_LENGTH) {
+                ServerSlotClass slotClass = null;
+                for (int slot = 0; slotClass == null || slot < slotClass.getSlotsPerPage(); slot++) {
+                    int offset = page + (slotClass == null ? 0 : slot * slotClass.getSlotLength());
+
+                    byte tombstone = window.get(offset);
+                    long high = window.getLong(offset + 1);
+                    long low = window.getLong(offset + 1 + 8);
+                    int chunkLength = window.getInt(offset + 1 + ServerStorage.KEY_LENGTH);
+                    long chunkPosition = windowPosition + offset + ServerStorage.AUX_CHUNK_INFO_LENGTH;
+
+                    if (slotClass == null) {
+                        slotClass = ServerSlotClass.ofMark(tombstone); //first slot of a page is written first
+                    }
+
+                    if (ServerSlotClass.isLive(tombstone)) {
+                        partialIndex.add(high, low, chunkPosition, chunkLength);
+                    } else if (!ServerSlotClass.isQuarantined(tombstone)) {
+                        partialIndex.free.get(slotClass).add(chunkPosition);
+                    }
+
+                    slotsScanned.incrementAndGet();
+                }//for
+
+                pagesScanned.incrementAndGet();
+            }//for
+        }//for
+
+        return partialIndex;
+    }
+
+    /**
+     * Pages which were never written, even beyond the end of the file, read as zeros.
+     */
+    private void readWindow(ByteBuffer window, long position, int length) throws IOException {
+        window.clear().limit(length);
+        while (window.hasRemaining()) {
+            if (fileChannel.read(window, position + window.position()) < 0) {
+                while (window.hasRemaining()) {
+                    window.put((byte) 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package me.ilyamirin.anthophila.server;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Place of a storage file in its striped storage, it is kept in the header of the file.
+ *
+ * @author ilyamirin
+ */
+@Data
+@AllArgsConstructor
+public class ServerStripeLayout {
+
+    private long id; //the same for all files of a striped storage
+    private int stripe; //number of the file
+    private int stripes; //count of files, 0 if the file has not got a place yet
+}
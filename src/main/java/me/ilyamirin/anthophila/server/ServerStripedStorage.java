@@ -0,0 +1,291 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Chunks spread over several storage files, one per disk. Every file is a {@link ServerStorage} with its own
+ * tail, locks, free slots, snapshot and syncer, a chunk goes to the file chosen by bits of its key. Keys are
+ * md5 hashes, so files are loaded evenly and a key is always found in one file without probing others.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerStripedStorage {
+
+    private final List<ServerStorage> stripes;
+
+    private ServerStripedStorage(List<ServerStorage> stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * Opens every file of {@link ServerParams#getStorageFiles()}, or the only {@link ServerParams#getStorageFile()}
+     * if the list is empty. Snapshots of striped files are kept next to them.
+     */
+    public static ServerStripedStorage newServerStripedStorage(ServerParams params, ServerEnigma serverEnigma) throws IOException {
+        List<ServerStorage> stripes = new ArrayList<>();
+        List<String> storageFiles;
+        if (params.getStorageFiles() == null || params.getStorageFiles().isEmpty()) {
+            storageFiles = Collections.singletonList(params.getStorageFile());
+            stripes.add(ServerStorage.newServerStorage(params, serverEnigma));
+        } else {
+            storageFiles = params.getStorageFiles();
+            for (String storageFile : storageFiles) {
+                stripes.add(ServerStorage.newServerStorage(params, storageFile, storageFile + ".hint", serverEnigma));
+            }
+        }
+        checkLayout(stripes, storageFiles);
+        return new ServerStripedStorage(Collections.unmodifiableList(stripes));
+    }
+
+    /**
+     * Keys are routed by the number of a file, so every file keeps its number in its header. A list of files
+     * which was reordered, grown or shrunk is refused instead of looking for keys in wrong files. If none of
+     * files has got a place yet, the layout is written.
+     */
+    private static void checkLayout(List<ServerStorage> stripes, List<String> storageFiles) throws IOException {
+        List<ServerStripeLayout> layouts = new ArrayList<>(stripes.size());
+        ServerStripeLayout placed = null;
+        for (ServerStorage stripe : stripes) {
+            ServerStripeLayout layout = stripe.readStripeLayout();
+            layouts.add(layout);
+            if (placed == null && layout.getStripes() > 0) {
+                placed = layout;
+            }
+        }
+
+        if (placed == null) {
+            long id = new SecureRandom().nextLong();
+            for (int i = 0; i < stripes.size(); i++) {
+                stripes.get(i).writeStripeLayout(new ServerStripeLayout(id, i, stripes.size()));
+            }
+            log.info("Layout {} of {} storage files was written.", id, stripes.size());
+            return;
+        }
+
+        for (int i = 0; i < stripes.size(); i++) {
+            ServerStripeLayout layout = layouts.get(i);
+            if (layout.getStripes() == 0) {
+                throw new IOException("Storage file " + storageFiles.get(i) + " has no place in layout " + placed.getId()
+                        + " of other files, it was added or replaced.");
+            }
+            if (layout.getId() != placed.getId() || layout.getStripe() != i || layout.getStripes() != stripes.size()) {
+                throw new IOException(String.format("Storage file %s is file %s of %s in layout %s, but it is listed as file %s of %s in layout %s.",
+                        storageFiles.get(i), layout.getStripe(), layout.getStripes(), layout.getId(), i, stripes.size(), placed.getId()));
+            }
+        }
+    }
+
+    public List<ServerStorage> getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Lock stripes of {@link ServerStorage} use the first int of a key, so the file is chosen by the second.
+     */
+    public ServerStorage stripeOf(ByteBuffer key) {
+        return stripes.get((key.getInt(4) & Integer.MAX_VALUE) % stripes.size());
+    }
+
+    public ServerDurability getDurability() {
+        return stripes.get(0).getSyncer().getDurability();
+    }
+
+    public boolean contains(ByteBuffer key) {
+        return stripeOf(key).contains(key);
+    }
+
+    public boolean mightContain(ByteBuffer key) {
+        return stripeOf(key).mightContain(key);
+    }
+
+    /**
+     * @return estimated false positive rate of filters of all files, weighted by their keys.
+     */
+    public double getFilterFalsePositiveRate() {
+        double rate = 0;
+        long keys = 0;
+        for (ServerStorage stripe : stripes) {
+            ServerCuckooFilter filter = stripe.getFilter();
+            rate += filter.getFalsePositiveRate() * filter.size();
+            keys += filter.size();
+        }
+        return keys == 0 ? 0 : rate / keys;
+    }
+
+    /**
+     * @return counters of chunk caches summed over files, null if there are no caches.
+     */
+    public ServerChunkCache.Stats getCacheStats() {
+        if (stripes.get(0).getCache() == null) {
+            return null;
+        }
+
+        long hits = 0, misses = 0, evictions = 0, rejections = 0, bytes = 0;
+        int chunks = 0;
+        for (ServerStorage stripe : stripes) {
+            ServerChunkCache.Stats stats = stripe.getCache().getStats();
+            hits += stats.getHits();
+            misses += stats.getMisses();
+            evictions += stats.getEvictions();
+            rejections += stats.getRejections();
+            bytes += stats.getBytes();
+            chunks += stats.getChunks();
+        }
+        return new ServerChunkCache.Stats(hits, misses, evictions, rejections, bytes, chunks);
+    }
+
+    public void append(ByteBuffer key, ByteBuffer chunk) throws IOException {
+        stripeOf(key).append(key, chunk);
+    }
+
+    public ListenableFuture<Void> appendAsync(ByteBuffer key, ByteBuffer chunk) {
+        return stripeOf(key).appendAsync(key, chunk);
+    }
+
+    public ByteBuffer read(ByteBuffer key) throws IOException {
+        return stripeOf(key).read(key);
+    }
+
+    public ByteBuffer read(ByteBuffer key, ServerBufferPool chunkPool) throws IOException {
+        return stripeOf(key).read(key, chunkPool);
+    }
+
+    public ListenableFuture<ByteBuffer> readAsync(ByteBuffer key) {
+        return stripeOf(key).readAsync(key);
+    }
+
+    public ListenableFuture<ByteBuffer> readAsync(ByteBuffer key, ServerBufferPool chunkPool) {
+        return stripeOf(key).readAsync(key, chunkPool);
+    }
+
+    /**
+     * Every file reads its part of the batch in order of positions.
+     *
+     * @return chunks in order of keys, null for keys which were not found.
+     */
+    public List<ByteBuffer> readAll(List<ByteBuffer> keys) throws IOException {
+        if (stripes.size() == 1) {
+            return stripes.get(0).readAll(keys);
+        }
+
+        List<ByteBuffer> chunks = new ArrayList<>(Collections.<ByteBuffer>nCopies(keys.size(), null));
+        for (ServerStorage stripe : stripes) {
+            List<Integer> indexes = new ArrayList<>();
+            List<ByteBuffer> stripeKeys = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                if (stripeOf(keys.get(i)) == stripe) {
+                    indexes.add(i);
+                    stripeKeys.add(keys.get(i));
+                }
+            }
+            if (stripeKeys.isEmpty()) {
+                continue;
+            }
+
+            List<ByteBuffer> stripeChunks = stripe.readAll(stripeKeys);
+            for (int i = 0; i < indexes.size(); i++) {
+                chunks.set(indexes.get(i), stripeChunks.get(i));
+            }
+        }//for
+        return chunks;
+    }
+
+    public void delete(ByteBuffer key) throws IOException {
+        stripeOf(key).delete(key);
+    }
+
+    public ListenableFuture<Void> deleteAsync(ByteBuffer key) {
+        return stripeOf(key).deleteAsync(key);
+    }
+
+    public ServerIndexEntry pinPlainChunk(ByteBuffer key) throws IOException {
+        return stripeOf(key).pinPlainChunk(key);
+    }
+
+    public void unpin(ByteBuffer key, ServerIndexEntry indexEntry) {
+        stripeOf(key).unpin(indexEntry);
+    }
+
+    public void transferTo(ByteBuffer key, ServerIndexEntry indexEntry, WritableByteChannel target) throws IOException {
+        stripeOf(key).transferTo(indexEntry, target);
+    }
+
+    /**
+     * Waits for writes of files which keep the keys, see {@link ServerStorage#awaitDurable()}.
+     */
+    public void awaitDurable(Collection<ByteBuffer> keys) throws IOException {
+        Set<ServerStorage> written = new LinkedHashSet<>();
+        for (ByteBuffer key : keys) {
+            written.add(stripeOf(key));
+        }
+        for (ServerStorage stripe : written) {
+            stripe.awaitDurable();
+        }
+    }
+
+    /**
+     * @return true if a snapshot of any file was written.
+     */
+    public boolean writeSnapshot() throws IOException {
+        boolean isWritten = false;
+        for (ServerStorage stripe : stripes) {
+            isWritten |= stripe.writeSnapshot();
+        }
+        return isWritten;
+    }
+
+    /**
+     * Loads all files in parallel, so a file on every disk is scanned at once.
+     */
+    public void loadExistedStorage() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(stripes.size(),
+                new ThreadFactoryBuilder().setNameFormat("storage-load-%d").setDaemon(true).build());
+        try {
+            List<Future<Void>> loads = new ArrayList<>(stripes.size());
+            for (final ServerStorage stripe : stripes) {
+                loads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        stripe.loadExistedStorage();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> load : loads) {
+                load.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Storage load was interrupted.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Can`t load storage: " + ee.getCause().getMessage(), ee.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long chunks = 0;
+        for (ServerStorage stripe : stripes) {
+            chunks += stripe.getMainIndex().size();
+        }
+        log.info("{} chunks were loaded from {} storage files.", chunks, stripes.size());
+    }
+}
@@ -0,0 +1,164 @@
+package me.ilyamirin.anthophila.server;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Forces written bytes of the storage to the disk according to {@link ServerDurability}. Every write is
+ * counted, a waiting writer takes the current count as its ticket and is released by the first force
+ * started after it. In the group mode forces are made by a daemon thread every interval or as soon as
+ * enough bytes were written, so concurrent writers share one force.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerSyncer implements Runnable {
+
+    public static final int DEFAULT_INTERVAL = 5; //ms
+    public static final long DEFAULT_BYTES = 16L * 1024 * 1024;
+
+    private final ServerStorage storage;
+    private final ServerDurability durability;
+    private final long interval;
+    private final long bytes;
+
+    private final Object forceLock = new Object();
+
+    private long written; //bytes written so far
+    private long forcing; //written bytes covered by the force in progress
+    private long synced; //written bytes which are on the disk
+    private long failed; //written bytes covered by the last failed force
+    private IOException failure;
+    private long syncs;
+
+    private ServerSyncer(ServerStorage storage, ServerDurability durability, long interval, long bytes) {
+        this.storage = storage;
+        this.durability = durability;
+        this.interval = interval;
+        this.bytes = bytes;
+    }
+
+    public static ServerSyncer newServerSyncer(ServerStorage storage, ServerParams params) {
+        ServerDurability durability = params.getDurability() != null ? params.getDurability() : ServerDurability.NONE;
+        ServerSyncer syncer = new ServerSyncer(storage, durability,
+                params.getSyncInterval() > 0 ? params.getSyncInterval() : DEFAULT_INTERVAL,
+                params.getSyncBytes() > 0 ? params.getSyncBytes() : DEFAULT_BYTES);
+        if (durability == ServerDurability.GROUP) {
+            Thread thread = new Thread(syncer, "storage-syncer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return syncer;
+    }
+
+    public ServerDurability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return number of forces made so far.
+     */
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    public synchronized void written(int length) {
+        written += length;
+        if (durability == ServerDurability.GROUP && written - forcing >= bytes) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until everything written before the call is on the disk.
+     *
+     * @throws IOException if the force covering the writes has failed.
+     */
+    public void await() throws IOException {
+        if (durability == ServerDurability.NONE) {
+            return;
+        }
+
+        long ticket;
+        synchronized (this) {
+            ticket = written;
+        }
+
+        if (durability == ServerDurability.WRITE) {
+            sync(ticket);
+            return;
+        }
+
+        synchronized (this) {
+            while (synced < ticket) {
+                if (failed >= ticket) {
+                    throw new IOException("Can`t sync storage: " + failure.getMessage(), failure);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Sync of storage was interrupted.");
+                }
+            }//while
+        }
+    }
+
+    /**
+     * Forces the storage unless the ticket is already synced by another force.
+     */
+    private void sync(long ticket) throws IOException {
+        synchronized (forceLock) {
+            long target;
+            synchronized (this) {
+                if (synced >= ticket) {
+                    return;
+                }
+                target = written;
+                forcing = target;
+            }
+
+            try {
+                storage.force();
+            } catch (IOException ioe) {
+                synchronized (this) {
+                    failed = target;
+                    failure = ioe;
+                    notifyAll();
+                }
+                throw ioe;
+            }
+
+            synchronized (this) {
+                synced = target;
+                syncs++;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long ticket;
+            synchronized (this) {
+                try {
+                    if (written - forcing < bytes) {
+                        wait(interval);
+                    }
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                ticket = written;
+            }
+
+            try {
+                sync(ticket);
+            } catch (IOException ioe) {
+                log.error("Can`t sync storage:", ioe);
+            }
+        }//while
+    }
+}
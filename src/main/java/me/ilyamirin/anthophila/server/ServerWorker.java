@@ -1,17 +1,22 @@
 package me.ilyamirin.anthophila.server;
 
-import com.google.common.hash.BloomFilter;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import me.ilyamirin.anthophila.client.ReplicationClient;
-import me.ilyamirin.anthophila.common.Topology;
 import me.ilyamirin.anthophila.client.Client;
 
 /**
+ * Serves one connection on its own thread with blocking reads and writes. Sequential connections are
+ * served right on this thread, operations of pipelined ones are executed by the shared executor and
+ * answered as soon as they complete.
  *
  * @author ilyamirin
  */
@@ -20,18 +25,20 @@ import me.ilyamirin.anthophila.client.Client;
 public class ServerWorker implements Runnable {
 
     @NonNull
-    protected ServerParams params;
+    protected ServerOperations operations;
     @NonNull
-    protected ServerStorage storage;
-    @NonNull
-    protected Topology topology;
+    protected ExecutorService executor;
     @NonNull
     protected SocketChannel channel;
-    @NonNull
-    private BloomFilter<byte[]> filter;
-    @NonNull
-    private ReplicationClient replicationClient;
     private byte connectionType = Client.ConnectionType.OTHERS;
+    private byte protocolVersion = Server.ProtocolVersions.SEQUENTIAL;
+    private Semaphore operationsInFlight;
+    private final Object writeLock = new Object();
+    private final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+    //request id and pull header of the frame being written, they are guarded by the write lock
+    private final ByteBuffer prefix = ByteBuffer.allocate(4);
+    private final ByteBuffer header = ByteBuffer.allocate(ServerOperations.STATUS_RESPONSE_LENGTH + 4);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
 
     protected static void writeResponse(SocketChannel channel, ByteBuffer response) throws IOException {
         response.rewind();
@@ -40,144 +47,150 @@ public class ServerWorker implements Runnable {
         }
     }
 
-    protected void setConnectionType(SocketChannel channel) throws IOException {
-        ByteBuffer type = ByteBuffer.allocate(1);
-        while (type.hasRemaining()) {
-            channel.read(type);
-        }
-
-        if (connectionType != type.get(0)) {
-            connectionType = type.get(0);
+    protected static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection was closed by client.");
+            }
         }
-
-        type.put(0, Server.OperationResultStatus.SUCCESS);
-
-        type.rewind();
-
-        writeResponse(channel, type);
+        return buffer;
     }
 
-    protected void push(SocketChannel channel) throws IOException {
-        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
-        while (key.hasRemaining()) {
-            channel.read(key);
-        }
-
-        ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-        response.put(key.array());
-
-        if (!params.isServeAll() && !topology.isKeyServableForServer(key, params)) {
-            response.put(Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
-            writeResponse(channel, response);
-            return;
-        }
+    protected int readInt() throws IOException {
+        intBuffer.clear();
+        return readFully(channel, intBuffer).getInt(0);
+    }
 
-        ByteBuffer chunkLength = ByteBuffer.allocate(4);
-        while (chunkLength.hasRemaining()) {
-            channel.read(chunkLength);
+    protected void writeResponse(int requestId, ByteBuffer response) throws IOException {
+        synchronized (writeLock) {
+            prefix.clear();
+            prefix.putInt(0, requestId);
+            frame[0] = prefix;
+            frame[1] = response;
+            while (response.hasRemaining()) {
+                channel.write(frame);
+            }
         }
+    }
 
-        ByteBuffer chunk = ByteBuffer.allocate(chunkLength.getInt(0));
-        while (chunk.hasRemaining()) {
-            channel.read(chunk);
+    /**
+     * Sends a chunk stored without encryption from the storage file straight to the socket.
+     *
+     * @param requestId id of the request of a pipelined connection, sequential ones ignore it.
+     * @return false if the chunk can`t be transferred and has to be pulled the usual way.
+     */
+    protected boolean transferPull(int requestId, ByteBuffer key) throws IOException {
+        ServerIndexEntry indexEntry = operations.pinTransferableChunk(key);
+        if (indexEntry == null) {
+            return false;
         }
 
-        storage.append(key, chunk);
-
-        filter.put(key.array());
-
-        if (connectionType != Client.ConnectionType.REPLICA) {
-            replicationClient.push(key, chunk);
+        try {
+            synchronized (writeLock) {
+                prefix.clear();
+                prefix.putInt(0, requestId);
+                if (protocolVersion != Server.ProtocolVersions.PIPELINED) {
+                    prefix.position(prefix.limit()); //sequential responses have no request id
+                }
+                frame[0] = prefix;
+                frame[1] = ServerOperations.pullHeader(header, key, indexEntry.getChunkLength());
+                while (header.hasRemaining()) {
+                    channel.write(frame);
+                }
+                operations.transferChunk(key, indexEntry, channel);
+            }
+        } finally {
+            operations.unpin(key, indexEntry);
         }
-
-        response.put(Server.OperationResultStatus.SUCCESS);
-
-        writeResponse(channel, response);
+        return true;
     }
 
-    protected void pull(SocketChannel channel) throws IOException {
-        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
-        while (key.hasRemaining()) {
-            channel.read(key);
-        }
-
-        if (!params.isServeAll() && !topology.isKeyServableForServer(key, params)) {
-            ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-            response.put(key.array());
-            response.put(Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
+    /**
+     * Writes every response of a manifest pull as soon as its chunk is read, while next ones are read ahead.
+     */
+    protected void streamManifest(List<ByteBuffer> keys) throws IOException {
+        ServerManifestPull pull = operations.newManifestPull(keys);
+        writeResponse(channel, ServerManifestPull.header(pull.size()));
+        for (int i = 0; i < pull.size(); i++) {
+            ByteBuffer response = ServerOperations.await(pull.take(i));
             writeResponse(channel, response);
-            return;
+            operations.recycle(response);
         }
+    }
 
-        ByteBuffer chunk = filter.mightContain(key.array()) ? storage.read(key) : null;
-
-        ByteBuffer response;
-        if (chunk != null) {
-            response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1 + 4 + chunk.capacity());
-            response.put(key.array());
-            response.put(Server.OperationResultStatus.SUCCESS);
-            response.putInt(chunk.capacity());
-            response.put(chunk.array());
+    protected void setConnectionType(SocketChannel channel) throws IOException {
+        ByteBuffer request = readFully(channel, ByteBuffer.allocate(1));
+        connectionType = request.get(0);
+        writeResponse(channel, operations.setConnectionType());
+    }
 
-        } else {
-            response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-            response.put(key.array());
-            response.put(Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+    protected void setProtocolVersion(SocketChannel channel) throws IOException {
+        ByteBuffer request = readFully(channel, ByteBuffer.allocate(ServerOperations.PROTOCOL_VERSION_REQUEST_LENGTH));
 
+        protocolVersion = ServerOperations.negotiateProtocolVersion(request);
+        if (protocolVersion == Server.ProtocolVersions.PIPELINED && operationsInFlight == null) {
+            operationsInFlight = new Semaphore(operations.maxOperationsInFlight());
         }
 
-        writeResponse(channel, response);
+        writeResponse(channel, operations.setProtocolVersion(protocolVersion));
     }
 
-    protected void remove(SocketChannel channel) throws IOException {
-        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
-        while (key.hasRemaining()) {
-            channel.read(key);
-        }
-
-        if (filter.mightContain(key.array())) {
-            storage.delete(key);
-            if (connectionType != Client.ConnectionType.REPLICA) {
-                replicationClient.remove(key);
+    protected void executeLater(final int requestId, final byte operationType, final List<ByteBuffer> keys, final List<ByteBuffer> chunks) {
+        operationsInFlight.acquireUninterruptibly();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (operationType == Server.OperationTypes.PULLING && transferPull(requestId, keys.get(0))) {
+                        operations.recycle(keys, chunks);
+                    } else {
+                        ByteBuffer response = operations.executeOrFail(operationType, keys, chunks, connectionType);
+                        writeResponse(requestId, response);
+                        operations.recycle(response);
+                    }
+                } catch (IOException ioe) {
+                    //response may be written partially, so the stream can`t be trusted anymore
+                    log.error("Can`t write response:", ioe);
+                    closeChannel();
+                } finally {
+                    operationsInFlight.release();
+                }
             }
-        }
+        });
+    }
 
-        ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-        response.put(key.array());
-        response.put(Server.OperationResultStatus.SUCCESS);
+    protected void executeOperation(byte operationType) throws IOException {
+        boolean isPipelined = protocolVersion == Server.ProtocolVersions.PIPELINED;
 
-        writeResponse(channel, response);
-    }
+        int requestId = isPipelined ? readInt() : 0;
 
-    protected void seek(SocketChannel channel) throws IOException {
-        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
-        while (key.hasRemaining()) {
-            channel.read(key);
+        int keysCount = 1;
+        if (ServerOperations.isBatchOperation(operationType)) {
+            keysCount = ServerOperations.checkBatchSize(readInt());
         }
 
-        if (!params.isServeAll() && !topology.isKeyServableForServer(key, params)) {
-            ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-            response.put(key.array());
-            response.put(Server.OperationResultStatus.KEY_IS_OUT_OF_RANGE);
-            writeResponse(channel, response);
-            return;
+        List<ByteBuffer> keys = new ArrayList<>(keysCount);
+        List<ByteBuffer> chunks = ServerOperations.isCarryingChunks(operationType) ? new ArrayList<ByteBuffer>(keysCount) : null;
+        for (int i = 0; i < keysCount; i++) {
+            keys.add(readFully(channel, operations.newKey()));
+            if (chunks != null) {
+                chunks.add(readFully(channel, operations.newChunk(readInt())));
+            }
         }
 
-        ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
-        response.put(key.array());
-
-        boolean isFound = filter.mightContain(key.array()) && storage.contains(key);
-        if (connectionType != Client.ConnectionType.REPLICA) {
-            isFound &= replicationClient.seek(key);
+        if (isPipelined) {
+            executeLater(requestId, operationType, keys, chunks);
+            return;
         }
 
-        if (isFound) {
-            response.put(Server.OperationResultStatus.CHUNK_WAS_FOUND);
-        } else {
-            response.put(Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+        if (operationType == Server.OperationTypes.MANIFEST_PULLING) {
+            streamManifest(keys);
+        } else if (operationType != Server.OperationTypes.PULLING || !transferPull(requestId, keys.get(0))) {
+            ByteBuffer response = operations.execute(operationType, keys, chunks, connectionType);
+            writeResponse(channel, response);
+            operations.recycle(response);
         }
-
-        writeResponse(channel, response);
+        operations.recycle(keys, chunks);
     }
 
     @Override
@@ -187,25 +200,36 @@ public class ServerWorker implements Runnable {
 
             while (channel.isConnected()) {
                 typeOfOperation.rewind();
-                channel.read(typeOfOperation);
+                readFully(channel, typeOfOperation);
                 byte operationType = typeOfOperation.get(0);
 
-                if (operationType == Server.OperationTypes.PUSHING) {
-                    push(channel);
-                } else if (operationType == Server.OperationTypes.PULLING) {
-                    pull(channel);
-                } else if (operationType == Server.OperationTypes.REMOVING) {
-                    remove(channel);
-                } else if (operationType == Server.OperationTypes.SEEKING) {
-                    seek(channel);
+                if (ServerOperations.isKeyOperation(operationType) || ServerOperations.isBatchOperation(operationType)) {
+                    executeOperation(operationType);
                 } else if (operationType == Server.OperationTypes.SET_CONNECTION_TYPE) {
                     setConnectionType(channel);
+                } else if (operationType == Server.OperationTypes.SET_PROTOCOL_VERSION) {
+                    setProtocolVersion(channel);
                 } else {
                     log.warn("Unknown operation type {}", operationType);
                 }
             }
+        } catch (EOFException eofe) {
+            log.debug("Client has closed connection.");
         } catch (IOException ioe) {
             log.error("Worker exception:", ioe);
+        } finally {
+            if (operationsInFlight != null) {
+                operationsInFlight.acquireUninterruptibly(operations.maxOperationsInFlight());
+            }
+            closeChannel();
+        }
+    }
+
+    protected void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            log.warn("Can`t close connection: {}", ioe.getMessage());
         }
     }
 }
@@ -0,0 +1,191 @@
+package me.ilyamirin.anthophila.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged writes of the storage. A connection thread only queues its chunk, encoder threads encrypt chunks
+ * into slot buffers in parallel and one writer thread takes everything encoded meanwhile as a batch, so
+ * chunks going to new pages reach the tail by one gathered write. The future of a chunk completes when
+ * it is written and indexed.
+ *
+ * The pipeline holds {@link #DEFAULT_QUEUE_SIZE} chunks at most, more appends wait for a room.
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class ServerWritePipeline {
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    public static final int MAX_BATCH_SIZE = 256; //slots of one gathered write, with paddings it is under IOV_MAX buffers
+    public static final int STATS_LOG_INTERVAL = 60; //seconds
+
+    /**
+     * Counters of the pipeline, latencies are averages since start.
+     */
+    @Data
+    public static class Stats {
+
+        private final int queueDepth; //chunks in the pipeline now
+        private final long writes;
+        private final long batches;
+        private final long encodeMicros; //from queueing till encoded
+        private final long writeMicros; //from encoded till written
+    }
+
+    private class Write implements Runnable {
+
+        private final ByteBuffer key;
+        private final ByteBuffer chunk;
+        private final SettableFuture<Void> future = SettableFuture.create();
+        private final long queued = System.nanoTime();
+        private long encoded;
+        private ByteBuffer slot;
+
+        private Write(ByteBuffer key, ByteBuffer chunk) {
+            this.key = key;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            slot = storage.getBufferPool().acquire();
+            try {
+                storage.encode(key, chunk, slot);
+            } catch (RuntimeException e) {
+                complete(this, e);
+                return;
+            }
+            encoded = System.nanoTime();
+            encodeNanos.addAndGet(encoded - queued);
+            encodedWrites.add(this);
+        }
+    }
+
+    private final ServerStorage storage;
+    private final int queueSize;
+    private final Semaphore room;
+    private final ExecutorService encoders;
+    private final BlockingQueue<Write> encodedWrites = new LinkedBlockingQueue<>();
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private ServerWritePipeline(ServerStorage storage, int queueSize, ExecutorService encoders) {
+        this.storage = storage;
+        this.queueSize = queueSize;
+        this.room = new Semaphore(queueSize);
+        this.encoders = encoders;
+    }
+
+    public static ServerWritePipeline newServerWritePipeline(ServerStorage storage, ServerParams params) {
+        ExecutorService encoders = Executors.newFixedThreadPool(params.getWriteThreads(),
+                new ThreadFactoryBuilder().setNameFormat("storage-encoder-%d").setDaemon(true).build());
+        final ServerWritePipeline pipeline = new ServerWritePipeline(storage,
+                params.getWriteQueueSize() > 0 ? params.getWriteQueueSize() : DEFAULT_QUEUE_SIZE, encoders);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.write();
+            }
+        }, "storage-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        return pipeline;
+    }
+
+    /**
+     * Queues the chunk, waits if the pipeline is full.
+     *
+     * @return future which completes when the chunk is written and indexed.
+     */
+    public ListenableFuture<Void> append(ByteBuffer key, ByteBuffer chunk) {
+        room.acquireUninterruptibly();
+        Write write = new Write(key, chunk);
+        encoders.execute(write);
+        return write.future;
+    }
+
+    public Stats getStats() {
+        long written = Math.max(1, writes.get());
+        return new Stats(queueSize - room.availablePermits(), writes.get(), batches.get(),
+                TimeUnit.NANOSECONDS.toMicros(encodeNanos.get() / written), TimeUnit.NANOSECONDS.toMicros(writeNanos.get() / written));
+    }
+
+    private void complete(Write write, Throwable failure) {
+        if (write.slot != null) {
+            storage.getBufferPool().release(write.slot);
+        }
+        room.release();
+        if (failure == null) {
+            write.future.set(null);
+        } else {
+            write.future.setException(failure);
+        }
+    }
+
+    private void write() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        List<ByteBuffer> keys = new ArrayList<>(MAX_BATCH_SIZE);
+        List<ByteBuffer> slots = new ArrayList<>(MAX_BATCH_SIZE);
+        long lastLog = System.currentTimeMillis();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(encodedWrites.take());
+            } catch (InterruptedException ie) {
+                return;
+            }
+            encodedWrites.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            for (Write write : batch) {
+                keys.add(write.key);
+                slots.add(write.slot);
+            }
+
+            Exception failure = null;
+            try {
+                storage.appendEncoded(keys, slots);
+            } catch (IOException | RuntimeException e) {
+                log.error("Can`t write batch of {} chunks:", batch.size(), e);
+                failure = e;
+            }
+
+            long written = System.nanoTime();
+            for (Write write : batch) {
+                writeNanos.addAndGet(written - write.encoded);
+                complete(write, failure);
+            }
+            writes.addAndGet(batch.size());
+            batches.incrementAndGet();
+
+            batch.clear();
+            keys.clear();
+            slots.clear();
+
+            if (System.currentTimeMillis() - lastLog > TimeUnit.SECONDS.toMillis(STATS_LOG_INTERVAL)) {
+                log.info("Write pipeline: {}", getStats());
+                lastLog = System.currentTimeMillis();
+            }
+        }//while
+    }
+}
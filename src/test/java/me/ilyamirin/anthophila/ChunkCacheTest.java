@@ -0,0 +1,159 @@
+package me.ilyamirin.anthophila;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.server.ServerChunkCache;
+import me.ilyamirin.anthophila.server.ServerStorage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author ilyamirin
+ */
+@Slf4j
+public class ChunkCacheTest {
+
+    private static final int CHUNK_LENGTH = 1000;
+
+    private Random r = new Random();
+
+    private ByteBuffer randomKey() {
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(key.array());
+        return key;
+    }
+
+    private ByteBuffer chunkOf(ByteBuffer key) {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_LENGTH);
+        new Random(key.getLong(0)).nextBytes(chunk.array());
+        return chunk;
+    }
+
+    /**
+     * Reads the key through the cache like the storage does.
+     */
+    private boolean read(ServerChunkCache cache, ByteBuffer key) {
+        ByteBuffer chunk = cache.get(key, 0);
+        if (chunk == null) {
+            cache.put(key, 0, chunkOf(key));
+            return false;
+        }
+        assertTrue(Arrays.equals(chunkOf(key).array(), chunk.array()));
+        return true;
+    }
+
+    @Test
+    public void hotChunksMustSurviveScan() {
+        ServerChunkCache cache = ServerChunkCache.newServerChunkCache(100 * CHUNK_LENGTH);
+        List<ByteBuffer> hotKeys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            hotKeys.add(randomKey());
+        }
+        for (int i = 0; i < 5; i++) {
+            for (ByteBuffer key : hotKeys) {
+                read(cache, key);
+            }
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            read(cache, randomKey());
+        }
+        assertTrue(cache.getStats().getBytes() <= 100 * CHUNK_LENGTH);
+
+        int hits = 0;
+        for (ByteBuffer key : hotKeys) {
+            hits += read(cache, key) ? 1 : 0;
+        }
+        log.info("{} of {} hot chunks survived scan, {}", hits, hotKeys.size(), cache.getStats());
+        assertEquals(hotKeys.size(), hits);
+        assertTrue(cache.getStats().getRejections() > 0);
+    }
+
+    @Test
+    public void promotedChunksMustNotShareKeysOfCallers() {
+        ServerChunkCache cache = ServerChunkCache.newServerChunkCache(100 * CHUNK_LENGTH);
+        ByteBuffer key = randomKey();
+        cache.put(key, 0, chunkOf(key));
+
+        //the hit promotes the chunk, then the caller reuses its key buffer for another key
+        ByteBuffer callerKey = ByteBuffer.wrap(key.array().clone());
+        assertNotNull(cache.get(callerKey, 0));
+        r.nextBytes(callerKey.array());
+
+        assertNull(cache.get(callerKey, 0));
+        assertTrue(read(cache, key));
+    }
+
+    @Test
+    public void cacheMustMissMovedAndInvalidatedChunks() {
+        ServerChunkCache cache = ServerChunkCache.newServerChunkCache(100 * CHUNK_LENGTH);
+        ByteBuffer key = randomKey();
+        cache.put(key, 10, chunkOf(key));
+        assertNotNull(cache.get(key, 10));
+
+        //copy of the old position is replaced
+        cache.put(key, 20, chunkOf(key));
+        assertEquals(1, cache.getStats().getChunks());
+        assertNotNull(cache.get(key, 20));
+
+        //copy of another position is dropped when it is met
+        assertNull(cache.get(key, 30));
+        assertEquals(0, cache.getStats().getChunks());
+
+        cache.put(key, 30, chunkOf(key));
+        cache.invalidate(key);
+        assertNull(cache.get(key, 30));
+        assertEquals(0, cache.getStats().getBytes());
+        assertEquals(0, cache.getStats().getChunks());
+        assertEquals(2, cache.getStats().getHits());
+        assertEquals(2, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void segmentsMustServeManyThreads() throws Exception {
+        final long maxBytes = 32L * ServerStorage.CHUNK_LENGTH; //several segments, each of them far less than its keys
+        final ServerChunkCache cache = ServerChunkCache.newServerChunkCache(maxBytes);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            keys.add(randomKey());
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < 5000; i++) {
+                        ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                        ByteBuffer expected = ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH / (1 + (int) (key.getLong(0) & 15)));
+                        new Random(key.getLong(8)).nextBytes(expected.array());
+                        ByteBuffer chunk = cache.get(key, 0);
+                        if (chunk == null) {
+                            cache.put(key, 0, expected);
+                        } else if (!chunk.equals(expected)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        log.info("{}", cache.getStats());
+        assertEquals(0, failures.get());
+        assertTrue(cache.getStats().getHits() > 0);
+        assertTrue(cache.getStats().getEvictions() > 0);
+        assertTrue(cache.getStats().getBytes() <= maxBytes);
+    }
+}
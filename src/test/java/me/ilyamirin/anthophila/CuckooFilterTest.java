@@ -0,0 +1,148 @@
+package me.ilyamirin.anthophila;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.server.ServerCuckooFilter;
+import me.ilyamirin.anthophila.server.ServerStorage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author ilyamirin
+ */
+@Slf4j
+public class CuckooFilterTest {
+
+    private Random r = new Random();
+
+    private ByteBuffer randomKey() {
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(key.array());
+        return key;
+    }
+
+    private int falsePositives(ServerCuckooFilter filter, int lookups) {
+        int falsePositives = 0;
+        for (int i = 0; i < lookups; i++) {
+            falsePositives += filter.mightContain(randomKey()) ? 1 : 0;
+        }
+        return falsePositives;
+    }
+
+    @Test
+    public void filterMustForgetRemovedKeys() {
+        ServerCuckooFilter filter = ServerCuckooFilter.newServerCuckooFilter(100000);
+        List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            keys.add(randomKey());
+            filter.put(keys.get(i));
+        }
+
+        assertEquals(keys.size(), filter.size());
+        assertFalse(filter.isOverloaded());
+        for (ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+
+        int lookups = 100000;
+        log.info("{} false positives of {} lookups, {} expected", falsePositives(filter, lookups), lookups,
+                filter.getFalsePositiveRate() * lookups);
+        assertTrue(falsePositives(filter, lookups) < lookups * filter.getFalsePositiveRate() * 3 + 10);
+
+        List<ByteBuffer> removed = keys.subList(0, keys.size() / 2);
+        for (ByteBuffer key : removed) {
+            assertTrue(filter.remove(key));
+        }
+        assertEquals(keys.size() - removed.size(), filter.size());
+
+        int stillFound = 0;
+        for (ByteBuffer key : removed) {
+            stillFound += filter.mightContain(key) ? 1 : 0;
+        }
+        assertTrue(stillFound < removed.size() / 100);
+        for (ByteBuffer key : keys.subList(removed.size(), keys.size())) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    public void overfilledFilterMustKeepEveryKey() {
+        ServerCuckooFilter filter = ServerCuckooFilter.newServerCuckooFilter(0);
+        List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < filter.capacity() + 1000; i++) {
+            keys.add(randomKey());
+            filter.put(keys.get(i));
+        }
+
+        assertTrue(filter.isOverloaded());
+        for (ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        for (ByteBuffer key : keys) {
+            assertTrue(filter.remove(key));
+        }
+        assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void readsMustFindKeysWhichAreRelocated() throws InterruptedException {
+        final ServerCuckooFilter filter = ServerCuckooFilter.newServerCuckooFilter(0);
+        final List<ByteBuffer> kept = new ArrayList<>();
+        for (int i = 0; i < filter.capacity() * 0.8; i++) {
+            kept.add(randomKey());
+            filter.put(kept.get(i));
+        }
+
+        //puts and removes of other keys near the full load kick kept keys around all the time
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                List<ByteBuffer> others = new ArrayList<>();
+                for (int i = 0; i < filter.capacity() * 0.15; i++) {
+                    others.add(randomKey());
+                }
+                while (isWriting.get()) {
+                    for (ByteBuffer key : others) {
+                        filter.put(key);
+                    }
+                    for (ByteBuffer key : others) {
+                        filter.remove(key);
+                    }
+                }
+            }
+        };
+        writer.start();
+
+        final AtomicInteger misses = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 200; round++) {
+                        for (ByteBuffer key : kept) {
+                            if (!filter.mightContain(key)) {
+                                misses.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        isWriting.set(false);
+        writer.join();
+
+        assertEquals(0, misses.get());
+    }
+}
@@ -0,0 +1,66 @@
+package me.ilyamirin.anthophila;
+
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.server.ServerEnigma;
+import me.ilyamirin.anthophila.server.ServerStorage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of encryption and decryption, it is not a part of the unit suite. Every thread encrypts
+ * chunks into a slot buffer and decrypts them from it into a chunk of its own like the storage does.
+ *
+ * Usage: EnigmaBenchmark [threads] [chunks per thread]
+ *
+ * @author ilyamirin
+ */
+@Slf4j
+public class EnigmaBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int chunksNumber = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        final ServerEnigma enigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(100), new HashMap<Integer, String>());
+        final ByteBuffer chunk = ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH);
+        new Random().nextBytes(chunk.array());
+
+        for (int round = 0; round < 2; round++) { //the first round warms up
+            final CountDownLatch latch = new CountDownLatch(threads);
+            final AtomicLong failures = new AtomicLong();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer slot = ByteBuffer.allocateDirect(ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH);
+                        ByteBuffer decrypted = ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH);
+                        byte[] IV = new byte[ServerStorage.IV_LENGTH];
+                        for (int i = 0; i < chunksNumber; i++) {
+                            slot.clear();
+                            enigma.encrypt(chunk, slot);
+                            slot.flip();
+                            int keyHash = slot.getInt();
+                            slot.get(IV);
+                            decrypted.clear();
+                            enigma.decrypt(keyHash, IV, slot, decrypted);
+                            if (decrypted.position() != chunk.limit()) {
+                                failures.incrementAndGet();
+                            }
+                        }//for
+                        latch.countDown();
+                    }
+                }).start();
+            }//for
+            latch.await();
+            long nanos = System.nanoTime() - start;
+
+            log.info("{} threads: {} MB/s of encryption and decryption, {} failures", threads, String.format("%.1f",
+                    2.0 * threads * chunksNumber * ServerStorage.CHUNK_LENGTH / 1024 / 1024 * 1000000000 / nanos), failures.get());
+        }//for
+    }
+}
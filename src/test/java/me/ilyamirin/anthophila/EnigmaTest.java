@@ -113,4 +113,35 @@ public class EnigmaTest {
 
         //TODO::
     }//testEnigma
+
+    @Test
+    public void enigmaMustEncryptIntoHeapAndDirectSlots() throws IOException {
+        ServerEnigma enigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(10), new HashMap<Integer, String>());
+        byte[] IV = new byte[ServerStorage.IV_LENGTH];
+        //lengths around cipher blocks
+        for (int length : new int[]{1, ServerEnigma.CIPHER_BLOCK_LENGTH - 1, ServerEnigma.CIPHER_BLOCK_LENGTH,
+                ServerEnigma.CIPHER_BLOCK_LENGTH * 3 + 7, ServerStorage.CHUNK_LENGTH}) {
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            r.nextBytes(chunk.array());
+            for (ByteBuffer slot : new ByteBuffer[]{ByteBuffer.allocate(ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH + 3),
+                    ByteBuffer.allocateDirect(ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH + 3)}) {
+                slot.position(3); //slot header goes first
+                slot = slot.slice();
+                enigma.encrypt(chunk, slot);
+                assertEquals(ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH + length, slot.position());
+                slot.flip();
+
+                ByteBuffer encrypted = slot.duplicate();
+                encrypted.position(ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH);
+                byte[] encryptedBytes = new byte[length];
+                encrypted.get(encryptedBytes);
+                assertFalse(length > 1 && Arrays.areEqual(chunk.array(), encryptedBytes));
+
+                int keyHash = slot.getInt();
+                slot.get(IV);
+                assertTrue(Arrays.areEqual(chunk.array(), enigma.decrypt(keyHash, IV, slot).array()));
+                assertFalse(slot.hasRemaining());
+            }
+        }
+    }
 }
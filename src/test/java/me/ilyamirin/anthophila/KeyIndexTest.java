@@ -0,0 +1,115 @@
+package me.ilyamirin.anthophila;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.server.ServerIndexEntry;
+import me.ilyamirin.anthophila.server.ServerKeyIndex;
+import me.ilyamirin.anthophila.server.ServerStorage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author ilyamirin
+ */
+@Slf4j
+public class KeyIndexTest {
+
+    private Random r = new Random();
+
+    private ByteBuffer randomKey() {
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(key.array());
+        return key;
+    }
+
+    @Test
+    public void indexMustSurviveManyResizes() {
+        ServerKeyIndex index = ServerKeyIndex.newServerKeyIndex(0);
+        Map<ByteBuffer, ServerIndexEntry> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            ByteBuffer key = randomKey();
+            ServerIndexEntry entry = new ServerIndexEntry(r.nextLong(), r.nextInt(ServerStorage.CHUNK_LENGTH));
+            index.put(key, entry);
+            expected.put(key, entry);
+
+            if (r.nextInt(4) == 0) {
+                ByteBuffer removed = expected.keySet().iterator().next();
+                assertEquals(expected.remove(removed), index.remove(removed));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<ByteBuffer, ServerIndexEntry> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        assertNull(index.get(randomKey()));
+        assertNull(index.remove(randomKey()));
+
+        log.info("{} entries take {} bytes, {} bytes per entry", index.size(), index.getMemoryUsage(), index.getMemoryPerEntry());
+        assertTrue(index.getMemoryPerEntry() < 4 * (8 + 8 + 8 + 4 + 1));
+    }
+
+    @Test
+    public void readersMustSeeStableKeysWhileIndexGrows() throws InterruptedException {
+        final ServerKeyIndex index = ServerKeyIndex.newServerKeyIndex(0);
+        final Map<ByteBuffer, ServerIndexEntry> stable = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer key = randomKey();
+            ServerIndexEntry entry = new ServerIndexEntry(i, i);
+            index.put(key, entry);
+            stable.put(key, entry);
+        }
+        //entries of these keys are rewritten all the time, a torn read would mix two of them
+        final List<ByteBuffer> moving = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            moving.add(randomKey());
+            index.put(moving.get(i), new ServerIndexEntry(0, 0));
+        }
+
+        final int readersNumber = 4;
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicInteger errorsCounter = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(readersNumber);
+        for (int i = 0; i < readersNumber; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    while (isWriting.get()) {
+                        for (Map.Entry<ByteBuffer, ServerIndexEntry> entry : stable.entrySet()) {
+                            if (!entry.getValue().equals(index.get(entry.getKey()))) {
+                                errorsCounter.incrementAndGet();
+                            }
+                        }
+                        for (ByteBuffer key : moving) {
+                            ServerIndexEntry entry = index.get(key);
+                            if (entry == null || entry.getChunkPosition() != entry.getChunkLength()) {
+                                errorsCounter.incrementAndGet();
+                            }
+                        }
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+
+        for (int i = 0; i < 200000; i++) {
+            index.put(randomKey(), new ServerIndexEntry(-i, i));
+            index.put(moving.get(i % moving.size()), new ServerIndexEntry(i, i));
+        }
+        isWriting.set(false);
+        latch.await();
+
+        assertEquals(0, errorsCounter.get());
+        assertEquals(201010, index.size());
+    }
+}
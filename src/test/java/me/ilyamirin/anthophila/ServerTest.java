@@ -1,20 +1,36 @@
 package me.ilyamirin.anthophila;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import lombok.extern.slf4j.Slf4j;
+import me.ilyamirin.anthophila.client.Client;
 import me.ilyamirin.anthophila.client.OneNodeClient;
+import me.ilyamirin.anthophila.client.ReplicationClient;
+import me.ilyamirin.anthophila.common.Node;
 import me.ilyamirin.anthophila.common.Topology;
 import me.ilyamirin.anthophila.server.Server;
+import me.ilyamirin.anthophila.server.ServerDurability;
 import me.ilyamirin.anthophila.server.ServerEnigma;
 import me.ilyamirin.anthophila.server.ServerParams;
 import me.ilyamirin.anthophila.server.ServerStorage;
+import me.ilyamirin.anthophila.server.ServerStripedStorage;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -75,6 +91,174 @@ public class ServerTest {
         //server.interrupt();
     }
 
+    private ServerParams startServer(String storageFile, int port, int selectorThreads) throws IOException, InterruptedException {
+        return startServer(storageFile, port, selectorThreads, ServerDurability.NONE);
+    }
+
+    private ServerParams startServer(String storageFile, int port, int selectorThreads, ServerDurability durability)
+            throws IOException, InterruptedException {
+        return startServer(storageFile, port, selectorThreads, durability, 0);
+    }
+
+    private ServerParams startServer(String storageFile, int port, int selectorThreads, ServerDurability durability, int ioThreads)
+            throws IOException, InterruptedException {
+        File file = new File(storageFile);
+        if (file.exists()) {
+            file.delete();
+        }
+        file.createNewFile();
+
+        ServerParams serverParams = new ServerParams();
+        serverParams.setStorageFile(file.getAbsolutePath());
+        serverParams.setInitialIndexSize(1000);
+        serverParams.setMaxExpectedSize(10000);
+        serverParams.setHost("127.0.0.1");
+        serverParams.setPort(port);
+        serverParams.setMaxConnections(100);
+        serverParams.setSelectorThreads(selectorThreads);
+        serverParams.setServeAll(true);
+        serverParams.setDurability(durability);
+        serverParams.setIoThreads(ioThreads);
+
+        Topology topology = new Topology();
+        topology.addKeyMask(Lists.newArrayList((byte) 0), Lists.newArrayList(new Node(serverParams.getHost(), port)));
+        topology.addKeyMask(Lists.newArrayList((byte) 1), Lists.newArrayList(new Node(serverParams.getHost(), port)));
+
+        ServerEnigma serverEnigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(10), new HashMap<Integer, String>());
+        ServerStripedStorage serverStorage = ServerStripedStorage.newServerStripedStorage(serverParams, serverEnigma);
+        serverStorage.loadExistedStorage();
+        ReplicationClient replicationClient = ReplicationClient.newReplicationClient(serverParams, topology);
+
+        Server server = new Server(serverParams, serverStorage, topology, replicationClient);
+        server.setDaemon(true);
+        server.start();
+
+        Thread.sleep(500);
+
+        return serverParams;
+    }
+
+    @Test
+    public void eventLoopsMustServeManyClients() throws IOException, InterruptedException {
+        sequentialClientsMustBeServed(startServer("test-event-loops.bin", 7625, 2), 20, 50);
+    }
+
+    @Test
+    public void eventLoopsMustServeClientsWaitingForGroupCommit() throws IOException, InterruptedException {
+        sequentialClientsMustBeServed(startServer("test-group-commit-7630.bin", 7630, 2, ServerDurability.GROUP), 20, 10);
+    }
+
+    private void sequentialClientsMustBeServed(final ServerParams serverParams, int clientsNumber, final int requestsNumber)
+            throws IOException, InterruptedException {
+        final AtomicInteger errorsCounter = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(clientsNumber);
+
+        for (int i = 0; i < clientsNumber; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        OneNodeClient client = OneNodeClient.newClient(serverParams.getHost(), serverParams.getPort(), Client.ConnectionType.OTHERS);
+                        for (int j = 0; j < requestsNumber; j++) {
+                            ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+                            ByteBuffer chunk = ByteBuffer.allocate(random.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+                            random.nextBytes(key.array());
+                            random.nextBytes(chunk.array());
+
+                            if (!client.push(key, chunk)) {
+                                throw new IOException("Chunk was not pushed.");
+                            }
+                            if (!Arrays.equals(chunk.array(), client.pull(key).array())) {
+                                throw new IOException("Returned result is incorrect.");
+                            }
+                            if (!client.seek(key) || !client.remove(key) || client.seek(key) || client.pull(key) != null) {
+                                throw new IOException("Chunk was not removed.");
+                            }
+                        }
+                        client.close();
+                    } catch (Exception e) {
+                        log.error("Oops!", e);
+                        errorsCounter.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+
+        latch.await();
+
+        assertEquals(0, errorsCounter.get());
+    }
+
+    private void pipelinedClientMustKeepManyOperationsInFlight(int port, int selectorThreads) throws Exception {
+        pipelinedClientMustKeepManyOperationsInFlight(port, selectorThreads, 0);
+    }
+
+    private void pipelinedClientMustKeepManyOperationsInFlight(int port, int selectorThreads, int ioThreads) throws Exception {
+        ServerParams serverParams = startServer(String.format("test-pipelined-%s.bin", port), port, selectorThreads,
+                ServerDurability.NONE, ioThreads);
+
+        OneNodeClient client = OneNodeClient.newClient(serverParams.getHost(), serverParams.getPort(),
+                Client.ConnectionType.OTHERS, Server.ProtocolVersions.PIPELINED);
+
+        int chunksNumber = 200;
+        List<ByteBuffer> keys = Lists.newArrayList();
+        List<ByteBuffer> chunks = Lists.newArrayList();
+        List<ListenableFuture<Boolean>> pushes = Lists.newArrayList();
+        for (int i = 0; i < chunksNumber; i++) {
+            ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(key.array());
+            r.nextBytes(chunk.array());
+            keys.add(key);
+            chunks.add(chunk);
+            pushes.add(client.pushAsync(key, chunk));
+        }
+
+        assertTrue(client.isPipelined());
+        for (Boolean isPushed : Futures.allAsList(pushes).get()) {
+            assertTrue(isPushed);
+        }
+
+        List<ListenableFuture<ByteBuffer>> pulls = Lists.newArrayList();
+        for (ByteBuffer key : keys) {
+            pulls.add(client.pullAsync(key));
+        }
+
+        List<ByteBuffer> pulled = Futures.allAsList(pulls).get();
+        for (int i = 0; i < chunksNumber; i++) {
+            assertTrue(Arrays.equals(chunks.get(i).array(), pulled.get(i).array()));
+        }
+
+        List<ListenableFuture<Boolean>> removes = Lists.newArrayList();
+        for (int i = 0; i < chunksNumber; i += 2) {
+            removes.add(client.removeAsync(keys.get(i)));
+        }
+        Futures.allAsList(removes).get();
+
+        for (int i = 0; i < chunksNumber; i++) {
+            assertEquals(i % 2 != 0, client.seek(keys.get(i)));
+        }
+
+        client.close();
+    }
+
+    @Test
+    public void workersMustServePipelinedClients() throws Exception {
+        pipelinedClientMustKeepManyOperationsInFlight(7626, 0);
+    }
+
+    @Test
+    public void eventLoopsMustServePipelinedClients() throws Exception {
+        pipelinedClientMustKeepManyOperationsInFlight(7627, 2);
+    }
+
+    @Test
+    public void eventLoopsMustPullThroughIoThreads() throws Exception {
+        pipelinedClientMustKeepManyOperationsInFlight(7633, 2, 4);
+    }
+
     @Test
     public void serverMustContinueWorkingAfterBrokenOperations() throws IOException, InterruptedException {
 
@@ -90,4 +274,333 @@ public class ServerTest {
 
     }
 
+
+    private void batchOperationsMustServeManyKeys(int port, int selectorThreads, byte protocolVersion) throws Exception {
+        ServerParams serverParams = startServer(String.format("test-batch-%s.bin", port), port, selectorThreads);
+
+        OneNodeClient client = OneNodeClient.newClient(serverParams.getHost(), serverParams.getPort(),
+                Client.ConnectionType.OTHERS, protocolVersion);
+
+        int chunksNumber = Server.MAX_BATCH_SIZE + 44; //more than one frame
+        List<ByteBuffer> keys = Lists.newArrayList();
+        List<ByteBuffer> chunks = Lists.newArrayList();
+        for (int i = 0; i < chunksNumber; i++) {
+            ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(1024) + 1);
+            r.nextBytes(key.array());
+            r.nextBytes(chunk.array());
+            keys.add(key);
+            chunks.add(chunk);
+        }
+
+        List<ByteBuffer> pushedKeys = keys.subList(0, chunksNumber - 1);
+        for (Boolean isPushed : client.pushAll(pushedKeys, chunks.subList(0, chunksNumber - 1))) {
+            assertTrue(isPushed);
+        }
+
+        List<ByteBuffer> pulled = client.pullAll(Lists.reverse(keys));
+        assertEquals(chunksNumber, pulled.size());
+        assertNull(pulled.get(0));
+        for (int i = 1; i < chunksNumber; i++) {
+            assertTrue(Arrays.equals(chunks.get(chunksNumber - 1 - i).array(), pulled.get(i).array()));
+        }
+
+        client.remove(keys.get(0));
+
+        List<Boolean> found = client.seekAll(keys);
+        assertEquals(chunksNumber, found.size());
+        for (int i = 0; i < chunksNumber; i++) {
+            assertEquals(i != 0 && i != chunksNumber - 1, found.get(i));
+        }
+
+        assertTrue(client.pullAll(Lists.<ByteBuffer>newArrayList()).isEmpty());
+
+        client.close();
+    }
+
+    private void manifestPullMustReturnChunksInOrder(int port, int selectorThreads, byte protocolVersion, int ioThreads) throws Exception {
+        ServerParams serverParams = startServer(String.format("test-manifest-%s.bin", port), port, selectorThreads,
+                ServerDurability.NONE, ioThreads);
+
+        OneNodeClient client = OneNodeClient.newClient(serverParams.getHost(), serverParams.getPort(),
+                Client.ConnectionType.OTHERS, protocolVersion);
+
+        int chunksNumber = Server.MAX_BATCH_SIZE + 44; //more than one frame
+        List<ByteBuffer> keys = Lists.newArrayList();
+        List<ByteBuffer> chunks = Lists.newArrayList();
+        for (int i = 0; i < chunksNumber; i++) {
+            ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(key.array());
+            r.nextBytes(chunk.array());
+            keys.add(key);
+            chunks.add(chunk);
+        }
+        client.pushAll(keys.subList(1, chunksNumber), chunks.subList(1, chunksNumber));
+
+        //the same chunk may come twice in a manifest
+        keys.add(keys.get(chunksNumber - 1));
+        chunks.add(chunks.get(chunksNumber - 1));
+
+        List<ByteBuffer> pulled = client.pullManifest(keys);
+        assertEquals(keys.size(), pulled.size());
+        assertNull(pulled.get(0));
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(Arrays.equals(chunks.get(i).array(), pulled.get(i).array()));
+        }
+
+        assertTrue(client.pullManifest(Lists.<ByteBuffer>newArrayList()).isEmpty());
+        assertTrue(Arrays.equals(chunks.get(1).array(), client.pull(keys.get(1)).array())); //stream is over
+
+        client.close();
+    }
+
+    @Test
+    public void workersMustStreamManifestPulls() throws Exception {
+        manifestPullMustReturnChunksInOrder(7634, 0, Server.ProtocolVersions.SEQUENTIAL, 0);
+    }
+
+    @Test
+    public void eventLoopsMustStreamManifestPulls() throws Exception {
+        manifestPullMustReturnChunksInOrder(7635, 2, Server.ProtocolVersions.SEQUENTIAL, 4);
+    }
+
+    @Test
+    public void eventLoopsMustServePipelinedManifestPulls() throws Exception {
+        manifestPullMustReturnChunksInOrder(7636, 2, Server.ProtocolVersions.PIPELINED, 4);
+    }
+
+    private void pushMustSkipChunksWhichServerHas(int port, int selectorThreads, byte protocolVersion) throws Exception {
+        ServerParams serverParams = startServer(String.format("test-offer-%s.bin", port), port, selectorThreads);
+
+        OneNodeClient client = OneNodeClient.newClient(serverParams.getHost(), serverParams.getPort(),
+                Client.ConnectionType.OTHERS, protocolVersion);
+
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        ByteBuffer chunk = ByteBuffer.allocate(1000);
+        r.nextBytes(key.array());
+        r.nextBytes(chunk.array());
+
+        assertTrue(client.setConnectionType());
+        assertTrue(client.isOffering());
+        assertTrue(client.isConditionalPushing());
+        try {
+            client.setConnectionType();
+            fail("Connection type of a pipelined client must not be changed");
+        } catch (IllegalStateException ise) {
+            //the only response reader keeps reading
+        }
+        assertFalse(client.offer(key));
+        assertTrue(client.push(key, chunk));
+        assertTrue(client.offer(key));
+
+        //body of a duplicate is not appended, so the stored chunk stays as it was
+        ByteBuffer another = ByteBuffer.allocate(1000);
+        r.nextBytes(another.array());
+        assertTrue(client.push(key, another));
+        assertTrue(Arrays.equals(chunk.array(), client.pull(key).array()));
+
+        assertTrue(client.remove(key));
+        assertFalse(client.offer(key));
+        assertTrue(client.push(key, another));
+        assertTrue(Arrays.equals(another.array(), client.pull(key).array()));
+
+        client.close();
+    }
+
+    @Test
+    public void workersMustSkipDuplicatePushes() throws Exception {
+        pushMustSkipChunksWhichServerHas(7631, 0, Server.ProtocolVersions.PIPELINED);
+    }
+
+    @Test
+    public void eventLoopsMustSkipDuplicatePipelinedPushes() throws Exception {
+        pushMustSkipChunksWhichServerHas(7632, 2, Server.ProtocolVersions.PIPELINED);
+    }
+
+    @Test
+    public void workersMustServeBatchOperations() throws Exception {
+        batchOperationsMustServeManyKeys(7628, 0, Server.ProtocolVersions.SEQUENTIAL);
+    }
+
+    @Test
+    public void eventLoopsMustServePipelinedBatchOperations() throws Exception {
+        batchOperationsMustServeManyKeys(7629, 2, Server.ProtocolVersions.PIPELINED);
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void serverMustAcceptBaselineHandshake(int port, int selectorThreads) throws Exception {
+        ServerParams serverParams = startServer(String.format("test-handshake-%s.bin", port), port, selectorThreads);
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverParams.getHost(), serverParams.getPort()));
+
+        ByteBuffer request = ByteBuffer.allocate(2);
+        request.put(Server.OperationTypes.SET_CONNECTION_TYPE);
+        request.put(Client.ConnectionType.OTHERS);
+        writeFully(channel, request);
+        assertEquals(Server.OperationResultStatus.SUCCESS, readFully(channel, ByteBuffer.allocate(1)).get());
+
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        ByteBuffer chunk = ByteBuffer.allocate(1000);
+        r.nextBytes(key.array());
+        r.nextBytes(chunk.array());
+
+        request = ByteBuffer.allocate(1 + ServerStorage.KEY_LENGTH + 4 + chunk.capacity());
+        request.put(Server.OperationTypes.PUSHING);
+        request.put(key.array());
+        request.putInt(chunk.capacity());
+        request.put(chunk.array());
+        writeFully(channel, request);
+
+        ByteBuffer response = readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1));
+        assertEquals(Server.OperationResultStatus.SUCCESS, response.get(ServerStorage.KEY_LENGTH));
+        assertEquals(key, response.limit(ServerStorage.KEY_LENGTH));
+
+        request = ByteBuffer.allocate(1 + ServerStorage.KEY_LENGTH);
+        request.put(Server.OperationTypes.PULLING);
+        request.put(key.array());
+        writeFully(channel, request);
+
+        response = readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1 + 4));
+        assertEquals(Server.OperationResultStatus.SUCCESS, response.get(ServerStorage.KEY_LENGTH));
+        assertEquals(chunk.capacity(), response.getInt(ServerStorage.KEY_LENGTH + 1));
+        assertEquals(chunk, readFully(channel, ByteBuffer.allocate(chunk.capacity())));
+
+        channel.close();
+    }
+
+    @Test
+    public void workersMustAcceptBaselineHandshake() throws Exception {
+        serverMustAcceptBaselineHandshake(7637, 0);
+    }
+
+    @Test
+    public void eventLoopsMustAcceptBaselineHandshake() throws Exception {
+        serverMustAcceptBaselineHandshake(7638, 2);
+    }
+
+    @Test
+    public void eventLoopsMustAnswerSequentialFramesInOrder() throws Exception {
+        ServerParams serverParams = startServer("test-sequential-7640.bin", 7640, 2);
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverParams.getHost(), serverParams.getPort()));
+
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        ByteBuffer chunk = ByteBuffer.allocate(1000);
+        r.nextBytes(key.array());
+        r.nextBytes(chunk.array());
+
+        //push and pull of the same key come in one write, the pull must be executed after the push
+        ByteBuffer request = ByteBuffer.allocate(2 * (1 + ServerStorage.KEY_LENGTH) + 4 + chunk.capacity());
+        request.put(Server.OperationTypes.PUSHING);
+        request.put(key.array());
+        request.putInt(chunk.capacity());
+        request.put(chunk.array());
+        request.put(Server.OperationTypes.PULLING);
+        request.put(key.array());
+        writeFully(channel, request);
+
+        ByteBuffer response = readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1));
+        assertEquals(Server.OperationResultStatus.SUCCESS, response.get(ServerStorage.KEY_LENGTH));
+
+        response = readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1 + 4));
+        assertEquals(Server.OperationResultStatus.SUCCESS, response.get(ServerStorage.KEY_LENGTH));
+        assertEquals(chunk, readFully(channel, ByteBuffer.allocate(response.getInt(ServerStorage.KEY_LENGTH + 1))));
+
+        channel.close();
+    }
+
+    /**
+     * Server of the baseline protocol: it answers SET_CONNECTION_TYPE with one byte, skips unknown operations,
+     * accepts pushes and answers pulls as if it has only a chunk under the zero key.
+     */
+    private void serveAsBaselineServer(ServerSocketChannel serverChannel) throws IOException {
+        try (SocketChannel channel = serverChannel.accept()) {
+            while (channel.isConnected()) {
+                byte operationType = readFully(channel, ByteBuffer.allocate(1)).get();
+                if (operationType == Server.OperationTypes.SET_CONNECTION_TYPE) {
+                    readFully(channel, ByteBuffer.allocate(1));
+                    ByteBuffer response = ByteBuffer.allocate(1);
+                    response.put(Server.OperationResultStatus.SUCCESS);
+                    writeFully(channel, response);
+                } else if (operationType == Server.OperationTypes.PUSHING) {
+                    ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1);
+                    response.put(readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH)));
+                    readFully(channel, ByteBuffer.allocate(readFully(channel, ByteBuffer.allocate(4)).getInt()));
+                    response.put(Server.OperationResultStatus.SUCCESS);
+                    writeFully(channel, response);
+                } else if (operationType == Server.OperationTypes.PULLING) {
+                    ByteBuffer key = readFully(channel, ByteBuffer.allocate(ServerStorage.KEY_LENGTH));
+                    ByteBuffer response = ByteBuffer.allocate(ServerStorage.KEY_LENGTH + 1 + 4 + 10);
+                    boolean isZeroKey = key.equals(ByteBuffer.allocate(ServerStorage.KEY_LENGTH));
+                    response.put(key);
+                    if (isZeroKey) {
+                        response.put(Server.OperationResultStatus.SUCCESS);
+                        response.putInt(10);
+                        response.put(new byte[10]);
+                    } else {
+                        response.put(Server.OperationResultStatus.CHUNK_WAS_NOT_FOUND);
+                    }
+                    writeFully(channel, response);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pipelinedClientMustFallBackOnBaselineServer() throws Exception {
+        clientMustFallBackOnBaselineServer(7639, Server.ProtocolVersions.PIPELINED);
+    }
+
+    @Test
+    public void sequentialClientMustFallBackOnBaselineServer() throws Exception {
+        clientMustFallBackOnBaselineServer(7641, Server.ProtocolVersions.SEQUENTIAL);
+    }
+
+    private void clientMustFallBackOnBaselineServer(int port, byte protocolVersion) throws Exception {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", port));
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serveAsBaselineServer(serverChannel);
+                } catch (IOException ioe) {
+                    log.debug("Baseline server has stopped: {}", ioe.getMessage());
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        OneNodeClient client = OneNodeClient.newClient("127.0.0.1", port, Client.ConnectionType.OTHERS, protocolVersion);
+        assertTrue(client.setConnectionType());
+        assertFalse(client.isPipelined());
+        assertFalse(client.isOffering());
+        assertFalse(client.isConditionalPushing());
+
+        //plain pushes go, the server would never answer conditional ones
+        ByteBuffer key = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(key.array());
+        assertFalse(client.offer(key));
+        assertTrue(client.push(key, ByteBuffer.allocate(1000)));
+        assertNull(client.pull(key));
+
+        client.close();
+        serverChannel.close();
+    }
 }
@@ -98,6 +98,8 @@ public class SingleModeIntegrationTest {
             new Thread() {
                 @Override
                 public void run() {
+                    //ThreadLocalRandom of another thread generates the same sequence in every thread
+                    Random r = ThreadLocalRandom.current();
                     OneNodeClient client;
                     try {
                         client = OneNodeClient.newClient(host, port, Client.ConnectionType.OTHERS);
@@ -6,13 +6,20 @@ import me.ilyamirin.anthophila.server.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static junit.framework.Assert.*;
 
@@ -95,15 +102,37 @@ public class StorageTest {
             file.delete();
         }
         file.createNewFile();
+
+        new File(file.getAbsolutePath() + ".hint").delete();
+        new File(file.getAbsolutePath() + ".hint.journal").delete();
     }
 
     public void setUp(boolean isEnctiptionOn) throws IOException {
-        System.gc();
+        setUp(isEnctiptionOn, 0);
+    }
 
+    public void setUp(boolean isEnctiptionOn, int scanThreads) throws IOException {
+        setUp(isEnctiptionOn, scanThreads, false);
+    }
+
+    public void setUp(boolean isEnctiptionOn, int scanThreads, boolean isMapped) throws IOException {
+        setUp(isEnctiptionOn, scanThreads, isMapped, false);
+    }
+
+    public void setUp(boolean isEnctiptionOn, int scanThreads, boolean isMapped, boolean isDense) throws IOException {
         ServerParams params = new ServerParams();
+        params.setEncrypt(isEnctiptionOn);
+        params.setScanThreads(scanThreads);
+        params.setMapped(isMapped);
+        params.setDenseAllocation(isDense);
+        setUp(params);
+    }
+
+    public void setUp(ServerParams params) throws IOException {
+        System.gc();
+
         params.setStorageFile(file.getAbsolutePath());
         params.setInitialIndexSize(5000);
-        params.setEncrypt(isEnctiptionOn);
 
         ServerEnigma enigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(10), new HashMap<Integer, String>());
 
@@ -135,14 +164,1003 @@ public class StorageTest {
         assertTrue(storage.contains(md5Hash));
         assertTrue(Arrays.equals(chunk.array(), storage.read(md5Hash).array()));
 
-        assertEquals((ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2), file.length());
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2, file.length());
 
         storage.delete(md5Hash);
 
         assertFalse(storage.contains(md5Hash));
         assertNull(storage.read(md5Hash));
 
-        assertEquals((ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2), file.length());
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2, file.length());
+    }
+
+    @Test
+    public void pinnedChunkMustNotBeOverwritten() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(md5Hash.array());
+        ByteBuffer chunk = ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH / 3);
+        r.nextBytes(chunk.array());
+
+        storage.append(md5Hash, chunk);
+
+        ServerIndexEntry indexEntry = storage.pinPlainChunk(md5Hash);
+        assertNotNull(indexEntry);
+        assertEquals(chunk.capacity(), indexEntry.getChunkLength());
+
+        storage.delete(md5Hash);
+
+        ByteBuffer anotherHash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(anotherHash.array());
+        storage.append(anotherHash, ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH));
+
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2, file.length());
+
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        storage.transferTo(indexEntry, Channels.newChannel(transferred));
+        assertTrue(Arrays.equals(chunk.array(), transferred.toByteArray()));
+
+        storage.unpin(indexEntry);
+
+        r.nextBytes(anotherHash.array());
+        storage.append(anotherHash, chunk);
+
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * 2, file.length());
+
+        //encrypted chunks can`t be transferred as is
+        setUp(true);
+        r.nextBytes(md5Hash.array());
+        storage.append(md5Hash, chunk);
+        assertNull(storage.pinPlainChunk(md5Hash));
+    }
+
+    @Test
+    public void bufferPoolMustServeSteadyStateOperations() throws IOException {
+        cleanStorageFile();
+        setUp(true);
+
+        ServerBufferPool bufferPool = storage.getBufferPool();
+        long hits = bufferPool.getHits();
+        long misses = bufferPool.getMisses();
+
+        int chunksNumber = 100;
+        for (int i = 0; i < chunksNumber; i++) {
+            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            r.nextBytes(md5Hash.array());
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(chunk.array());
+
+            storage.append(md5Hash, chunk);
+            assertTrue(Arrays.equals(chunk.array(), storage.read(md5Hash).array()));
+        }
+
+        assertEquals(hits + 2 * chunksNumber, bufferPool.getHits());
+        assertEquals(misses, bufferPool.getMisses());
+        assertTrue(file.length() <= ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * chunksNumber);
+    }
+
+    @Test
+    public void storageMustTakePooledChunksUpToTheirLimits() throws IOException {
+        for (boolean isEncrypted : new boolean[]{false, true}) {
+            cleanStorageFile();
+            setUp(isEncrypted);
+
+            ServerBufferPool chunkPool = ServerBufferPool.newServerHeapBufferPool(1, ServerStorage.CHUNK_LENGTH);
+            for (int i = 0; i < 10; i++) {
+                ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+                r.nextBytes(md5Hash.array());
+                ByteBuffer chunk = chunkPool.acquire();
+                r.nextBytes(chunk.array());
+                chunk.limit(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+
+                storage.append(md5Hash, chunk);
+                assertTrue(Arrays.equals(Arrays.copyOf(chunk.array(), chunk.limit()), storage.read(md5Hash).array()));
+                chunkPool.release(chunk);
+            }
+        }
+    }
+
+    @Test
+    public void readsMustPutChunksIntoPooledBuffers() throws IOException {
+        for (boolean isEncrypted : new boolean[]{false, true}) {
+            cleanStorageFile();
+            setUp(isEncrypted);
+
+            Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+            for (int i = 0; i < 10; i++) {
+                appendRandomChunk(chunks);
+            }
+
+            ServerBufferPool chunkPool = ServerBufferPool.newServerHeapBufferPool(1, ServerStorage.CHUNK_LENGTH);
+            for (Map.Entry<ByteBuffer, ByteBuffer> entry : chunks.entrySet()) {
+                ByteBuffer chunk = storage.read(entry.getKey(), chunkPool);
+                assertEquals(ServerStorage.CHUNK_LENGTH, chunk.capacity());
+                assertTrue(Arrays.equals(entry.getValue().array(), Arrays.copyOf(chunk.array(), chunk.limit())));
+                chunkPool.release(chunk);
+            }
+            assertEquals(1, chunkPool.getMisses()); //the only chunk goes round
+        }
+    }
+
+    private ByteBuffer appendRandomChunk(Map<ByteBuffer, ByteBuffer> chunks) throws IOException {
+        return appendRandomChunk(chunks, r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+    }
+
+    private ByteBuffer appendRandomChunk(Map<ByteBuffer, ByteBuffer> chunks, int length) throws IOException {
+        ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(md5Hash.array());
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        r.nextBytes(chunk.array());
+        storage.append(md5Hash, chunk);
+        chunks.put(md5Hash, chunk);
+        return md5Hash;
+    }
+
+    private void assertStorageContains(Map<ByteBuffer, ByteBuffer> chunks) throws IOException {
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : chunks.entrySet()) {
+            assertTrue(Arrays.equals(entry.getValue().array(), storage.read(entry.getKey()).array()));
+        }
+    }
+
+    @Test
+    public void snapshotMustRestoreIndexAndLeaveOnlyTailToScan() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ByteBuffer> deleted = new ArrayList<>();
+        List<Integer> deletedLengths = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            appendRandomChunk(chunks);
+        }
+        for (int i = 0; i < 5; i++) {
+            ByteBuffer md5Hash = chunks.keySet().iterator().next();
+            deletedLengths.add(chunks.remove(md5Hash).capacity());
+            storage.delete(md5Hash);
+            deleted.add(md5Hash);
+        }
+        appendRandomChunk(chunks, deletedLengths.get(0)); //reuses one of free slots
+
+        assertTrue(storage.writeSnapshot());
+        long coveredLength = file.length();
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+        assertFalse(storage.writeSnapshot()); //nothing has changed
+
+        setUp(false);
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+        for (ByteBuffer md5Hash : deleted) {
+            assertFalse(storage.contains(md5Hash));
+        }
+
+        //free slots were restored too
+        ByteBuffer coveredHash = null;
+        for (int i = 1; i < 5; i++) {
+            coveredHash = appendRandomChunk(chunks, deletedLengths.get(i));
+        }
+        assertEquals(coveredLength, file.length());
+
+        assertTrue(storage.writeSnapshot());
+        coveredLength = file.length();
+        for (int i = 0; i < 10; i++) {
+            appendRandomChunk(chunks, ServerStorage.CHUNK_LENGTH); //tail after the snapshot
+        }
+
+        setUp(false);
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+
+        //changes of covered slots are journaled and keep the snapshot in use
+        chunks.remove(coveredHash);
+        storage.delete(coveredHash);
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+
+        setUp(false);
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+        assertFalse(storage.contains(coveredHash));
+
+        long length = file.length();
+        ByteBuffer reusedHash = appendRandomChunk(chunks, deletedLengths.get(4));
+        assertEquals(length, file.length());
+        assertTrue(storage.writeSnapshot()); //tail and journal are taken in
+        coveredLength = file.length();
+        assertFalse(storage.writeSnapshot());
+
+        chunks.remove(reusedHash);
+        storage.delete(reusedHash);
+        appendRandomChunk(chunks, deletedLengths.get(4));
+        assertEquals(length, file.length());
+
+        setUp(false);
+        assertEquals(coveredLength, storage.getSnapshotCoverage());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+        assertFalse(storage.contains(reusedHash));
+    }
+
+    @Test
+    public void denseAllocationMustTakeLowestFreeSlots() throws IOException {
+        cleanStorageFile();
+        setUp(false, 0, false, true);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ByteBuffer> hashes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hashes.add(appendRandomChunk(chunks, ServerStorage.CHUNK_LENGTH));
+        }
+        for (int i = 9; i >= 0; i -= 3) {
+            chunks.remove(hashes.get(i));
+            storage.delete(hashes.get(i));
+        }
+
+        ByteBuffer md5Hash = appendRandomChunk(chunks, ServerStorage.CHUNK_LENGTH);
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerStorage.AUX_CHUNK_INFO_LENGTH, storage.getMainIndex().get(md5Hash).getChunkPosition());
+        md5Hash = appendRandomChunk(chunks, ServerStorage.CHUNK_LENGTH);
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 3 + ServerStorage.AUX_CHUNK_INFO_LENGTH,
+                storage.getMainIndex().get(md5Hash).getChunkPosition());
+
+        setUp(false, 0, false, true);
+        assertStorageContains(chunks);
+        md5Hash = appendRandomChunk(chunks, ServerStorage.CHUNK_LENGTH);
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 6 + ServerStorage.AUX_CHUNK_INFO_LENGTH,
+                storage.getMainIndex().get(md5Hash).getChunkPosition());
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 10, file.length());
+    }
+
+    @Test
+    public void smallChunksMustShareSlotClassPages() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ByteBuffer> smallHashes = new ArrayList<>();
+        for (int i = 0; i < ServerSlotClass.SMALL.getSlotsPerPage(); i++) {
+            smallHashes.add(appendRandomChunk(chunks, ServerSlotClass.SMALL.getChunkCapacity() - i));
+        }
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH, file.length());
+
+        ByteBuffer mediumHash = appendRandomChunk(chunks, ServerSlotClass.SMALL.getChunkCapacity() + 1);
+        appendRandomChunk(chunks, ServerSlotClass.MEDIUM.getChunkCapacity());
+        appendRandomChunk(chunks, ServerSlotClass.MEDIUM.getChunkCapacity() + 1);
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 3, file.length());
+        assertStorageContains(chunks);
+
+        //free slots keep their classes after a reload
+        chunks.remove(smallHashes.get(0));
+        storage.delete(smallHashes.get(0));
+        chunks.remove(mediumHash);
+        storage.delete(mediumHash);
+
+        setUp(false);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+
+        appendRandomChunk(chunks, 1);
+        for (int i = 0; i < ServerSlotClass.MEDIUM.getSlotsPerPage() - 1; i++) {
+            appendRandomChunk(chunks, ServerSlotClass.MEDIUM.getChunkCapacity());
+        }
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 3, file.length());
+
+        appendRandomChunk(chunks, 1); //small page is full
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 4, file.length());
+
+        setUp(false);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void parallelScanMustRebuildWholeIndex() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            appendRandomChunk(chunks);
+        }
+        List<Integer> deletedLengths = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            ByteBuffer md5Hash = chunks.keySet().iterator().next();
+            deletedLengths.add(chunks.remove(md5Hash).capacity());
+            storage.delete(md5Hash);
+        }
+
+        setUp(false, 4);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+
+        //free slots were found by the scan as well, so the file does not grow
+        long length = file.length();
+        for (int deletedLength : deletedLengths) {
+            appendRandomChunk(chunks, deletedLength);
+        }
+        assertEquals(length, file.length());
+
+        setUp(false, 1);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void mappedReadsMustFollowGrowingAndReusedSlots() throws Exception {
+        cleanStorageFile();
+        setUp(true, 0, true);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            appendRandomChunk(chunks);
+            assertStorageContains(chunks); //last segment is mapped again as the file grows
+        }
+
+        final List<ByteBuffer> keys = new ArrayList<>(chunks.keySet());
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>(chunks);
+        final AtomicInteger wrongReads = new AtomicInteger();
+        final CountDownLatch readersLatch = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000; j++) {
+                            ByteBuffer key = keys.get(r.nextInt(keys.size()));
+                            ByteBuffer chunk = storage.read(key);
+                            if (chunk != null && !Arrays.equals(expected.get(key).array(), chunk.array())) {
+                                wrongReads.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        wrongReads.incrementAndGet();
+                    } finally {
+                        readersLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        //deleted slots are reused by other chunks while readers are running
+        while (readersLatch.getCount() > 0) {
+            ByteBuffer md5Hash = keys.get(r.nextInt(keys.size()));
+            if (chunks.remove(md5Hash) != null) {
+                storage.delete(md5Hash);
+                appendRandomChunk(chunks);
+            }
+        }
+        readersLatch.await();
+
+        assertEquals(0, wrongReads.get());
+        assertStorageContains(chunks);
+    }
+
+    private long readConcurrently(final List<ByteBuffer> keys, final Map<ByteBuffer, ByteBuffer> chunks, int threads,
+            final long millis, final AtomicInteger wrongReads) throws InterruptedException {
+        final AtomicLong reads = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + millis;
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                            if (!Arrays.equals(chunks.get(key).array(), storage.read(key).array())) {
+                                wrongReads.incrementAndGet();
+                            }
+                            reads.incrementAndGet();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Read failed", e);
+                        wrongReads.incrementAndGet();
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return reads.get() * 1000 / millis;
+    }
+
+    @Test
+    public void groupCommitMustShareForcesBetweenWriters() throws Exception {
+        cleanStorageFile();
+        ServerParams params = new ServerParams();
+        params.setDurability(ServerDurability.GROUP);
+        params.setSyncInterval(20);
+        setUp(params);
+
+        final Map<ByteBuffer, ByteBuffer> chunks = Collections.synchronizedMap(new HashMap<ByteBuffer, ByteBuffer>());
+        final AtomicInteger writeErrors = new AtomicInteger();
+        Thread[] writers = new Thread[8];
+        final int appends = 20;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < appends; j++) {
+                            appendRandomChunk(chunks, r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+                            storage.awaitDurable();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Write failed", e);
+                        writeErrors.incrementAndGet();
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        long syncs = storage.getSyncer().getSyncs();
+        log.info("{} durable appends took {} forces and {} ms", writers.length * appends, syncs, System.currentTimeMillis() - start);
+        assertEquals(0, writeErrors.get());
+        assertTrue(syncs > 0);
+        assertTrue(syncs < writers.length * appends);
+        assertStorageContains(chunks);
+
+        //per write mode forces right away
+        params = new ServerParams();
+        params.setDurability(ServerDurability.WRITE);
+        setUp(params);
+        appendRandomChunk(chunks);
+        storage.awaitDurable();
+        assertEquals(1, storage.getSyncer().getSyncs());
+        storage.awaitDurable(); //nothing was written since
+        assertEquals(1, storage.getSyncer().getSyncs());
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void writePipelineMustBatchAppends() throws Exception {
+        cleanStorageFile();
+        ServerParams params = new ServerParams();
+        params.setEncrypt(true);
+        params.setWriteThreads(4);
+        params.setWriteQueueSize(64);
+        setUp(params);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ListenableFuture<Void>> appends = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            r.nextBytes(md5Hash.array());
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerSlotClass.MEDIUM.getChunkCapacity()) + 1);
+            r.nextBytes(chunk.array());
+            chunks.put(md5Hash, chunk);
+            appends.add(storage.appendAsync(md5Hash, chunk));
+        }
+        ByteBuffer duplicate = chunks.keySet().iterator().next();
+        appends.add(storage.appendAsync(duplicate, ByteBuffer.allocate(1))); //stored key is skipped
+        Futures.allAsList(appends).get();
+
+        ServerWritePipeline.Stats stats = storage.getWritePipeline().getStats();
+        log.info("{}", stats);
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(appends.size(), stats.getWrites());
+        assertTrue(stats.getBatches() <= stats.getWrites());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+
+        //pages of small classes are shared by batches as well
+        int mediumChunks = 0;
+        for (ByteBuffer chunk : chunks.values()) {
+            mediumChunks += ServerSlotClass.forChunk(chunk.capacity()) == ServerSlotClass.MEDIUM ? 1 : 0;
+        }
+        int pages = mediumChunks / ServerSlotClass.MEDIUM.getSlotsPerPage()
+                + (chunks.size() - mediumChunks) / ServerSlotClass.SMALL.getSlotsPerPage() + 2;
+        assertTrue(file.length() <= ServerStorage.HEADER_LENGTH + (long) ServerSlotClass.PAGE_LENGTH * pages);
+
+        params = new ServerParams();
+        params.setEncrypt(true);
+        setUp(params);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+    }
+
+    @Test
+    public void stripedStorageMustSpreadChunksOverFiles() throws Exception {
+        List<String> storageFiles = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            File stripeFile = new File(String.format("test-stripe-%s.bin", i));
+            stripeFile.delete();
+            new File(stripeFile.getAbsolutePath() + ".hint").delete();
+            new File(stripeFile.getAbsolutePath() + ".hint.journal").delete();
+            storageFiles.add(stripeFile.getAbsolutePath());
+        }
+
+        ServerParams params = new ServerParams();
+        params.setStorageFiles(storageFiles);
+        params.setInitialIndexSize(5000);
+        params.setMaxExpectedSize(5000);
+        ServerEnigma enigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(10), new HashMap<Integer, String>());
+        ServerStripedStorage stripedStorage = ServerStripedStorage.newServerStripedStorage(params, enigma);
+        stripedStorage.loadExistedStorage();
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            r.nextBytes(md5Hash.array());
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(chunk.array());
+            stripedStorage.append(md5Hash, chunk);
+            chunks.put(md5Hash, chunk);
+        }
+        List<ByteBuffer> deleted = new ArrayList<>(chunks.keySet()).subList(0, 30);
+        for (ByteBuffer md5Hash : deleted) {
+            stripedStorage.delete(md5Hash);
+            chunks.remove(md5Hash);
+        }
+
+        for (ServerStorage stripe : stripedStorage.getStripes()) {
+            assertTrue(stripe.getMainIndex().size() > 50);
+        }
+
+        stripedStorage.writeSnapshot();
+        stripedStorage = ServerStripedStorage.newServerStripedStorage(params, enigma);
+        stripedStorage.loadExistedStorage();
+
+        List<ByteBuffer> keys = new ArrayList<>(chunks.keySet());
+        keys.addAll(deleted);
+        List<ByteBuffer> read = stripedStorage.readAll(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer chunk = chunks.get(keys.get(i));
+            if (chunk == null) {
+                assertNull(read.get(i));
+                assertFalse(stripedStorage.contains(keys.get(i)));
+            } else {
+                assertTrue(Arrays.equals(chunk.array(), read.get(i).array()));
+                assertTrue(Arrays.equals(chunk.array(), stripedStorage.read(keys.get(i)).array()));
+            }
+        }
+
+        //keys are routed by numbers of files, so another list of them is refused
+        File addedFile = new File("test-stripe-3.bin");
+        addedFile.delete();
+        List<List<String>> changedLists = new ArrayList<>();
+        changedLists.add(Arrays.asList(storageFiles.get(1), storageFiles.get(0), storageFiles.get(2)));
+        changedLists.add(storageFiles.subList(0, 2));
+        changedLists.add(Arrays.asList(storageFiles.get(0), storageFiles.get(1), storageFiles.get(2), addedFile.getAbsolutePath()));
+        for (List<String> changedList : changedLists) {
+            params.setStorageFiles(changedList);
+            try {
+                ServerStripedStorage.newServerStripedStorage(params, enigma);
+                fail();
+            } catch (IOException ioe) {
+                log.info("Changed list of files was refused: {}", ioe.getMessage());
+            }
+        }
+        addedFile.delete();
+    }
+
+    @Test
+    public void filterMustGrowAndForgetDeletedKeys() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        ServerCuckooFilter filter = storage.getFilter();
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        while (chunks.size() < filter.capacity()) {
+            appendRandomChunk(chunks, 1);
+        }
+        assertTrue(storage.getFilter().capacity() > filter.capacity());
+        assertFalse(storage.getFilter().isOverloaded());
+        for (ByteBuffer md5Hash : chunks.keySet()) {
+            assertTrue(storage.mightContain(md5Hash));
+        }
+
+        List<ByteBuffer> deleted = new ArrayList<>(chunks.keySet()).subList(0, 1000);
+        int stillFound = 0;
+        for (ByteBuffer md5Hash : deleted) {
+            storage.delete(md5Hash);
+            stillFound += storage.mightContain(md5Hash) ? 1 : 0;
+        }
+        assertTrue(stillFound < 10);
+        assertEquals(chunks.size() - deleted.size(), storage.getFilter().size());
+    }
+
+    @Test
+    public void cacheMustServeRepeatedReadsAndForgetDeletedChunks() throws IOException {
+        cleanStorageFile();
+        ServerParams params = new ServerParams();
+        params.setEncrypt(true);
+        params.setCacheSize(1024 * 1024);
+        setUp(params);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            appendRandomChunk(chunks, r.nextInt(5000) + 1);
+        }
+        assertStorageContains(chunks);
+        assertStorageContains(chunks);
+        assertEquals(chunks.size(), storage.getCache().getStats().getHits());
+        assertEquals(0.5, storage.getCache().getStats().getHitRate(), 0.001);
+
+        ByteBuffer md5Hash = chunks.keySet().iterator().next();
+        storage.delete(md5Hash);
+        assertNull(storage.read(md5Hash));
+
+        ByteBuffer chunk = ByteBuffer.allocate(100);
+        r.nextBytes(chunk.array());
+        storage.append(md5Hash, chunk);
+        chunks.put(md5Hash, chunk);
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void scrubberMustFindAndQuarantineCorruptedChunks() throws IOException {
+        cleanStorageFile();
+        setUp(false);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            appendRandomChunk(chunks, 100);
+        }
+        ByteBuffer corruptedHash = chunks.keySet().iterator().next();
+        long chunkPosition = storage.getMainIndex().get(corruptedHash).getChunkPosition();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(chunkPosition + ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH + 10);
+            int flipped = randomAccessFile.read() ^ 1;
+            randomAccessFile.seek(chunkPosition + ServerStorage.ENCRYPTION_CHUNK_INFO_LENGTH + 10);
+            randomAccessFile.write(flipped);
+        }
+
+        try {
+            storage.read(corruptedHash);
+            fail();
+        } catch (ServerCorruptedChunkException scce) {
+            log.info("Corruption was found on read: {}", scce.getMessage());
+        }
+
+        assertEquals(1, ServerScrubber.newServerScrubber(storage, 1 << 30, false).scrub());
+        assertTrue(storage.contains(corruptedHash));
+
+        ServerScrubber scrubber = ServerScrubber.newServerScrubber(storage, 1 << 30, true);
+        assertEquals(1, scrubber.scrub());
+        assertFalse(storage.contains(corruptedHash));
+        assertEquals(0, scrubber.scrub());
+        assertEquals(99, scrubber.getChunksChecked());
+        chunks.remove(corruptedHash);
+        assertStorageContains(chunks);
+
+        //quarantined slot survives the restart and is never reused
+        setUp(false);
+        assertFalse(storage.contains(corruptedHash));
+        assertStorageContains(chunks);
+        for (int i = 0; i < ServerSlotClass.SMALL.getSlotsPerPage(); i++) {
+            ByteBuffer md5Hash = appendRandomChunk(chunks, 100);
+            assertTrue(storage.getMainIndex().get(md5Hash).getChunkPosition() != chunkPosition);
+        }
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void compactionMustMoveTailChunksAndShrinkFile() throws Exception {
+        cleanStorageFile();
+        setUp(false, 0, true);
+
+        final Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ByteBuffer> appended = new ArrayList<>();
+        for (int i = 0; i < ServerSlotClass.SMALL.getSlotsPerPage() * 10; i++) {
+            appended.add(appendRandomChunk(chunks, 100));
+        }
+        storage.writeSnapshot();
+        for (int i = 0; i < appended.size(); i++) {
+            if (i % 4 != 0) {
+                storage.delete(appended.get(i));
+                chunks.remove(appended.get(i));
+            }
+        }
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 10, file.length());
+
+        //readers keep reading moved chunks while the file shrinks under them
+        final List<ByteBuffer> keys = new ArrayList<>(chunks.keySet());
+        final AtomicInteger wrongReads = new AtomicInteger();
+        Thread readers = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    readConcurrently(keys, chunks, 4, 500, wrongReads);
+                } catch (InterruptedException ie) {
+                    wrongReads.incrementAndGet();
+                }
+            }
+        };
+        readers.start();
+        ServerCompactor compactor = ServerCompactor.newServerCompactor(storage, 1 << 30);
+        assertEquals(ServerSlotClass.PAGE_LENGTH * 7, compactor.compact());
+        readers.join();
+
+        assertEquals(0, wrongReads.get());
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 3, file.length());
+        assertEquals(0, storage.getSnapshotCoverage());
+        assertEquals(0, compactor.compact());
+        assertStorageContains(chunks);
+
+        //new chunks go to the rest of holes and then to a new page
+        for (int i = 0; i < ServerSlotClass.SMALL.getSlotsPerPage(); i++) {
+            appendRandomChunk(chunks, 100);
+        }
+        assertEquals(ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * 4, file.length());
+
+        setUp(false, 0, true);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void asyncOperationsMustGoThroughIoThreads() throws Exception {
+        cleanStorageFile();
+        ServerParams params = new ServerParams();
+        params.setIoThreads(4);
+        params.setCacheSize(10 * ServerStorage.CHUNK_LENGTH);
+        setUp(params);
+
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        List<ListenableFuture<Void>> appends = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            r.nextBytes(md5Hash.array());
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(chunk.array());
+            chunks.put(md5Hash, chunk);
+            appends.add(storage.appendAsync(md5Hash, chunk));
+        }
+        Futures.allAsList(appends).get();
+
+        //all reads are in flight at once, every key is read twice, so the second one may hit the cache
+        for (int pass = 0; pass < 2; pass++) {
+            List<ByteBuffer> keys = new ArrayList<>(chunks.keySet());
+            List<ListenableFuture<ByteBuffer>> reads = new ArrayList<>();
+            for (ByteBuffer key : keys) {
+                reads.add(storage.readAsync(key));
+            }
+            List<ByteBuffer> read = Futures.allAsList(reads).get();
+            for (int i = 0; i < keys.size(); i++) {
+                assertTrue(Arrays.equals(chunks.get(keys.get(i)).array(), read.get(i).array()));
+            }
+        }
+
+        List<ListenableFuture<Void>> deletes = new ArrayList<>();
+        List<ByteBuffer> deleted = new ArrayList<>();
+        for (ByteBuffer key : chunks.keySet()) {
+            if (r.nextBoolean()) {
+                deleted.add(key);
+                deletes.add(storage.deleteAsync(key));
+            }
+        }
+        Futures.allAsList(deletes).get();
+        for (ByteBuffer key : deleted) {
+            assertNull(storage.readAsync(key).get());
+            chunks.remove(key);
+        }
+        assertStorageContains(chunks);
+    }
+
+    @Test
+    public void storageMustRefuseFilesOfOtherLayouts() throws IOException {
+        setUp(false);
+        ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(md5Hash.array());
+        storage.append(md5Hash, ByteBuffer.allocate(100));
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        assertEquals(ServerStorage.MAGIC, randomAccessFile.readInt());
+        assertEquals(ServerStorage.FORMAT_VERSION, randomAccessFile.readInt());
+
+        //the next version of the layout
+        randomAccessFile.seek(4);
+        randomAccessFile.writeInt(ServerStorage.FORMAT_VERSION + 1);
+        try {
+            setUp(false);
+            fail();
+        } catch (IOException ioe) {
+            log.info("Storage of another format version was refused: {}", ioe.getMessage());
+        }
+
+        //no header and no tombstone of the first layout
+        randomAccessFile.seek(0);
+        randomAccessFile.write(1);
+        randomAccessFile.write(md5Hash.array());
+        try {
+            setUp(false);
+            fail();
+        } catch (IOException ioe) {
+            log.info("Storage without header was refused: {}", ioe.getMessage());
+        }
+        randomAccessFile.close();
+    }
+
+    /**
+     * Writes a slot as storages of the first layout did: tombstone, key, chunk length, key hash, IV and the chunk
+     * padded to the whole slot.
+     */
+    private void writeFirstFormatSlot(RandomAccessFile randomAccessFile, byte tombstone, ByteBuffer key, ByteBuffer chunk,
+            ServerEnigma enigma) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(ServerStorage.FIRST_FORMAT_SLOT_LENGTH);
+        slot.put(tombstone).put(key.array()).putInt(chunk.capacity());
+        if (enigma != null) {
+            ServerEnigma.EncryptedChunk encryptedChunk = enigma.encrypt(chunk);
+            slot.putInt(encryptedChunk.getKeyHash()).put(encryptedChunk.getIV()).put(encryptedChunk.getChunk().array());
+        } else {
+            slot.putInt(0).put(new byte[ServerStorage.IV_LENGTH]).put(chunk.array());
+        }
+        randomAccessFile.write(slot.array());
+    }
+
+    @Test
+    public void storageMustUpgradeFilesOfFirstLayout() throws IOException {
+        ServerEnigma enigma = ServerEnigma.newServerEnigma(ServerEnigma.generateKeys(10), new HashMap<Integer, String>());
+        Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        ByteBuffer deleted = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(deleted.array());
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+            r.nextBytes(md5Hash.array());
+            ByteBuffer chunk = ByteBuffer.allocate(r.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+            r.nextBytes(chunk.array());
+            writeFirstFormatSlot(randomAccessFile, Byte.MAX_VALUE, md5Hash, chunk, i % 2 == 0 ? enigma : null);
+            chunks.put(md5Hash, chunk);
+        }
+        writeFirstFormatSlot(randomAccessFile, Byte.MIN_VALUE, deleted, ByteBuffer.allocate(100), null);
+        randomAccessFile.write(new byte[100]); //slot which was being written when the server stopped
+        randomAccessFile.close();
+
+        ServerParams params = new ServerParams();
+        params.setStorageFile(file.getAbsolutePath());
+        params.setInitialIndexSize(5000);
+        params.setEncrypt(true);
+        storage = ServerStorage.newServerStorage(params, enigma);
+        storage.loadExistedStorage();
+
+        assertEquals(ServerStorage.HEADER_LENGTH + 5L * ServerSlotClass.PAGE_LENGTH, file.length());
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertFalse(storage.contains(deleted));
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : chunks.entrySet()) {
+            assertTrue(Arrays.equals(entry.getValue().array(), storage.read(entry.getKey()).array()));
+        }
+
+        //the deleted slot is reused and the upgraded file opens as it is
+        ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+        r.nextBytes(md5Hash.array());
+        storage.append(md5Hash, ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH));
+        chunks.put(md5Hash, ByteBuffer.allocate(ServerStorage.CHUNK_LENGTH));
+        assertEquals(ServerStorage.HEADER_LENGTH + 5L * ServerSlotClass.PAGE_LENGTH, file.length());
+
+        storage = ServerStorage.newServerStorage(params, enigma);
+        storage.loadExistedStorage();
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : chunks.entrySet()) {
+            assertTrue(Arrays.equals(entry.getValue().array(), storage.read(entry.getKey()).array()));
+        }
+    }
+
+    @Test
+    public void directChannelMustKeepNeighboursOfUnalignedWrites() throws Exception {
+        cleanStorageFile();
+        final ServerDirectChannel channel = ServerDirectChannel.newServerDirectChannel(
+                new RandomAccessFile(file, "rw").getChannel(), 512);
+
+        //neighbouring slots share blocks at their edges and are written at once
+        final int slotLength = 777;
+        final int slots = 64;
+        final byte[] expected = new byte[slotLength * slots];
+        new Random().nextBytes(expected);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int first = t;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int slot = first; slot < slots; slot += 4) {
+                            channel.write(ByteBuffer.wrap(expected, slot * slotLength, slotLength), (long) slot * slotLength);
+                        }
+                    } catch (IOException ioe) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(expected.length, channel.size());
+
+        ByteBuffer slot = ByteBuffer.allocate(slotLength);
+        for (int i = 0; i < slots; i++) {
+            slot.clear();
+            assertEquals(slotLength, channel.read(slot, (long) i * slotLength));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, i * slotLength, (i + 1) * slotLength), slot.array()));
+        }
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1), expected.length));
+
+        //gathered write from the position and the padding of the last block is cut off on close
+        channel.position(expected.length).write(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3})});
+        channel.close();
+        assertEquals(expected.length + 3, file.length());
+    }
+
+    @Test
+    public void concurrentReadsStressTest() throws Exception {
+        cleanStorageFile();
+        setUp(false);
+
+        final Map<ByteBuffer, ByteBuffer> chunks = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            appendRandomChunk(chunks);
+        }
+        List<ByteBuffer> keys = new ArrayList<>(chunks.keySet());
+        AtomicInteger wrongReads = new AtomicInteger();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads <<= 1) {
+            log.info("{} threads make {} reads/s on {} cores", threads, readConcurrently(keys, chunks, threads, 1000, wrongReads), cores);
+        }
+        assertEquals(0, wrongReads.get());
+
+        //writers append and delete their own keys meanwhile, so freed slots are reused under the readers
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicInteger writeErrors = new AtomicInteger();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        while (isWriting.get()) {
+                            ByteBuffer md5Hash = ByteBuffer.allocate(ServerStorage.KEY_LENGTH);
+                            random.nextBytes(md5Hash.array());
+                            ByteBuffer chunk = ByteBuffer.allocate(random.nextInt(ServerStorage.CHUNK_LENGTH) + 1);
+                            random.nextBytes(chunk.array());
+                            storage.append(md5Hash, chunk);
+                            if (!Arrays.equals(chunk.array(), storage.read(md5Hash).array())) {
+                                writeErrors.incrementAndGet();
+                            }
+                            storage.delete(md5Hash);
+                            if (storage.contains(md5Hash)) {
+                                writeErrors.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Write failed", e);
+                        writeErrors.incrementAndGet();
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        log.info("{} threads make {} reads/s while {} threads write", cores, readConcurrently(keys, chunks, cores, 1000, wrongReads), writers.length);
+        isWriting.set(false);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(0, wrongReads.get());
+        assertEquals(0, writeErrors.get());
+        //every writer holds at most one slot at a time, so it may need a new page of every class
+        assertTrue(file.length() <= ServerStorage.HEADER_LENGTH + ServerSlotClass.PAGE_LENGTH * (chunks.size() + writers.length * ServerSlotClass.values().length));
+
+        setUp(false);
+        assertEquals(chunks.size(), storage.getMainIndex().size());
+        assertStorageContains(chunks);
     }
 
     @Test
@@ -169,9 +1187,11 @@ public class StorageTest {
         assertEquals(0, assertionErrorsCount.get());
         log.info("{} have been passed for {} seconds.", concurrentClientsNumber * concurrentRequestsNumber, (System.currentTimeMillis() - start) / 1000);
 
-        long expectedSpace = ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * (concurrentClientsNumber * concurrentRequestsNumber
+        long expectedSpace = ServerStorage.HEADER_LENGTH + ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH * (concurrentClientsNumber * concurrentRequestsNumber
                 - chunksDeletedCounter.get());
-        assertTrue((file.length() - expectedSpace) == ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH || file.length() == expectedSpace);
+        //appends run in parallel, so every client may have grown the tail for a chunk it deleted afterwards
+        assertTrue(file.length() >= expectedSpace
+                && file.length() - expectedSpace <= (long) concurrentClientsNumber * ServerStorage.WHOLE_CHUNK_WITH_META_LENGTH);
 
         //try to reload database and ask about previously addad chunks
 